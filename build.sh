@@ -19,6 +19,78 @@ javac -d ../../bin/class com/henrikhedberg/ohap/TcpOhapServer.java) &&
 (cd bin/class &&
 jar cfm ../jar/tcp-ohap-server.jar ../../src/manifest/tcp-ohap-server.manifest com)
 
+echo "Building nio-ohap-server.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/NioOhapServer.java) &&
+(cd bin/class &&
+jar cfm ../jar/nio-ohap-server.jar ../../src/manifest/nio-ohap-server.manifest com)
+
+echo "Building websocket-ohap-server.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/WebSocketOhapServer.java) &&
+(cd bin/class &&
+jar cfm ../jar/websocket-ohap-server.jar ../../src/manifest/websocket-ohap-server.manifest com)
+
+echo "Building bridge-benchmark.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/BridgeBenchmark.java) &&
+(cd bin/class &&
+jar cfm ../jar/bridge-benchmark.jar ../../src/manifest/bridge-benchmark.manifest com)
+
+echo "Building websocket-benchmark.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/WebSocketBenchmark.java) &&
+(cd bin/class &&
+jar cfm ../jar/websocket-benchmark.jar ../../src/manifest/websocket-benchmark.manifest com)
+
+echo "Building ohap-load-generator.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/OhapLoadGenerator.java) &&
+(cd bin/class &&
+jar cfm ../jar/ohap-load-generator.jar ../../src/manifest/ohap-load-generator.manifest com)
+
+echo "Building propagation-benchmark.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/PropagationBenchmark.java) &&
+(cd bin/class &&
+jar cfm ../jar/propagation-benchmark.jar ../../src/manifest/propagation-benchmark.manifest com)
+
+echo "Building hbdp-client-benchmark.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/HbdpClientBenchmark.java) &&
+(cd bin/class &&
+jar cfm ../jar/hbdp-client-benchmark.jar ../../src/manifest/hbdp-client-benchmark.manifest com)
+
+echo "Building allocation-benchmark.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/AllocationBenchmark.java) &&
+(cd bin/class &&
+jar cfm ../jar/allocation-benchmark.jar ../../src/manifest/allocation-benchmark.manifest com)
+
+echo "Building ohap-client-example.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/client/OhapClientExample.java) &&
+(cd bin/class &&
+jar cfm ../jar/ohap-client-example.jar ../../src/manifest/ohap-client-example.manifest com)
+
 echo "Building hbdp-connection-example.jar..."
 rm -Rf bin/class
 mkdir -p bin/class
@@ -0,0 +1,572 @@
+/*
+ * HTTP Bidirectional Protocol (HBDP) Reference Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.hbdp.client;
+
+import com.henrikhedberg.util.BufferInputStream;
+import com.henrikhedberg.util.BufferOutputStream;
+import com.henrikhedberg.util.InputStreamHandler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * HTTP Bidirectional Protocol (HBDP) client-side connection on top of
+ * {@link HttpClient}.
+ *
+ * <p>Unlike {@link HbdpConnection}, this class has no threads of its own.
+ * The requests are sent asynchronously and the responses are handled in the
+ * executor of the {@link HttpClient}, so one {@link HttpClient} can carry
+ * thousands of sessions. The {@link HttpClient} keeps the connections alive
+ * between requests and multiplexes the requests into a single connection if
+ * the server supports HTTP/2.
+ *
+ * <p>As with {@link HbdpConnection}, a new request is sent as soon as the body
+ * of the previous one has been sent and there is output to send, or when there
+ * is no request waiting for a response. The responses are read into the input
+ * stream in the order of the requests, even if they complete in a different
+ * order.
+ *
+ * <p>The input can be read from the blocking {@link #getInputStream()} or,
+ * without a thread per session, in an {@link InputStreamHandler} set with
+ * {@link #setInputStreamHandler(InputStreamHandler)}.
+ *
+ * <p>A streaming connection keeps one chunked <code>GET</code> request open
+ * for the data from the server and sends a request only when there is output.
+ * The server ends the stream after its hold time, and the connection opens
+ * a new one.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.3 (20261018)
+ */
+public class AsyncHbdpConnection {
+	private static HttpClient defaultHttpClient;
+
+	private HttpClient httpClient;
+	private URI url;
+	private BufferOutputStream outputStream = new BufferOutputStream(256);
+	private BufferInputStream inputStream = new BufferInputStream(4096);
+	private volatile InputStreamHandler inputStreamHandler;
+	private boolean streaming;
+
+	/* Synchronized */
+	private String session;
+	private long serial;
+	private long nextResponse;
+	private long deleteSerial = -1;
+	private HashMap<Long, byte[]> pendingResponses = new HashMap<>();
+	private IOException exception;
+	private boolean sending;
+	private boolean streamOpened;
+	private int receiving;
+	private boolean closing;
+	private boolean closed;
+
+	/**
+	 * Constructs a new connection to the specified HBDP URL using a shared
+	 * {@link HttpClient}.
+	 *
+	 * @param url the URL of the HBDP server
+	 * @see #getDefaultHttpClient()
+	 */
+	public AsyncHbdpConnection(URI url) {
+		this(url, getDefaultHttpClient());
+	}
+
+	/**
+	 * Constructs a new connection to the specified HBDP URL using the given
+	 * {@link HttpClient}.
+	 *
+	 * @param url the URL of the HBDP server
+	 * @param httpClient the client to send the requests with
+	 */
+	public AsyncHbdpConnection(URI url, HttpClient httpClient) {
+		this(url, httpClient, false);
+	}
+
+	/**
+	 * Constructs a new connection to the specified HBDP URL using the given
+	 * {@link HttpClient}, optionally receiving the data in a stream.
+	 *
+	 * @param url the URL of the HBDP server
+	 * @param httpClient the client to send the requests with
+	 * @param streaming whether to receive the data in a stream instead of
+	 *        in the responses
+	 */
+	public AsyncHbdpConnection(URI url, HttpClient httpClient, boolean streaming) {
+		this.url = url;
+		this.httpClient = httpClient;
+		this.streaming = streaming;
+
+		outputStream.setHandler(new BufferOutputStream.Handler() {
+			public void handleWrite(BufferOutputStream outputStream) throws IOException {
+				IOException exception = getException();
+				if (exception != null)
+					throw exception;
+				sendRequest();
+			}
+
+			public void handleClose(BufferOutputStream outputStream) {
+				close();
+			}
+		});
+		inputStream.setHandler(new BufferInputStream.Handler() {
+			public void handleRead(BufferInputStream inputStream) {
+			}
+
+			public void handleClose(BufferInputStream inputStream) {
+				close();
+			}
+		});
+
+		sending = true;
+		receiving = 1;
+		httpClient.sendAsync(HttpRequest.newBuilder(url).GET().build(), HttpResponse.BodyHandlers.ofString(Charset.forName("UTF-8")))
+		          .whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+			public void accept(HttpResponse<String> response, Throwable throwable) {
+				if (throwable != null) {
+					exceptionOccurred(toIOException(throwable));
+				} else if (response.statusCode() != 200 || response.body().isEmpty()) {
+					exceptionOccurred(new IOException("Could not establish a HBDP session."));
+				} else {
+					synchronized (AsyncHbdpConnection.this) {
+						session = url + response.body();
+						sending = false;
+						receiving = 0;
+					}
+					if (streaming)
+						openStream();
+					else
+						sendRequest();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the {@link HttpClient} shared by the connections constructed
+	 * without one. It prefers HTTP/2 and falls back to HTTP/1.1 with
+	 * persistent connections. Its executor has a daemon thread for each
+	 * processor, so the input stream handlers should not block.
+	 *
+	 * @return the shared client
+	 */
+	public static synchronized HttpClient getDefaultHttpClient() {
+		if (defaultHttpClient == null) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AsyncHbdpConnection worker " + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			defaultHttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).executor(executor).build();
+		}
+
+		return defaultHttpClient;
+	}
+
+	/**
+	 * Returns the output stream for writing data to the HBDP server. Writing
+	 * never blocks.
+	 *
+	 * <p>Closing the output stream closes the connection and thus, also the input stream.
+	 *
+	 * @return the output stream for writing data
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * Returns the input stream for reading data from the HBDP server. The
+	 * stream ends when the connection has been closed or has failed.
+	 *
+	 * <p>Closing the input stream closes the connection and thus, also the output stream.
+	 *
+	 * @return the input stream for reading data
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * Sets a handler that is called in the executor of the {@link HttpClient}
+	 * whenever new data has been read into the input stream.
+	 *
+	 * @param inputStreamHandler the handler or <code>null</code>
+	 */
+	public void setInputStreamHandler(InputStreamHandler inputStreamHandler) {
+		this.inputStreamHandler = inputStreamHandler;
+	}
+
+	/**
+	 * Returns the exception that ended the connection, if any.
+	 *
+	 * @return the exception or <code>null</code>
+	 */
+	public synchronized IOException getException() {
+		return exception;
+	}
+
+	/**
+	 * Closes the connections and thus, also the input and output streams.
+	 * The session is deleted after the pending output has been sent.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closing)
+				return;
+			closing = true;
+		}
+		sendRequest();
+	}
+
+	/*
+	 * The output stream is locked before the connection, because the
+	 * output stream calls this method while holding its own lock.
+	 */
+	private void sendRequest() {
+		HttpRequest request;
+		long requestSerial;
+		RequestBody body = null;
+		try {
+			synchronized (outputStream) {
+				synchronized (this) {
+					if (session == null || sending || closed || exception != null)
+						return;
+					if (streaming && !streamOpened && !closing)
+						return;
+
+					int available = outputStream.available();
+					if (available == 0 && (receiving > 0 || streaming) && !closing)
+						return;
+
+					requestSerial = serial++;
+					HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(session + "/" + requestSerial));
+					if (available == 0 && closing) {
+						closed = true;
+						deleteSerial = requestSerial;
+						request = builder.DELETE().build();
+					} else {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream(available);
+						outputStream.writeTo(bytes);
+						body = new RequestBody(bytes.toByteArray());
+						request = builder.header("Accept-Encoding", "gzip, deflate").POST(body).build();
+					}
+					sending = true;
+					receiving++;
+				}
+			}
+		} catch (IOException e) {
+			exceptionOccurred(e);
+			return;
+		}
+
+		httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+		          .whenComplete(new ResponseHandler(requestSerial, body));
+	}
+
+	/*
+	 * The stream is read chunk by chunk: the next chunk is requested
+	 * after the previous one has been read into the input stream.
+	 */
+	private void openStream() {
+		HttpRequest request;
+		synchronized (this) {
+			if (closing || closed)
+				return;
+			request = HttpRequest.newBuilder(URI.create(session + "/stream")).GET().build();
+		}
+
+		httpClient.sendAsync(request, new HttpResponse.BodyHandler<Void>() {
+			public HttpResponse.BodySubscriber<Void> apply(HttpResponse.ResponseInfo info) {
+				if (info.statusCode() != 200)
+					return HttpResponse.BodySubscribers.replacing(null);
+				if (streamOpened())
+					sendRequest();
+				return HttpResponse.BodySubscribers.fromSubscriber(new StreamSubscriber());
+			}
+		}).whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>() {
+			public void accept(HttpResponse<Void> response, Throwable throwable) {
+				boolean reopen;
+				synchronized (AsyncHbdpConnection.this) {
+					if (closing || closed)
+						return;
+					reopen = throwable == null && response.statusCode() == 200;
+				}
+				if (reopen)
+					openStream();
+				else if (throwable != null)
+					exceptionOccurred(toIOException(throwable));
+				else
+					exceptionOccurred(new IOException("HBDP stream failed: " + response.statusCode()));
+			}
+		});
+	}
+
+	/*
+	 * Returns true when the first stream of the session has been opened.
+	 * Output is sent only after that, so that the session is not set up
+	 * over two new HTTP connections at once.
+	 */
+	private synchronized boolean streamOpened() {
+		if (streamOpened)
+			return false;
+		streamOpened = true;
+		return true;
+	}
+
+	private synchronized void sendingDone(RequestBody body) {
+		if (body != null && body.sent)
+			return;
+		if (body != null)
+			body.sent = true;
+		sending = false;
+	}
+
+	/*
+	 * Returns the bodies of the responses that are next in order, or
+	 * null if an earlier response is still missing.
+	 */
+	private synchronized byte[][] responseReceived(long responseSerial, byte[] bytes) {
+		receiving--;
+		if (responseSerial != nextResponse) {
+			pendingResponses.put(Long.valueOf(responseSerial), bytes);
+			return null;
+		}
+
+		byte[][] ready = new byte[pendingResponses.size() + 1][];
+		int count = 0;
+		do {
+			ready[count++] = bytes;
+			nextResponse++;
+		} while ((bytes = pendingResponses.remove(Long.valueOf(nextResponse))) != null);
+
+		return count == ready.length ? ready : Arrays.copyOf(ready, count);
+	}
+
+	/*
+	 * Returns true once, when the response to the DELETE request has been
+	 * read in order, whichever response handler read it.
+	 */
+	private synchronized boolean deleteAnswered() {
+		if (deleteSerial < 0 || nextResponse <= deleteSerial)
+			return false;
+		deleteSerial = -1;
+		return true;
+	}
+
+	private void exceptionOccurred(IOException exception) {
+		synchronized (this) {
+			if (this.exception != null)
+				return;
+			this.exception = exception;
+			closed = true;
+		}
+		endInput();
+	}
+
+	private void endInput() {
+		try {
+			inputStream.end();
+		} catch (IOException e) {
+		}
+		InputStreamHandler handler = inputStreamHandler;
+		if (handler != null) {
+			try {
+				handler.handle(inputStream);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static byte[] decode(HttpResponse<byte[]> response) throws IOException {
+		String contentEncoding = response.headers().firstValue("Content-Encoding").orElse(null);
+		if (contentEncoding == null)
+			return response.body();
+
+		return HbdpConnection.decode(new ByteArrayInputStream(response.body()), contentEncoding).readAllBytes();
+	}
+
+	private static IOException toIOException(Throwable throwable) {
+		if (throwable instanceof CompletionException && throwable.getCause() != null)
+			throwable = throwable.getCause();
+
+		return throwable instanceof IOException ? (IOException)throwable : new IOException(throwable);
+	}
+
+	private class ResponseHandler implements BiConsumer<HttpResponse<byte[]>, Throwable> {
+		private long responseSerial;
+		private RequestBody body;
+
+		ResponseHandler(long responseSerial, RequestBody body) {
+			this.responseSerial = responseSerial;
+			this.body = body;
+		}
+
+		public void accept(HttpResponse<byte[]> response, Throwable throwable) {
+			if (throwable != null) {
+				exceptionOccurred(toIOException(throwable));
+				return;
+			}
+			if (response.statusCode() != 200) {
+				exceptionOccurred(new IOException("HBDP request failed: " + response.statusCode() + " " +
+				                                  new String(response.body(), Charset.forName("UTF-8"))));
+				return;
+			}
+			sendingDone(body);
+
+			byte[] decoded;
+			try {
+				decoded = decode(response);
+			} catch (IOException e) {
+				exceptionOccurred(e);
+				return;
+			}
+			byte[][] ready = responseReceived(responseSerial, decoded);
+			if (ready != null) {
+				int read = 0;
+				try {
+					for (byte[] bytes : ready)
+						read += inputStream.readFrom(new ByteArrayInputStream(bytes));
+				} catch (IOException e) {
+					/* The input stream was closed by the application. */
+				}
+				if (deleteAnswered()) {
+					endInput();
+					return;
+				}
+				InputStreamHandler handler = inputStreamHandler;
+				if (read > 0 && handler != null) {
+					try {
+						handler.handle(inputStream);
+					} catch (IOException e) {
+						exceptionOccurred(e);
+						return;
+					}
+				}
+			}
+
+			sendRequest();
+		}
+	}
+
+	private class StreamSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+		private Flow.Subscription subscription;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		public void onNext(List<ByteBuffer> buffers) {
+			int read = 0;
+			try {
+				for (ByteBuffer buffer : buffers) {
+					byte[] bytes = new byte[buffer.remaining()];
+					buffer.get(bytes);
+					read += inputStream.readFrom(new ByteArrayInputStream(bytes));
+				}
+			} catch (IOException e) {
+				/* The input stream was closed by the application. */
+			}
+			InputStreamHandler handler = inputStreamHandler;
+			if (read > 0 && handler != null) {
+				try {
+					handler.handle(inputStream);
+				} catch (IOException e) {
+					subscription.cancel();
+					exceptionOccurred(e);
+					return;
+				}
+			}
+			subscription.request(1);
+		}
+
+		public void onError(Throwable throwable) {
+		}
+
+		public void onComplete() {
+		}
+	}
+
+	/*
+	 * Marks the request sent when the HttpClient has taken the whole
+	 * body, so that the next request may be sent without waiting for the
+	 * response.
+	 */
+	private class RequestBody implements HttpRequest.BodyPublisher {
+		private HttpRequest.BodyPublisher publisher;
+		private int length;
+
+		/* Synchronized with the connection */
+		boolean sent;
+
+		RequestBody(byte[] bytes) {
+			publisher = HttpRequest.BodyPublishers.ofByteArray(bytes);
+			length = bytes.length;
+		}
+
+		public long contentLength() {
+			return length;
+		}
+
+		public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+				public void onSubscribe(Flow.Subscription subscription) {
+					subscriber.onSubscribe(subscription);
+				}
+
+				public void onNext(ByteBuffer item) {
+					subscriber.onNext(item);
+				}
+
+				public void onError(Throwable throwable) {
+					subscriber.onError(throwable);
+				}
+
+				public void onComplete() {
+					subscriber.onComplete();
+					sendingDone(RequestBody.this);
+					sendRequest();
+				}
+			});
+		}
+	}
+}
@@ -31,12 +31,19 @@ import java.net.ProtocolException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * HTTP Bidirectional Protocol (HBDP) client-side connection.
  *
+ * <p>Each connection runs its requests in threads of its own, and its
+ * buffers grow without a limit. {@link NioHbdpClient} runs any amount of
+ * sessions in one thread with bounded buffers and coalesces the writes
+ * into fewer requests.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.2 (20150506)
+ * @version 1.4 (20261018)
  */
 public class HbdpConnection {
 	private URL url;
@@ -130,6 +137,20 @@ public class HbdpConnection {
 		}
 	}
 
+	/*
+	 * Wraps the response body into a decompressing stream if the server
+	 * has compressed it.
+	 */
+	static InputStream decode(InputStream input, String contentEncoding) throws IOException {
+		if (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity"))
+			return input;
+		if (contentEncoding.equalsIgnoreCase("gzip"))
+			return new GZIPInputStream(input);
+		if (contentEncoding.equalsIgnoreCase("deflate"))
+			return new InflaterInputStream(input);
+		throw new IOException("Unsupported content encoding: " + contentEncoding);
+	}
+
 	private class HbdpOutputStream extends OutputStream {
 		private byte[] bytes;
 		private int written;
@@ -343,6 +364,7 @@ public class HbdpConnection {
 
 		private void doPost(HttpURLConnection connection) throws IOException {
 			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
 			connection.setDoOutput(true);
 			connection.connect();
 			OutputStream os = connection.getOutputStream();
@@ -350,7 +372,7 @@ public class HbdpConnection {
 			os.close();
 			sendingDone();
 
-			InputStream is = connection.getInputStream();
+			InputStream is = decode(connection.getInputStream(), connection.getContentEncoding());
 			inputStream.readFrom(is);
 			connection.disconnect();
 		}
@@ -0,0 +1,185 @@
+/*
+ * HTTP Bidirectional Protocol (HBDP) Reference Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.hbdp.client;
+
+import com.henrikhedberg.util.SelectorLoop;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+/**
+ * An event-driven HTTP Bidirectional Protocol (HBDP) client that runs any
+ * amount of sessions in the thread of one {@link SelectorLoop}.
+ *
+ * <p>Each {@link NioHbdpConnection} has one persistent HTTP/1.1 connection
+ * and pipelines its requests into it, so the requests always reach the
+ * server in the order of their serial numbers. A server that handles
+ * pipelined requests, such as
+ * {@link com.henrikhedberg.hbdp.server.TcpHbdpServer}, releases a held
+ * request as soon as the next one arrives. A server that reads the next
+ * request only after the previous response, such as the one based on
+ * <code>com.sun.net.httpserver</code>, should have a short hold time.
+ *
+ * <p>The clients constructed without a loop share one loop in the process,
+ * so any amount of clients and sessions costs one thread. The buffers of a
+ * session are bounded: writing blocks while the output limit is reached,
+ * and the session stops polling while the input limit of unread data is
+ * reached. With a linger time, the writes are collected for that long into
+ * one POST request. The settings apply to the sessions opened afterwards.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.1 (20261018)
+ */
+public class NioHbdpClient {
+	private static SelectorLoop sharedSelectorLoop;
+
+	private SelectorLoop selectorLoop;
+	private volatile int outputLimit = 256 * 1024;
+	private volatile int inputLimit = 1024 * 1024;
+	private volatile long linger;
+	private InetSocketAddress address;
+	private String host;
+	private String path;
+
+	/**
+	 * Constructs a new client in the loop shared by the process.
+	 *
+	 * @param url the URL of the HBDP server
+	 * @see #getSharedSelectorLoop()
+	 */
+	public NioHbdpClient(URL url) throws IOException {
+		this(getSharedSelectorLoop(), url);
+	}
+
+	/**
+	 * Constructs a new client in the given {@link SelectorLoop}. The caller
+	 * runs the loop.
+	 *
+	 * @param selectorLoop the loop to run the connections in
+	 * @param url the URL of the HBDP server
+	 */
+	public NioHbdpClient(SelectorLoop selectorLoop, URL url) {
+		if (!url.getProtocol().equals("http"))
+			throw new IllegalArgumentException("Only http URLs are supported.");
+
+		this.selectorLoop = selectorLoop;
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		address = new InetSocketAddress(url.getHost(), port);
+		host = url.getPort() != -1 ? url.getHost() + ":" + port : url.getHost();
+		path = url.getPath().endsWith("/") ? url.getPath() : url.getPath() + "/";
+	}
+
+	/**
+	 * Returns the loop shared by the clients of the process, starting it in
+	 * a daemon thread at the first call.
+	 *
+	 * @return the shared loop
+	 */
+	public static synchronized SelectorLoop getSharedSelectorLoop() throws IOException {
+		if (sharedSelectorLoop == null) {
+			sharedSelectorLoop = new SelectorLoop();
+			Thread thread = new Thread(sharedSelectorLoop, "NioHbdpClient");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		return sharedSelectorLoop;
+	}
+
+	public SelectorLoop getSelectorLoop() {
+		return selectorLoop;
+	}
+
+	public int getOutputLimit() {
+		return outputLimit;
+	}
+
+	/**
+	 * Sets the amount of unsent bytes from which writing into the output
+	 * stream of a session blocks until a request has taken them. Writing in
+	 * the thread of the loop never blocks. The default is 256 KiB.
+	 *
+	 * @param outputLimit the limit in bytes
+	 */
+	public void setOutputLimit(int outputLimit) {
+		this.outputLimit = outputLimit;
+	}
+
+	public int getInputLimit() {
+		return inputLimit;
+	}
+
+	/**
+	 * Sets the amount of unread bytes in the input stream of a session from
+	 * which the session stops polling the server until the application has
+	 * read them. A request that carries output still brings its response.
+	 * The default is 1 MiB.
+	 *
+	 * @param inputLimit the limit in bytes
+	 */
+	public void setInputLimit(int inputLimit) {
+		this.inputLimit = inputLimit;
+	}
+
+	public long getLinger() {
+		return linger;
+	}
+
+	/**
+	 * Sets how long the writes are collected before they are sent in one
+	 * POST request. The request is sent earlier if 64 KiB or the output
+	 * limit has been collected, or the session is closed. The default is 0,
+	 * sending the writes of one round of the loop together.
+	 *
+	 * @param linger the linger time in milliseconds
+	 */
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * Opens a new HBDP session. The session is established in the thread
+	 * of the loop; data may be written into it right away.
+	 *
+	 * @return the new connection
+	 */
+	public NioHbdpConnection connect() {
+		NioHbdpConnection connection = new NioHbdpConnection(this);
+		selectorLoop.execute(new Runnable() {
+			public void run() {
+				connection.open();
+			}
+		});
+
+		return connection;
+	}
+
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	String getPath() {
+		return path;
+	}
+}
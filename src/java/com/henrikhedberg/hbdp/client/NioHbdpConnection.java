@@ -0,0 +1,641 @@
+/*
+ * HTTP Bidirectional Protocol (HBDP) Reference Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.hbdp.client;
+
+import com.henrikhedberg.util.BufferInputStream;
+import com.henrikhedberg.util.BufferOutputStream;
+import com.henrikhedberg.util.BufferPool;
+import com.henrikhedberg.util.InputStreamHandler;
+import com.henrikhedberg.util.SelectorLoop;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An HTTP Bidirectional Protocol (HBDP) session of a {@link NioHbdpClient}.
+ *
+ * <p>The streams have mostly the same semantics as in {@link HbdpConnection}:
+ * the data written into the output stream is sent in the next request, and
+ * the input stream blocks until data arrives or the session ends. Instead of
+ * reading in a thread of its own, an application may set an
+ * {@link InputStreamHandler} that is called in the thread of the loop
+ * whenever new data has arrived and when the session has ended. The handler
+ * must not block.
+ *
+ * <p>Unlike in {@link HbdpConnection}, the buffers are bounded by the limits
+ * of the {@link NioHbdpClient}. Writing blocks while the unsent output has
+ * reached the output limit, except in the thread of the loop, and no poll
+ * is sent while the unread input has reached the input limit.
+ *
+ * <p>Everything except the streams, {@link #close()} and the getters runs in
+ * the thread of the loop. The writes made in one round of the loop, or
+ * within the linger time of the client, are sent in one request.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.1 (20261018)
+ */
+public class NioHbdpConnection {
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+	private static final int FLUSH_SIZE = 64 * 1024;
+
+	private NioHbdpClient client;
+	private SelectorLoop selectorLoop;
+	private BufferOutputStream outputStream = new BufferOutputStream(256);
+	private BufferInputStream inputStream = new BufferInputStream(4096);
+	private volatile InputStreamHandler inputStreamHandler;
+	private volatile String identifier;
+	private volatile IOException exception;
+	private volatile boolean finished;
+	private volatile long posts;
+	private int outputLimit;
+	private int inputLimit;
+	private long linger;
+	private AtomicBoolean sendScheduled = new AtomicBoolean();
+	private Runnable sendTask = new Runnable() {
+		public void run() {
+			sendScheduled.set(false);
+			send();
+		}
+	};
+	private Runnable lingerTask = new Runnable() {
+		public void run() {
+			send();
+		}
+	};
+
+	/* In the thread of the loop */
+	private SocketChannel channel;
+	private BufferPool bufferPool;
+	private ByteBuffer buffer;
+	private int scanned;
+	private int required;
+	private long serial;
+	private int outstanding;
+	private boolean closing;
+	private boolean deleting;
+	private boolean lingering;
+	private long lingerDeadline;
+	private ArrayDeque<ByteBuffer> writeBuffers = new ArrayDeque<>();
+	private SelectorLoop.WritableHandler writableHandler;
+	private RequestBuffer requestBuffer = new RequestBuffer();
+	private ResponseBody responseBody = new ResponseBody();
+
+	NioHbdpConnection(NioHbdpClient client) {
+		this.client = client;
+		selectorLoop = client.getSelectorLoop();
+		bufferPool = selectorLoop.getBufferPool();
+		outputLimit = client.getOutputLimit();
+		inputLimit = client.getInputLimit();
+		linger = client.getLinger();
+
+		outputStream.setHandler(new BufferOutputStream.Handler() {
+			/* Called with the lock of the output stream held. */
+			public void handleWrite(BufferOutputStream outputStream) throws IOException {
+				IOException exception = NioHbdpConnection.this.exception;
+				if (exception != null)
+					throw exception;
+				scheduleSend();
+				while (outputStream.available() >= outputLimit && !finished && !selectorLoop.isLoopThread()) {
+					try {
+						outputStream.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+			}
+
+			public void handleClose(BufferOutputStream outputStream) {
+				close();
+			}
+		});
+		inputStream.setHandler(new BufferInputStream.Handler() {
+			public void handleRead(BufferInputStream inputStream) {
+				scheduleSend();
+			}
+
+			public void handleClose(BufferInputStream inputStream) {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Returns the output stream for writing data to the HBDP server.
+	 *
+	 * <p>Closing the output stream closes the connection and thus, also the input stream.
+	 *
+	 * @return the output stream for writing data
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * Returns the input stream for reading data from the HBDP server.
+	 *
+	 * <p>Closing the input stream closes the connection and thus, also the output stream.
+	 *
+	 * @return the input stream for reading data
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * Sets a handler that is called in the thread of the loop whenever new
+	 * data has been read into the input stream and when the session has
+	 * ended.
+	 *
+	 * @param inputStreamHandler the handler or <code>null</code>
+	 */
+	public void setInputStreamHandler(InputStreamHandler inputStreamHandler) {
+		this.inputStreamHandler = inputStreamHandler;
+	}
+
+	/**
+	 * Returns the session identifier given by the server.
+	 *
+	 * @return the identifier or <code>null</code> if the session has not been established yet
+	 */
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * Returns the exception that ended the session, if any.
+	 *
+	 * @return the exception or <code>null</code>
+	 */
+	public IOException getException() {
+		return exception;
+	}
+
+	/**
+	 * Returns the amount of POST requests sent, including the polls without
+	 * data.
+	 *
+	 * @return amount of POST requests
+	 */
+	public long getPosts() {
+		return posts;
+	}
+
+	/**
+	 * Returns whether the session has ended either by closing or because
+	 * of an exception.
+	 *
+	 * @return whether the session has ended
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Closes the connection and thus, also the input and output streams.
+	 * The session is deleted after the pending output has been sent.
+	 */
+	public void close() {
+		selectorLoop.execute(new Runnable() {
+			public void run() {
+				closing = true;
+				send();
+			}
+		});
+	}
+
+	void open() {
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			if (channel.connect(client.getAddress())) {
+				connected();
+			} else {
+				selectorLoop.registerConnectableHandler(channel, new SelectorLoop.ConnectableHandler() {
+					public void handleConnectable(SelectableChannel selectableChannel) {
+						try {
+							channel.finishConnect();
+							selectorLoop.registerConnectableHandler(channel, null);
+							connected();
+						} catch (IOException e) {
+							fail(e);
+						}
+					}
+				});
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void connected() throws IOException {
+		selectorLoop.registerReadableHandler(channel, new SelectorLoop.ReadableHandler() {
+			public void handleReadable(SelectableChannel selectableChannel) {
+				try {
+					read();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+
+		requestBuffer.reset();
+		requestBuffer.ascii("GET ").ascii(client.getPath()).ascii(" HTTP/1.1\r\nHost: ").ascii(client.getHost()).ascii("\r\n\r\n");
+		outstanding++;
+		write(requestBuffer.toByteBuffer());
+	}
+
+	private void scheduleSend() {
+		if (sendScheduled.compareAndSet(false, true))
+			selectorLoop.execute(sendTask);
+	}
+
+	/*
+	 * Sends the next request if the previous one has been written and there
+	 * is either output whose linger time has passed, no request waiting for
+	 * a response and room for more input, or a pending close.
+	 */
+	private void send() {
+		if (identifier == null || finished || deleting || !writeBuffers.isEmpty())
+			return;
+
+		try {
+			synchronized (outputStream) {
+				int available = outputStream.available();
+				if (available == 0 && !closing && (outstanding > 0 || unread() >= inputLimit))
+					return;
+				if (available > 0 && !closing && linger > 0 && available < Math.min(FLUSH_SIZE, outputLimit)) {
+					if (!lingering) {
+						lingering = true;
+						lingerDeadline = System.nanoTime() + linger * 1000000;
+						selectorLoop.schedule(lingerTask, linger);
+						return;
+					}
+					if (System.nanoTime() - lingerDeadline < 0)
+						return;
+				}
+				lingering = false;
+
+				requestBuffer.reset();
+				if (available == 0 && closing) {
+					requestBuffer.ascii("DELETE ");
+					deleting = true;
+				} else {
+					requestBuffer.ascii("POST ");
+					posts++;
+				}
+				requestBuffer.ascii(client.getPath()).ascii(identifier).ascii("/").decimal(serial++)
+				             .ascii(" HTTP/1.1\r\nHost: ").ascii(client.getHost());
+				if (!deleting) {
+					requestBuffer.ascii("\r\nContent-Length: ").decimal(available).ascii("\r\n\r\n");
+					outputStream.writeTo(requestBuffer);
+				} else {
+					requestBuffer.ascii("\r\n\r\n");
+				}
+			}
+			outstanding++;
+			write(requestBuffer.toByteBuffer());
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private int unread() {
+		try {
+			return inputStream.available();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private void write(ByteBuffer byteBuffer) throws IOException {
+		if (writeBuffers.isEmpty()) {
+			channel.write(byteBuffer);
+			if (!byteBuffer.hasRemaining())
+				return;
+
+			if (writableHandler == null)
+				writableHandler = new WritableHandler();
+			selectorLoop.registerWritableHandler(channel, writableHandler);
+		}
+
+		writeBuffers.add(byteBuffer);
+	}
+
+	private void read() throws IOException {
+		if (buffer == null)
+			buffer = bufferPool.acquire();
+		if (channel.read(buffer) == -1) {
+			fail(new EOFException("The server closed the connection."));
+			return;
+		}
+
+		buffer.flip();
+		boolean received = false;
+		while (!finished && parseResponse())
+			received = true;
+		if (finished)
+			return;
+
+		buffer.compact();
+		if (buffer.position() == 0)
+			releaseBuffer();
+		else if (required > buffer.capacity()) {
+			buffer.flip();
+			ByteBuffer larger = ByteBuffer.allocate(required);
+			larger.put(buffer);
+			bufferPool.release(buffer);
+			buffer = larger;
+		}
+
+		if (received) {
+			notifyHandler();
+			send();
+		}
+	}
+
+	private boolean parseResponse() throws IOException {
+		int start = buffer.position();
+		int end = buffer.limit();
+
+		int headerEnd = -1;
+		for (int i = start + scanned; i + 3 < end; i++) {
+			if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+				headerEnd = i;
+				break;
+			}
+		}
+		if (headerEnd == -1) {
+			scanned = Math.max(0, end - start - 3);
+			if (end - start == buffer.capacity())
+				throw new IOException("Response header too large.");
+			return false;
+		}
+
+		if (headerEnd - start < 12 || !startsWith(start, "HTTP/1."))
+			throw new IOException("Malformed status line.");
+		int code = (int)decimal(start + 9, start + 12);
+		if (code < 0)
+			throw new IOException("Malformed status code.");
+
+		long contentLength = 0;
+		int lineStart = indexOf(start, headerEnd, '\r') + 2;
+		while (lineStart > 1 && lineStart < headerEnd) {
+			int eol = indexOf(lineStart, headerEnd, '\r');
+			if (eol == -1)
+				eol = headerEnd;
+			int colon = indexOf(lineStart, eol, ':');
+			if (colon != -1) {
+				int valueStart = colon + 1;
+				while (valueStart < eol && buffer.get(valueStart) == ' ')
+					valueStart++;
+				if (equalsIgnoreCase(lineStart, colon, "Content-Length")) {
+					contentLength = decimal(valueStart, eol);
+					if (contentLength < 0)
+						throw new IOException("Malformed Content-Length.");
+				} else if (equalsIgnoreCase(lineStart, colon, "Transfer-Encoding")) {
+					throw new IOException("Only responses with Content-Length are supported.");
+				}
+			}
+			lineStart = eol + 2;
+		}
+
+		int headerLength = headerEnd + 4 - start;
+		if (headerLength + contentLength > Integer.MAX_VALUE - start)
+			throw new IOException("Response too large.");
+		int total = headerLength + (int)contentLength;
+		if (end - start < total) {
+			scanned = headerEnd - start;
+			required = total;
+			return false;
+		}
+		scanned = 0;
+		required = 0;
+
+		int bodyStart = start + headerLength;
+		int bodyEnd = start + total;
+		buffer.position(bodyEnd);
+		outstanding--;
+
+		if (code != 200)
+			throw new IOException("HBDP request failed: " + code + " " + string(bodyStart, bodyEnd));
+
+		if (identifier == null) {
+			if (bodyStart == bodyEnd)
+				throw new IOException("Could not establish a HBDP session.");
+			identifier = string(bodyStart, bodyEnd);
+		} else if (deleting && outstanding == 0) {
+			finish();
+			return false;
+		} else if (bodyStart < bodyEnd) {
+			responseBody.reset(bodyStart, bodyEnd);
+			inputStream.readFrom(responseBody);
+		}
+
+		return true;
+	}
+
+	private void fail(IOException e) {
+		if (finished)
+			return;
+		exception = e;
+		finish();
+	}
+
+	private void finish() {
+		finished = true;
+		synchronized (outputStream) {
+			outputStream.notifyAll();
+		}
+		releaseBuffer();
+		writeBuffers.clear();
+		if (channel != null) {
+			try {
+				selectorLoop.registerReadableHandler(channel, null);
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+		try {
+			inputStream.end();
+		} catch (IOException e) {
+		}
+		notifyHandler();
+	}
+
+	private void notifyHandler() {
+		InputStreamHandler handler = inputStreamHandler;
+		if (handler != null) {
+			try {
+				handler.handle(inputStream);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	}
+
+	private void releaseBuffer() {
+		if (buffer != null) {
+			bufferPool.release(buffer);
+			buffer = null;
+		}
+		scanned = 0;
+		required = 0;
+	}
+
+	private int indexOf(int from, int to, char c) {
+		for (int i = from; i < to; i++)
+			if (buffer.get(i) == c)
+				return i;
+		return -1;
+	}
+
+	private boolean startsWith(int from, String string) {
+		for (int i = 0; i < string.length(); i++)
+			if (buffer.get(from + i) != string.charAt(i))
+				return false;
+		return true;
+	}
+
+	private boolean equalsIgnoreCase(int from, int to, String string) {
+		if (to - from != string.length())
+			return false;
+		for (int i = 0; i < string.length(); i++)
+			if (Character.toLowerCase((char)buffer.get(from + i)) != Character.toLowerCase(string.charAt(i)))
+				return false;
+		return true;
+	}
+
+	private long decimal(int from, int to) {
+		while (to > from && buffer.get(to - 1) == ' ')
+			to--;
+		if (from == to || to - from > 18)
+			return -1;
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private String string(int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = from; i < to; i++)
+			bytes[i - from] = buffer.get(i);
+		return new String(bytes, ASCII);
+	}
+
+	private class WritableHandler implements SelectorLoop.WritableHandler {
+		public void handleWritable(SelectableChannel selectableChannel) {
+			try {
+				ByteBuffer byteBuffer = writeBuffers.element();
+				channel.write(byteBuffer);
+				if (!byteBuffer.hasRemaining()) {
+					writeBuffers.remove();
+					if (writeBuffers.isEmpty()) {
+						selectorLoop.registerWritableHandler(channel, null);
+						send();
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	}
+
+	/*
+	 * The request is built into a reused array that is written directly,
+	 * because the next request is built only after the previous one has
+	 * been written.
+	 */
+	private static class RequestBuffer extends ByteArrayOutputStream {
+		RequestBuffer() {
+			super(256);
+		}
+
+		RequestBuffer ascii(String string) {
+			int length = string.length();
+			for (int i = 0; i < length; i++)
+				write(string.charAt(i));
+			return this;
+		}
+
+		RequestBuffer decimal(long value) {
+			if (value >= 10)
+				decimal(value / 10);
+			write((int)('0' + value % 10));
+			return this;
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	private class ResponseBody extends InputStream {
+		private int position;
+		private int limit;
+
+		void reset(int position, int limit) {
+			this.position = position;
+			this.limit = limit;
+		}
+
+		@Override
+		public int available() {
+			return limit - position;
+		}
+
+		@Override
+		public int read() {
+			if (position >= limit)
+				return -1;
+			return buffer.get(position++) & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) {
+			if (length == 0)
+				return 0;
+			if (position >= limit)
+				return -1;
+			int give = Math.min(length, limit - position);
+			int saved = buffer.position();
+			buffer.position(position);
+			buffer.get(b, offset, give);
+			buffer.position(saved);
+			position += give;
+			return give;
+		}
+	}
+}
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
 
 /**
  * An example HBDP server that simply echoes all received bytes back to the
@@ -42,8 +43,10 @@ public class EchoHbdpServer implements HbdpConnection.Handler {
 	public EchoHbdpServer(int port) throws IOException {
 		HttpServer server = HttpServer.create(new InetSocketAddress(port), 10);
 		HttpContext context = server.createContext("/");
-		new HbdpServer(context, this);
-		server.setExecutor(null);
+		HbdpServer hbdpServer = new HbdpServer(context, this);
+		ExecutorService executor = HbdpServer.createExecutor(System.getProperty("hbdp.threads"));
+		hbdpServer.setOrderTimeout(Long.getLong("hbdp.orderTimeout", executor != null ? 1000 : 0));
+		server.setExecutor(executor);
 		server.start();	
 	}
 
@@ -21,13 +21,17 @@
 package com.henrikhedberg.hbdp.server;
 
 import com.henrikhedberg.util.InputStreamHandler;
+import com.henrikhedberg.util.Log;
 import com.henrikhedberg.util.BufferInputStream;
 import com.henrikhedberg.util.BufferOutputStream;
-import com.sun.net.httpserver.*;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * HTTP Bidirectional Protocol (HBDP) server-side connection.
@@ -39,30 +43,56 @@ import java.net.InetAddress;
  * method. Optionally, it can also register a {@link InputStreamHandler}, which
  * is called when the {@link InputStream} has new bytes available.
  *
+ * <p>The requests of one session are handled one at a time in the order of
+ * their serial numbers, but requests of different sessions may be handled
+ * in parallel. The {@link OutputStream} may be written from any thread.
+ * When the HTTP engine is a {@link com.henrikhedberg.util.SelectorLoop},
+ * given as the timer executor of the {@link HbdpServer}, output written in
+ * other threads is sent in the thread of the loop.
+ *
+ * <p>Once the client has opened a stream, the output is written into the
+ * open stream and the requests are answered without holding them. Output
+ * produced while no stream is open waits for the next stream, so that it
+ * arrives in order.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20150503)
+ * @version 1.6 (20261018)
  */
 public class HbdpConnection {
 	private String identifier;
-	private InputStreamHandler inputStreamHandler;
+	private volatile InputStreamHandler inputStreamHandler;
 	private long currentSerial;
-	private HttpExchange currentExchange;
+	private HbdpExchange currentExchange;
+	private HbdpExchange streamExchange;
+	private OutputStream streamOutputStream;
+	private boolean streaming;
 	private boolean handling;
 	private BufferInputStream connectionInputStream;
 	private BufferOutputStream connectionOutputStream;
-	private boolean closing;
+	private volatile boolean closing;
+	private volatile long lastAccess = System.currentTimeMillis();
+	private HbdpServer server;
+	private long batchDeadline;
+	private long batchGeneration = 1;
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition serialChanged = lock.newCondition();
+	private AtomicBoolean writeScheduled = new AtomicBoolean();
 	
-	HbdpConnection(String identifier) {
+	HbdpConnection(String identifier, HbdpServer server) {
 		this.identifier = identifier;
-		connectionInputStream = new BufferInputStream(1024);
+		this.server = server;
+		connectionInputStream = new BufferInputStream(1024, server.getInputLimit());
 		connectionOutputStream = new BufferOutputStream(1024);
 		connectionOutputStream.setHandler(new BufferOutputStream.Handler() {
 			public void handleClose(BufferOutputStream outputStream) throws IOException {
 				closing = true;
 			}
 			public void handleWrite(BufferOutputStream outputStream) throws IOException {
-				if (!handling && currentExchange != null)
-					sendOutput();
+				Executor executor = server.getEngineExecutor();
+				if (executor == null)
+					flushOutput(0);
+				else if (writeScheduled.compareAndSet(false, true))
+					executor.execute(writeTask);
 			}
 		});
 	}
@@ -98,6 +128,20 @@ public class HbdpConnection {
 		return connectionOutputStream;
 	}
 
+	/**
+	 * Returns the amount of bytes written to the {@link OutputStream} but
+	 * not yet sent to the HBDP client.
+	 *
+	 * @return bytes waiting for a response
+	 */
+	public int getPendingOutput() {
+		try {
+			return connectionOutputStream.available();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
 	/**
 	 * Returns the session identifier for this connection.
 	 *
@@ -107,52 +151,350 @@ public class HbdpConnection {
 		return identifier;
 	}
 
-	boolean handle(HttpExchange exchange, long serial) throws HbdpException, IOException {
-		if (currentSerial != serial)
-			throw new HbdpException(404, "Wrong serial number: expected " + currentSerial + ", got " + serial + ".");
-		currentSerial++;
+	/**
+	 * Runs the given task holding the lock of the session, so that it does
+	 * not run concurrently with the {@link InputStreamHandler}. The task is
+	 * passed to the loop of the HTTP engine like the output, see above.
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(final Runnable task) {
+		Runnable lockedTask = new Runnable() {
+			public void run() {
+				lock.lock();
+				try {
+					task.run();
+				} finally {
+					lock.unlock();
+				}
+			}
+		};
+		Executor executor = server.getEngineExecutor();
+		if (executor != null)
+			executor.execute(lockedTask);
+		else
+			lockedTask.run();
+	}
 
-		if (currentExchange != null) {
-			currentExchange.sendResponseHeaders(200, 0);
-			currentExchange.getResponseBody().close();
-		}
-		currentExchange = exchange;
-
-		InputStream httpInputStream = exchange.getRequestBody();
-		log(currentExchange.getRemoteAddress().getAddress(), "Read " + connectionInputStream.readFrom(httpInputStream) + " bytes");
-		httpInputStream.close();
-		
-		if (inputStreamHandler != null && connectionInputStream.available() > 0) {
-			handling = true;
-			int available = connectionInputStream.available();
-			do {
-				inputStreamHandler.handle(connectionInputStream);
-				int stillAvailable = connectionInputStream.available();
-				if (stillAvailable == available)
-					break;
-				available = stillAvailable;
-			} while (available > 0);
-			handling = false;
+	boolean handle(HbdpExchange exchange, long serial) throws HbdpException, IOException {
+		lastAccess = System.currentTimeMillis();
+		lock.lock();
+		try {
+			waitForSerial(serial);
+
+			/* Rejected before consuming the serial, so that the request may be repeated. */
+			long length = exchange.getRequestLength();
+			if (length > connectionInputStream.getSpace())
+				throw new HbdpException(413, "Request body does not fit into the input buffer.");
+
+			currentSerial++;
+			serialChanged.signalAll();
+
+			if (currentExchange != null)
+				currentExchange.sendResponseHeaders(200, null, 0).close();
+			currentExchange = exchange;
+
+			InputStream httpInputStream = exchange.getRequestBody();
+			int read = connectionInputStream.readFrom(httpInputStream);
+			if (connectionInputStream.getSpace() == 0 && httpInputStream.read() != -1) {
+				/* The length was not known and the input is now incomplete. */
+				httpInputStream.close();
+				currentExchange = null;
+				closing = true;
+				throw new HbdpException(413, "Request body does not fit into the input buffer.");
+			}
+			Log.log(Log.Level.DEBUG, identifier, "Hbdp", "Read {} bytes  ({})", read, currentExchange.getRemoteAddress());
+			httpInputStream.close();
+			
+			if (inputStreamHandler != null && connectionInputStream.available() > 0) {
+				handling = true;
+				try {
+					int available = connectionInputStream.available();
+					do {
+						inputStreamHandler.handle(connectionInputStream);
+						int stillAvailable = connectionInputStream.available();
+						if (stillAvailable == available)
+							break;
+						available = stillAvailable;
+					} while (available > 0);
+				} finally {
+					handling = false;
+				}
+			}
+			
+			if (connectionOutputStream.available() > 0)
+				sendOutput();
+			if (streaming && currentExchange != null) {
+				currentExchange.sendResponseHeaders(200, null, 0).close();
+				currentExchange = null;
+			}
+		} finally {
+			lock.unlock();
 		}
-		
-		if (connectionOutputStream.available() > 0)
-			sendOutput();
+
+		/* Output written by other threads while this one was holding the lock. */
+		flushOutput(0);
 
 		return !closing;
 	}
 	
+	/*
+	 * Opens a stream, replacing the previous one. A request held from the
+	 * time before streaming is answered, and the pending output is sent
+	 * into the new stream.
+	 */
+	void stream(HbdpExchange exchange) throws IOException {
+		lastAccess = System.currentTimeMillis();
+		lock.lock();
+		try {
+			endStream();
+			streaming = true;
+			if (currentExchange != null) {
+				currentExchange.sendResponseHeaders(200, null, 0).close();
+				currentExchange = null;
+			}
+			streamOutputStream = exchange.sendResponseHeaders(200, "application/octet-stream", null, -1);
+			streamExchange = exchange;
+			Log.log(Log.Level.DEBUG, identifier, "Hbdp", "Stream opened  ({})", exchange.getRemoteAddress());
+			if (connectionOutputStream.available() > 0 && !handling)
+				sendOutput();
+		} finally {
+			lock.unlock();
+		}
+
+		flushOutput(0);
+	}
+
+	void disconnect() throws IOException {
+		lock.lock();
+		try {
+			endStream();
+			if (currentExchange != null) {
+				currentExchange.sendResponseHeaders(200, null, 0).close();
+				currentExchange = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	/*
+	 * Answers the request held for output, so that a live client sends
+	 * a new one. Returns false if there was no request to answer.
+	 */
+	boolean releaseExchange() throws IOException {
+		lock.lock();
+		try {
+			if (handling)
+				return false;
+			if (streamExchange != null) {
+				endStream();
+				return true;
+			}
+			if (currentExchange == null)
+				return false;
+			if (connectionOutputStream.available() > 0) {
+				sendOutput();
+			} else {
+				currentExchange.sendResponseHeaders(200, null, 0).close();
+				currentExchange = null;
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Ends an abandoned session. The input stream is closed and the
+	 * handler is called once more, so that it notices the end of the
+	 * session and releases its resources.
+	 */
+	void expire() throws IOException {
+		lock.lock();
+		try {
+			closing = true;
+			endStream();
+			if (currentExchange != null) {
+				currentExchange.sendResponseHeaders(200, null, 0).close();
+				currentExchange = null;
+			}
+			connectionInputStream.close();
+			if (inputStreamHandler != null) {
+				handling = true;
+				try {
+					inputStreamHandler.handle(connectionInputStream);
+				} finally {
+					handling = false;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * With a multi-threaded HTTP server, the requests of one session may
+	 * overtake each other. A request waits for the previous ones at most
+	 * the order timeout.
+	 */
+	private void waitForSerial(long serial) throws HbdpException {
+		long orderTimeout = server.getOrderTimeout();
+		if (serial > currentSerial && orderTimeout > 0) {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(orderTimeout);
+			try {
+				while (serial > currentSerial && nanos > 0)
+					nanos = serialChanged.awaitNanos(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (currentSerial != serial)
+			throw new HbdpException(404, "Wrong serial number: expected " + currentSerial + ", got " + serial + ".");
+	}
+
+	/*
+	 * Any thread may write into the output stream, including the ones
+	 * handling other sessions. The writer never blocks on the lock: if
+	 * the lock is taken, its holder flushes the output after releasing it.
+	 *
+	 * With a batch window, the output written first starts the window and
+	 * a timer flushes everything written within it. Sending the output
+	 * ends the window, and the timer of an ended window is then treated
+	 * like any other call, so it cannot flush a later window early.
+	 *
+	 * The generation is that of the window whose timer calls the method,
+	 * or 0 for the other calls.
+	 */
+	private void flushOutput(long generation) throws IOException {
+		while (connectionOutputStream.available() > 0 && lock.tryLock()) {
+			try {
+				if (handling || (currentExchange == null && streamExchange == null))
+					return;
+				if (generation != batchGeneration)
+					generation = 0;
+				long batchWindow = server.getBatchWindow();
+				if (batchWindow > 0) {
+					long now = System.currentTimeMillis();
+					if (batchDeadline == 0) {
+						batchDeadline = now + batchWindow;
+						server.schedule(new FlushTask(batchGeneration), batchWindow);
+						return;
+					}
+					if (now < batchDeadline && generation == 0)
+						return;
+				}
+				sendOutput();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
 	private void sendOutput() throws IOException {
-		OutputStream httpOutputStream = currentExchange.getResponseBody();
-		currentExchange.sendResponseHeaders(200, connectionOutputStream.available());
-		log(currentExchange.getRemoteAddress().getAddress(), "Wrote " + connectionOutputStream.writeTo(httpOutputStream) + " bytes");
-		httpOutputStream.close();
-		currentExchange = null;
+		if (streaming) {
+			if (streamExchange != null)
+				sendStream();
+			return;
+		}
+
+		synchronized (connectionOutputStream) {
+			int available = connectionOutputStream.available();
+			String contentEncoding = server.getContentEncoding(currentExchange, available);
+			if (contentEncoding != null) {
+				long start = System.nanoTime();
+				ResponseCompressor compressor = server.acquireCompressor();
+				try {
+					compressor.reset(contentEncoding);
+					connectionOutputStream.writeTo(compressor);
+					compressor.finish();
+					server.compressed(available, compressor.getLength(), System.nanoTime() - start);
+
+					OutputStream httpOutputStream = currentExchange.sendResponseHeaders(200, null, contentEncoding, compressor.getLength());
+					httpOutputStream.write(compressor.getBytes(), 0, compressor.getLength());
+					Log.log(Log.Level.DEBUG, identifier, "Hbdp", "Wrote {} bytes as {} bytes of {}", available, compressor.getLength(), contentEncoding);
+					httpOutputStream.close();
+				} finally {
+					server.releaseCompressor(compressor);
+				}
+			} else {
+				OutputStream httpOutputStream = currentExchange.sendResponseHeaders(200, null, available);
+				int written = connectionOutputStream.writeTo(httpOutputStream);
+				Log.log(Log.Level.DEBUG, identifier, "Hbdp", "Wrote {} bytes  ({})", written, currentExchange.getRemoteAddress());
+				httpOutputStream.close();
+			}
+			currentExchange = null;
+			endBatchWindow();
+		}
+	}
+
+	/*
+	 * A stream that cannot be written is dropped, and the rest of the
+	 * output waits for the next stream.
+	 */
+	private void sendStream() throws IOException {
+		synchronized (connectionOutputStream) {
+			endBatchWindow();
+			try {
+				int written = connectionOutputStream.writeTo(streamOutputStream);
+				streamOutputStream.flush();
+				Log.log(Log.Level.DEBUG, identifier, "Hbdp", "Streamed {} bytes  ({})", written, streamExchange.getRemoteAddress());
+			} catch (IOException exception) {
+				Log.log(Log.Level.WARNING, identifier, "Hbdp", "Stream failed: {}", exception.getMessage());
+				streamExchange = null;
+				streamOutputStream = null;
+			}
+		}
+	}
+
+	private void endBatchWindow() {
+		batchDeadline = 0;
+		batchGeneration++;
+	}
+
+	private void endStream() {
+		if (streamExchange == null)
+			return;
+
+		try {
+			streamOutputStream.close();
+		} catch (IOException exception) {
+		}
+		streamExchange = null;
+		streamOutputStream = null;
 	}
 
-	private void log(InetAddress address, String detail) {
-		long seconds = System.currentTimeMillis() / 1000;
-		System.out.println(seconds + "  " + identifier + "  Hbdp  " + detail + "  (" + address.getHostAddress() + ")");
+	private Runnable writeTask = new Runnable() {
+		public void run() {
+			writeScheduled.set(false);
+			try {
+				flushOutput(0);
+			} catch (IOException exception) {
+				Log.log(Log.Level.WARNING, identifier, "Hbdp", "IOException: {}", exception.getMessage());
+			}
+		}
+	};
+
+	private class FlushTask implements Runnable {
+		private long generation;
+
+		FlushTask(long generation) {
+			this.generation = generation;
+		}
+
+		public void run() {
+			try {
+				flushOutput(generation);
+			} catch (IOException exception) {
+				Log.log(Log.Level.WARNING, identifier, "Hbdp", "IOException: {}", exception.getMessage());
+			}
+		}
 	}
+
 	
 	/**
 	 * An interface to notify a handler that a new HBDP connection (session)
@@ -0,0 +1,124 @@
+
+/*
+ * HTTP Bidirectional Protocol (HBDP) Reference Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.hbdp.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * A single HTTP request and its response as seen by the {@link HbdpServer}.
+ *
+ * <p>Hides the HTTP engine: the exchange may come from the
+ * <code>com.sun.net.httpserver</code> package or from the {@link TcpHbdpServer}.
+ * The response may be sent later from an other call than the one handling
+ * the request, which is how the HBDP long polling works.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.1 (20261018)
+ */
+abstract class HbdpExchange {
+	/**
+	 * Returns the address of the HTTP client.
+	 *
+	 * @return client address
+	 */
+	abstract InetAddress getRemoteAddress();
+
+	/**
+	 * Returns the HTTP request method, such as <code>GET</code>.
+	 *
+	 * @return request method
+	 */
+	abstract String getRequestMethod();
+
+	/**
+	 * Returns the path of the request URI without the query.
+	 *
+	 * @return request path
+	 */
+	abstract String getRequestPath();
+
+	/**
+	 * Returns the length of the request body, or -1 if it is not known
+	 * before reading the body.
+	 *
+	 * @return body length in bytes or -1
+	 */
+	abstract long getRequestLength();
+
+	/**
+	 * Returns the value of the Accept-Encoding request header.
+	 *
+	 * @return the accepted content codings or <code>null</code>
+	 */
+	abstract String getAcceptEncoding();
+
+	/**
+	 * Returns the request body. The stream must be read before the
+	 * call handling the request returns.
+	 *
+	 * @return request body
+	 */
+	abstract InputStream getRequestBody();
+
+	/**
+	 * Starts the response. Exactly <code>length</code> bytes must be written
+	 * into the returned stream, and it must be closed to finish the response.
+	 *
+	 * <p>If the length is -1, the body is sent with the chunked transfer
+	 * coding until the stream is closed. The written bytes are sent when the
+	 * stream is flushed.
+	 *
+	 * @param code HTTP status code
+	 * @param contentType the value of the Content-Type header or null
+	 * @param contentEncoding the value of the Content-Encoding header or null
+	 * @param length the length of the body, or -1 if it is streamed
+	 * @return a stream for the response body
+	 */
+	abstract OutputStream sendResponseHeaders(int code, String contentType, String contentEncoding, int length) throws IOException;
+
+	/**
+	 * Starts a response without a content coding.
+	 *
+	 * @param code HTTP status code
+	 * @param contentType the value of the Content-Type header or null
+	 * @param length the length of the body
+	 * @return a stream for the response body
+	 */
+	OutputStream sendResponseHeaders(int code, String contentType, int length) throws IOException {
+		return sendResponseHeaders(code, contentType, null, length);
+	}
+
+	/**
+	 * Sends a complete response with the given body.
+	 *
+	 * @param code HTTP status code
+	 * @param contentType the value of the Content-Type header or null
+	 * @param body the response body
+	 */
+	void sendResponse(int code, String contentType, byte[] body) throws IOException {
+		OutputStream output = sendResponseHeaders(code, contentType, body.length);
+		output.write(body);
+		output.close();
+	}
+}
@@ -21,33 +21,101 @@
 package com.henrikhedberg.hbdp.server;
 
 import com.henrikhedberg.util.InputStreamHandler;
+import com.henrikhedberg.util.Log;
+import com.henrikhedberg.util.SelectorLoop;
+import com.henrikhedberg.util.TimerWheel;
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.lang.reflect.Method;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.net.InetAddress;
 
 /**
  * HTTP Bidirectional Protocol (HBDP) server.
  *
- * <p>The implementation relies on the <code>com.sun.new.httpserver</code>
- * package.
+ * <p>The server is either installed into an {@link HttpContext} of the
+ * <code>com.sun.net.httpserver</code> package, or it is driven by the
+ * {@link TcpHbdpServer}, which implements HTTP on top of a
+ * {@link com.henrikhedberg.util.SelectorLoop}.
+ *
+ * <p>The server may be called from several threads at once, for example
+ * when the {@link HttpContext} belongs to an
+ * {@link com.sun.net.httpserver.HttpServer} with an executor created by
+ * {@link #createExecutor(String)}. Requests of different sessions are
+ * handled in parallel, while the requests of one session are serialised
+ * by its {@link HbdpConnection}.
+ *
+ * <p>Sessions whose client has disappeared without deleting them are
+ * expired after an idle timeout, see {@link #setIdleTimeout(long)}. The
+ * requests held for output and the output itself may be delayed to reduce
+ * the amount of requests, see {@link #setHoldTime(long)} and
+ * {@link #setBatchWindow(long)}.
+ *
+ * <p>A client that can read a response as it arrives may open a stream with
+ * <code>GET /&lt;identifier&gt;/stream</code>. The response is kept open with
+ * the chunked transfer coding and all output of the session is written into
+ * it as soon as it is produced. The requests are then answered immediately
+ * and only carry input. The stream is ended like a held request after the
+ * hold time, and the client opens a new one.
  *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20150503)
+ * @version 1.4 (20261018)
  */
 public class HbdpServer {
-	private HttpContext httpContext;
+	public static final int MAX_SHARDS = 0x10000;
+
+	/**
+	 * The last path segment of a streaming request, which is sent with the
+	 * GET method in place of a serial number.
+	 */
+	public static final String STREAM = "stream";
+
+	private static final int IDENTIFIER_LENGTH = 32;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final int MAX_POOLED_COMPRESSORS = 16;
+
 	private String contextPath;
 	private HbdpConnection.Handler connectionHandler;
-	private HashMap<String, HbdpConnection> connections = new HashMap<>();
-	private Random random = new Random();
+	private volatile Shard[] shards = { new Shard(0, null) };
+	private AtomicInteger nextShard = new AtomicInteger();
+	private volatile long orderTimeout;
+	private volatile long batchWindow;
+	private volatile int inputLimit = 1024 * 1024;
+	private volatile int compressionThreshold = 1024;
+	private ConcurrentLinkedQueue<ResponseCompressor> compressors = new ConcurrentLinkedQueue<>();
+	private AtomicInteger pooledCompressors = new AtomicInteger();
+	private LongAdder polls = new LongAdder();
+	private LongAdder compressedResponses = new LongAdder();
+	private LongAdder uncompressedBytes = new LongAdder();
+	private LongAdder compressedBytes = new LongAdder();
+	private LongAdder compressionNanos = new LongAdder();
+	private long idleTimeout;
+	private long holdTime;
+	private volatile Executor timerExecutor;
+	private boolean loopConfined;
+	private TimerWheel timerWheel;
+	private Timer timer;
+	private TimerTask timerTask;
 	
 	/**
 	 * Instantiates a new {@link HbdpServer} within the given {@link HttpContext}.
@@ -57,115 +125,655 @@ public class HbdpServer {
 	 * @param connectionHandler a handler that is called for every new connection
 	 */
 	public HbdpServer(HttpContext httpContext, HbdpConnection.Handler connectionHandler) {
-		this.httpContext = httpContext;
-		contextPath = httpContext.getPath();;
-		this.connectionHandler = connectionHandler;
+		this(httpContext.getPath(), connectionHandler);
 		
 		httpContext.setHandler(new HttpHandler() {
 			public void handle(HttpExchange exchange) throws IOException {
-				try {
-					handleHbdp(exchange);
-				} catch (HbdpException exception) {
-					log(exchange.getRemoteAddress().getAddress(), null, "HbdpException: " + exception.getMessage());
-					sendResponse(exchange, exception.getCode(), exception.getMessage());
-				} catch (IOException exception) {
-					log(exchange.getRemoteAddress().getAddress(), null, "IOException: " + exception.getMessage());
-					sendResponse(exchange, 500, exception.toString());
-/*				} catch (Exception exception) {
-					log(exchange.getRemoteAddress().getAddress(), null, "Exception: " + exception.getMessage());
-					exception.printStackTrace();
-					sendResponse(exchange, 500, exception.toString());
-*/				}
+				HbdpServer.this.handle(new HttpExchangeAdapter(exchange));
 			}
 		});
 	}
-	
-	private void handleHbdp(HttpExchange exchange) throws HbdpException, IOException {
-		String path = exchange.getRequestURI().getPath();
-		if (!path.startsWith(contextPath))
-			throw new HbdpException(404, "Wrong context path.");
-		path = path.substring(contextPath.length());
-		
-		String method = exchange.getRequestMethod();
-		if (path.length() == 0) {
-			if (!method.equals("GET"))
-				throw new HbdpException(405, "Only GET method allowed for session initialisation.");
 
-			String identifier;
-			do {
-				identifier = generateUid();
-			} while (connections.get(identifier) != null);
+	/**
+	 * Instantiates a new {@link HbdpServer} serving the given context path
+	 * without an HTTP engine. The engine must pass requests to the server.
+	 * The {@link HbdpConnection.Handler} is called for every new connection.
+	 *
+	 * @param contextPath the path prefix of the HBDP URLs
+	 * @param connectionHandler a handler that is called for every new connection
+	 * @see TcpHbdpServer
+	 */
+	public HbdpServer(String contextPath, HbdpConnection.Handler connectionHandler) {
+		this.contextPath = contextPath;
+		this.connectionHandler = connectionHandler;
+	}
 
-			log(exchange.getRemoteAddress().getAddress(), identifier, "Connected");
+	/**
+	 * Divides the sessions into shards, one for each given executor. The
+	 * index of the shard is encoded into the session identifier, so a
+	 * request is routed straight to the session table of its shard without
+	 * any global table. The requests of a shard are handled by its executor,
+	 * or in the calling thread if the executor is <code>null</code>. New
+	 * sessions are assigned to the shards in turn.
+	 *
+	 * <p>With a single-threaded executor per shard, the requests of one
+	 * session are handled in order and the order timeout must be 0. That
+	 * holds only if the requests are passed to the shards in the order they
+	 * arrived, so the HTTP engine must dispatch them in one thread, not with
+	 * an executor of its own. The shards must be set before the first
+	 * session is created.
+	 *
+	 * <p>The requests of a {@link TcpHbdpServer} must be handled in its
+	 * loop, so its shards cannot have executors.
+	 *
+	 * @param executors an executor or <code>null</code> for each shard
+	 * @throws IllegalArgumentException if an executor is given for a {@link TcpHbdpServer}
+	 * @throws IllegalStateException if there are sessions already
+	 * @see #createShardExecutors(int)
+	 */
+	public synchronized void setShards(Executor... executors) {
+		if (executors.length < 1 || executors.length > MAX_SHARDS)
+			throw new IllegalArgumentException("The number of shards must be between 1 and " + MAX_SHARDS + ".");
+		if (loopConfined)
+			for (Executor executor : executors)
+				if (executor != null)
+					throw new IllegalArgumentException("The shards of a TcpHbdpServer cannot have executors.");
+		for (Shard shard : shards)
+			if (!shard.connections.isEmpty())
+				throw new IllegalStateException("Shards cannot be changed while there are sessions.");
 
-			HbdpConnection connection = new HbdpConnection(identifier);
-			connections.put(identifier, connection);
-			connectionHandler.handle(connection);
-			sendResponse(exchange, 200, identifier);
+		Shard[] newShards = new Shard[executors.length];
+		for (int i = 0; i < executors.length; i++)
+			newShards[i] = new Shard(i, executors[i]);
+		shards = newShards;
+	}
+
+	/*
+	 * Marks the server as driven by a TcpHbdpServer, whose requests and
+	 * connections may be used only in the thread of its loop.
+	 */
+	synchronized void setLoopConfined() {
+		loopConfined = true;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Creates a single-threaded executor with a daemon thread for each
+	 * shard.
+	 *
+	 * @param count the number of shards
+	 * @return the executors
+	 * @see #setShards(Executor...)
+	 */
+	public static Executor[] createShardExecutors(int count) {
+		Executor[] executors = new Executor[count];
+		for (int i = 0; i < count; i++) {
+			String name = "HbdpServer shard " + i;
+			executors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return executors;
+	}
+
+	/**
+	 * Sets how long a request that arrives before its predecessors in the
+	 * same session waits for them, before it is rejected because of a wrong
+	 * serial number. The default is 0, which is enough when the requests
+	 * are handled by a single thread.
+	 *
+	 * @param orderTimeout the timeout in milliseconds
+	 */
+	public void setOrderTimeout(long orderTimeout) {
+		this.orderTimeout = orderTimeout;
+	}
+
+	/**
+	 * Sets the time after which a session without requests is expired.
+	 * The expiry ends the input stream of the {@link HbdpConnection}, which
+	 * lets its handler release the session. To keep a live client sending
+	 * requests, a request held for output is answered with an empty response
+	 * when the session has been idle for half of the timeout, or for the
+	 * hold time if it is shorter.
+	 *
+	 * <p>The sessions are tracked in a {@link TimerWheel}, which is advanced
+	 * by a timer thread. The default is 0, which disables the expiry.
+	 *
+	 * @param idleTimeout the timeout in milliseconds, or 0
+	 * @see #setTimerExecutor(Executor)
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		startTimerWheel();
+	}
+
+	/**
+	 * Sets how long a request is held waiting for output before it is
+	 * answered with an empty response. Long holds keep the amount of
+	 * requests of idle clients low, while short holds help clients behind
+	 * proxies that time out long requests. The default is 0, which holds
+	 * the request until the next request or half of the idle timeout.
+	 *
+	 * @param holdTime the time in milliseconds, or 0
+	 */
+	public synchronized void setHoldTime(long holdTime) {
+		this.holdTime = holdTime;
+		startTimerWheel();
+	}
+
+	/**
+	 * Sets how long output is collected before it is sent in the response
+	 * to a held request. Output written within the window is sent in one
+	 * response body, so that a burst of small messages costs only one
+	 * response and one new request from the client. The output is still
+	 * sent without a delay in the response to a request that carried input.
+	 * The default is 0, which sends output as soon as it is written.
+	 *
+	 * @param batchWindow the window in milliseconds, or 0
+	 */
+	public void setBatchWindow(long batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+
+	/**
+	 * Sets the maximum amount of input buffered for a session. A request
+	 * whose body does not fit is answered with 413 (Payload Too Large) and
+	 * may be sent again with the same serial number. The default is 1 MiB.
+	 *
+	 * @param inputLimit the limit in bytes
+	 */
+	public void setInputLimit(int inputLimit) {
+		this.inputLimit = inputLimit;
+	}
+
+	int getInputLimit() {
+		return inputLimit;
+	}
+
+	/**
+	 * Sets the size from which response bodies are compressed, if the
+	 * client accepts the <code>gzip</code> or <code>deflate</code> content
+	 * coding. Repeated item names and descriptions make the responses to
+	 * login and listening compress well. The default is 1024 bytes; 0
+	 * disables the compression.
+	 *
+	 * @param compressionThreshold the threshold in bytes, or 0
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Returns the amount of POST requests made in the sessions, each of
+	 * which polls for output. Stream requests are not counted.
+	 *
+	 * @return amount of polls
+	 */
+	public long getPolls() {
+		return polls.sum();
+	}
+
+	/**
+	 * Returns the amount of compressed response bodies.
+	 *
+	 * @return amount of compressed bodies
+	 */
+	public long getCompressedResponses() {
+		return compressedResponses.sum();
+	}
+
+	/**
+	 * Returns the amount of bytes before and after the compression, and the
+	 * time spent compressing, summed over all compressed response bodies.
+	 * The compression ratio is the second value divided by the first.
+	 *
+	 * @return uncompressed bytes, compressed bytes and nanoseconds
+	 */
+	public long[] getCompressionStatistics() {
+		return new long[] { uncompressedBytes.sum(), compressedBytes.sum(), compressionNanos.sum() };
+	}
+
+	/*
+	 * Returns the content coding for a body of the given length, or null
+	 * if the body is sent as it is.
+	 */
+	String getContentEncoding(HbdpExchange exchange, int length) {
+		int threshold = compressionThreshold;
+		if (threshold <= 0 || length < threshold)
+			return null;
+
+		return ResponseCompressor.negotiate(exchange.getAcceptEncoding());
+	}
+
+	/*
+	 * The compressors are pooled instead of kept per thread, because with
+	 * an executor such as a virtual thread per request the threads do not
+	 * live long enough to reuse them.
+	 */
+	ResponseCompressor acquireCompressor() {
+		ResponseCompressor compressor = compressors.poll();
+		if (compressor == null)
+			return new ResponseCompressor();
+		pooledCompressors.decrementAndGet();
+		return compressor;
+	}
+
+	/*
+	 * Returns the compressor to the pool, or frees it if the pool is full.
+	 */
+	void releaseCompressor(ResponseCompressor compressor) {
+		if (pooledCompressors.incrementAndGet() <= MAX_POOLED_COMPRESSORS) {
+			compressors.offer(compressor);
 		} else {
-			int index = path.indexOf('/');
-			if (index == -1 && index + 1 == path.length())
-				throw new HbdpException(404, "No serial number.");
-			if (index == 0)
-				throw new HbdpException(404, "No identifier.");
-			if (path.indexOf('/', index + 1) != -1)
-				throw new HbdpException(404, "Too many slashes (/).");
-			String identifier = path.substring(0, index);
-			long serial;
+			pooledCompressors.decrementAndGet();
+			compressor.end();
+		}
+	}
+
+	void compressed(long inputLength, long outputLength, long nanos) {
+		compressedResponses.increment();
+		uncompressedBytes.add(inputLength);
+		compressedBytes.add(outputLength);
+		compressionNanos.add(nanos);
+	}
+
+	long getOrderTimeout() {
+		return orderTimeout;
+	}
+
+	long getBatchWindow() {
+		return batchWindow;
+	}
+
+	/**
+	 * Sets the executor that runs the timed work: the expiry of sessions,
+	 * the release of held requests and the sending of batched output. By
+	 * default, the work is done in the timer thread. An HTTP engine that is
+	 * not thread-safe must pass its own thread here.
+	 *
+	 * @param executor the executor or <code>null</code>
+	 */
+	public void setTimerExecutor(Executor executor) {
+		timerExecutor = executor;
+	}
+
+	/*
+	 * Returns the loop to pass the work of the calling thread to, if the
+	 * timer executor is a SelectorLoop and the caller is not in its thread.
+	 */
+	Executor getEngineExecutor() {
+		Executor executor = timerExecutor;
+		if (executor instanceof SelectorLoop && !((SelectorLoop)executor).isLoopThread())
+			return executor;
+		return null;
+	}
+
+	/*
+	 * Runs the task after the given delay through the timer executor.
+	 */
+	void schedule(Runnable task, long delay) {
+		getTimer().schedule(new TimerTask() {
+			public void run() {
+				Executor executor = timerExecutor;
+				if (executor != null)
+					executor.execute(task);
+				else
+					task.run();
+			}
+		}, delay);
+	}
+
+	private synchronized Timer getTimer() {
+		if (timer == null)
+			timer = new Timer("HbdpServer timer", true);
+		return timer;
+	}
+
+	private synchronized void startTimerWheel() {
+		if (timerTask != null) {
+			timerTask.cancel();
+			timerTask = null;
+			timerWheel = null;
+		}
+		long delay = getReleaseDelay();
+		if (delay <= 0)
+			return;
+
+		long tickDuration = Math.max(delay / 8, 10);
+		TimerWheel wheel = new TimerWheel(tickDuration, 64, System.currentTimeMillis());
+		for (Shard shard : shards)
+			for (HbdpConnection connection : shard.connections.values())
+				wheel.schedule(new ConnectionTimeout(shard, connection), connection.getLastAccess() + delay);
+		timerWheel = wheel;
+		timerTask = new TimerTask() {
+			public void run() {
+				Runnable advance = new Runnable() {
+					public void run() {
+						wheel.advance(System.currentTimeMillis());
+					}
+				};
+				Executor executor = timerExecutor;
+				if (executor != null)
+					executor.execute(advance);
+				else
+					advance.run();
+			}
+		};
+		getTimer().scheduleAtFixedRate(timerTask, tickDuration, tickDuration);
+	}
+
+	/*
+	 * The time after the last request when a held request is released.
+	 */
+	private long getReleaseDelay() {
+		if (idleTimeout > 0 && holdTime > 0)
+			return Math.min(idleTimeout / 2, holdTime);
+		return idleTimeout > 0 ? idleTimeout / 2 : holdTime;
+	}
+
+	/**
+	 * Creates an executor for an {@link com.sun.net.httpserver.HttpServer}
+	 * from a textual specification, typically the value of a system property.
+	 * An empty or <code>null</code> specification returns <code>null</code>,
+	 * which makes the HTTP server use its dispatcher thread. A number creates
+	 * a bounded pool of that many daemon threads, which runs the requests on
+	 * the calling thread when it is overloaded. The word <code>virtual</code>
+	 * creates an executor starting a virtual thread per request, if the Java
+	 * runtime supports them.
+	 *
+	 * @param specification <code>null</code>, a number of threads or <code>virtual</code>
+	 * @return the executor or <code>null</code>
+	 * @throws IllegalArgumentException if the specification is not valid or supported
+	 */
+	public static ExecutorService createExecutor(String specification) {
+		if (specification == null || specification.isEmpty())
+			return null;
+
+		if (specification.equals("virtual")) {
 			try {
-				serial = Long.parseLong(path.substring(index + 1));
-			} catch (NumberFormatException exception) {
-				throw new HbdpException(404, "Serial is not a number.");
+				Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService)method.invoke(null);
+			} catch (ReflectiveOperationException exception) {
+				throw new IllegalArgumentException("Virtual threads are not supported by this Java runtime.");
 			}
+		}
 
-			HbdpConnection connection = connections.get(identifier);
-			if (connection == null)
-				throw new HbdpException(404, "No session with the provided identifier.");
-			
-			if (method.equals("DELETE")) {
-				connections.remove(identifier);
-				log(exchange.getRemoteAddress().getAddress(), identifier, "Client disconnected");
-			} else if (method.equals("POST")) {
-				if (!connection.handle(exchange, serial)) {
-					connections.remove(identifier);
-					log(exchange.getRemoteAddress().getAddress(), identifier, "Server disconnected");				
+		int threads;
+		try {
+			threads = Integer.parseInt(specification);
+		} catch (NumberFormatException exception) {
+			throw new IllegalArgumentException("Not a number of threads: " + specification);
+		}
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+
+		AtomicInteger counter = new AtomicInteger();
+		ThreadFactory threadFactory = new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "HbdpServer worker " + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 64),
+		                              threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	void handle(HbdpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String identifier = null;
+		long serial = 0;
+		Shard shard;
+		try {
+			String path = exchange.getRequestPath();
+			if (!path.startsWith(contextPath))
+				throw new HbdpException(404, "Wrong context path.");
+			path = path.substring(contextPath.length());
+
+			if (path.length() == 0) {
+				if (!method.equals("GET"))
+					throw new HbdpException(405, "Only GET method allowed for session initialisation.");
+				Shard[] currentShards = shards;
+				shard = currentShards[Math.floorMod(nextShard.getAndIncrement(), currentShards.length)];
+			} else {
+				int index = path.indexOf('/');
+				if (index == -1 || index + 1 == path.length())
+					throw new HbdpException(404, "No serial number.");
+				if (index == 0)
+					throw new HbdpException(404, "No identifier.");
+				if (path.indexOf('/', index + 1) != -1)
+					throw new HbdpException(404, "Too many slashes (/).");
+				identifier = path.substring(0, index);
+				if (path.startsWith(STREAM, index + 1) && path.length() == index + 1 + STREAM.length()) {
+					if (!method.equals("GET"))
+						throw new HbdpException(405, "Only GET method allowed for streams.");
+				} else {
+					try {
+						serial = Long.parseLong(path.substring(index + 1));
+					} catch (NumberFormatException exception) {
+						throw new HbdpException(404, "Serial is not a number.");
+					}
+					if (!method.equals("POST") && !method.equals("DELETE"))
+						throw new HbdpException(405, "Only POST or DELETE method allowed for session requests.");
+				}
+				shard = getShard(identifier);
+			}
+		} catch (HbdpException exception) {
+			Log.log(Log.Level.WARNING, null, "Hbdp", "HbdpException: {}  ({})", exception.getMessage(), exchange.getRemoteAddress());
+			sendResponse(exchange, exception.getCode(), exception.getMessage());
+			return;
+		}
+
+		if (shard.executor == null) {
+			handleInShard(shard, exchange, identifier, serial);
+			return;
+		}
+
+		String requestIdentifier = identifier;
+		long requestSerial = serial;
+		shard.executor.execute(new Runnable() {
+			public void run() {
+				try {
+					handleInShard(shard, exchange, requestIdentifier, requestSerial);
+				} catch (IOException exception) {
+					Log.log(Log.Level.WARNING, requestIdentifier, "Hbdp", "IOException: {}  ({})", exception.getMessage(), exchange.getRemoteAddress());
 				}
-			} else
-				throw new HbdpException(405, "Only POST or DELETE method allowed for session requests.");			}
+			}
+		});
 	}
-	
-	private String generateUid() {
-		byte[] bytes = new byte[16];
-		random.nextBytes(bytes);
-		StringBuffer buffer = new StringBuffer();
-		for (byte b : bytes) {
-			int i = b - Byte.MIN_VALUE;
-			if (i < 16)
-				buffer.append('0');
-			buffer.append(Integer.toHexString(i));
+
+	private void handleInShard(Shard shard, HbdpExchange exchange, String identifier, long serial) throws IOException {
+		try {
+			if (identifier == null)
+				connect(shard, exchange);
+			else
+				handleSession(shard, exchange, identifier, serial);
+		} catch (HbdpException exception) {
+			Log.log(Log.Level.WARNING, identifier, "Hbdp", "HbdpException: {}  ({})", exception.getMessage(), exchange.getRemoteAddress());
+			sendResponse(exchange, exception.getCode(), exception.getMessage());
+		} catch (IOException exception) {
+			Log.log(Log.Level.WARNING, identifier, "Hbdp", "IOException: {}  ({})", exception.getMessage(), exchange.getRemoteAddress());
+			sendResponse(exchange, 500, exception.toString());
 		}
-		
-		return buffer.toString();
 	}
-	
-	private void sendResponse(HttpExchange exchange, int code, String body) throws IOException {
-		sendResponse(exchange, code, "text/plain; charset=utf-8", body.getBytes(Charset.forName("UTF-8")));
+
+	private void connect(Shard shard, HbdpExchange exchange) throws IOException {
+		String identifier;
+		HbdpConnection connection;
+		do {
+			identifier = generateUid(shard.index);
+			connection = new HbdpConnection(identifier, this);
+		} while (shard.connections.putIfAbsent(identifier, connection) != null);
+
+		Log.log(Log.Level.INFO, identifier, "Hbdp", "Connected  ({})", exchange.getRemoteAddress());
+
+		connectionHandler.handle(connection);
+		synchronized (this) {
+			if (timerWheel != null)
+				timerWheel.schedule(new ConnectionTimeout(shard, connection), connection.getLastAccess() + getReleaseDelay());
+		}
+		sendResponse(exchange, 200, identifier);
 	}
 
-	private void sendResponse(HttpExchange exchange, int code, byte[] body) throws IOException {
-		sendResponse(exchange, code, "application/octet-stream", body);
+	private void handleSession(Shard shard, HbdpExchange exchange, String identifier, long serial) throws HbdpException, IOException {
+		HbdpConnection connection = shard.connections.get(identifier);
+		if (connection == null)
+			throw new HbdpException(404, "No session with the provided identifier.");
+
+		if (exchange.getRequestMethod().equals("DELETE")) {
+			if (!shard.connections.remove(identifier, connection))
+				throw new HbdpException(404, "No session with the provided identifier.");
+			connection.disconnect();
+			Log.log(Log.Level.INFO, identifier, "Hbdp", "Client disconnected  ({})", exchange.getRemoteAddress());
+			sendResponse(exchange, 200, "");
+		} else if (exchange.getRequestMethod().equals("GET")) {
+			connection.stream(exchange);
+		} else {
+			polls.increment();
+			if (!connection.handle(exchange, serial)) {
+				shard.connections.remove(identifier, connection);
+				Log.log(Log.Level.INFO, identifier, "Hbdp", "Server disconnected  ({})", exchange.getRemoteAddress());
+			}
+		}
 	}
-	
-	private void sendResponse(HttpExchange exchange, int code, String contentType, byte[] body) throws IOException {
-		exchange.getResponseHeaders().set("Content-Type", contentType);
-		exchange.sendResponseHeaders(code, body.length);
-		OutputStream output = exchange.getResponseBody();
-		output.write(body);
-		output.close();
+
+	/*
+	 * The first four hexadecimal digits of an identifier are the index of
+	 * its shard, and the rest are random.
+	 */
+	private static String generateUid(int shardIndex) {
+		char[] characters = new char[IDENTIFIER_LENGTH];
+		for (int i = 3; i >= 0; i--, shardIndex >>>= 4)
+			characters[i] = HEX_DIGITS[shardIndex & 0xf];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long bits = 0;
+		for (int i = 4; i < IDENTIFIER_LENGTH; i++, bits >>>= 4) {
+			if ((i & 0xf) == 4)
+				bits = random.nextLong();
+			characters[i] = HEX_DIGITS[(int)bits & 0xf];
+		}
+
+		return new String(characters);
+	}
+
+	private Shard getShard(String identifier) throws HbdpException {
+		Shard[] currentShards = shards;
+		int index = 0;
+		for (int i = 0; i < 4 && i < identifier.length(); i++) {
+			int digit = Character.digit(identifier.charAt(i), 16);
+			if (digit == -1)
+				break;
+			index = index << 4 | digit;
+			if (i == 3 && identifier.length() == IDENTIFIER_LENGTH && index < currentShards.length)
+				return currentShards[index];
+		}
+		throw new HbdpException(404, "No session with the provided identifier.");
+	}
+
+	private void sendResponse(HbdpExchange exchange, int code, String body) throws IOException {
+		exchange.sendResponse(code, "text/plain; charset=utf-8", body.getBytes(Charset.forName("UTF-8")));
 	}
 	
-	private void log(InetAddress address, String identifier, String detail) {
-		long seconds = System.currentTimeMillis() / 1000;
-		System.out.println(seconds + "  " + (identifier != null ? identifier : "\t\t\t\t") + "  Hbdp  " + detail + "  (" + address.getHostAddress() + ")");
+	private class ConnectionTimeout extends TimerWheel.Timeout {
+		private Shard shard;
+		private HbdpConnection connection;
+
+		ConnectionTimeout(Shard shard, HbdpConnection connection) {
+			this.shard = shard;
+			this.connection = connection;
+		}
+
+		protected void expired(long now) {
+			TimerWheel wheel;
+			long timeout;
+			long delay;
+			synchronized (HbdpServer.this) {
+				wheel = timerWheel;
+				timeout = idleTimeout;
+				delay = getReleaseDelay();
+			}
+			if (wheel == null || shard.connections.get(connection.getIdentifier()) != connection)
+				return;
+
+			try {
+				long lastAccess = connection.getLastAccess();
+				if (now - lastAccess < delay) {
+					wheel.schedule(this, lastAccess + delay);
+				} else if (timeout <= 0 || now - lastAccess < timeout) {
+					connection.releaseExchange();
+					wheel.schedule(this, timeout > 0 ? Math.min(lastAccess + timeout, now + delay) : now + delay);
+				} else if (shard.connections.remove(connection.getIdentifier(), connection)) {
+					Log.log(Log.Level.INFO, connection.getIdentifier(), "Hbdp", "Expired");
+					connection.expire();
+				}
+			} catch (IOException exception) {
+				Log.log(Log.Level.WARNING, connection.getIdentifier(), "Hbdp", "IOException: {}", exception.getMessage());
+			}
+		}
+	}
+
+	private static class Shard {
+		final int index;
+		final Executor executor;
+		final ConcurrentHashMap<String, HbdpConnection> connections = new ConcurrentHashMap<>();
+
+		Shard(int index, Executor executor) {
+			this.index = index;
+			this.executor = executor;
+		}
+	}
+
+	private static class HttpExchangeAdapter extends HbdpExchange {
+		private HttpExchange exchange;
+
+		HttpExchangeAdapter(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		InetAddress getRemoteAddress() {
+			return exchange.getRemoteAddress().getAddress();
+		}
+
+		String getRequestMethod() {
+			return exchange.getRequestMethod();
+		}
+
+		String getRequestPath() {
+			return exchange.getRequestURI().getPath();
+		}
+
+		long getRequestLength() {
+			String value = exchange.getRequestHeaders().getFirst("Content-Length");
+			try {
+				return value != null ? Long.parseLong(value.trim()) : -1;
+			} catch (NumberFormatException exception) {
+				return -1;
+			}
+		}
+
+		InputStream getRequestBody() {
+			return exchange.getRequestBody();
+		}
+
+		String getAcceptEncoding() {
+			return exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		}
+
+		OutputStream sendResponseHeaders(int code, String contentType, String contentEncoding, int length) throws IOException {
+			if (contentType != null)
+				exchange.getResponseHeaders().set("Content-Type", contentType);
+			if (contentEncoding != null)
+				exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+			exchange.sendResponseHeaders(code, length == 0 ? -1 : length < 0 ? 0 : length);
+			return exchange.getResponseBody();
+		}
 	}
 }
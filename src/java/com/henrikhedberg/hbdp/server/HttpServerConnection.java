@@ -0,0 +1,600 @@
+
+/*
+ * HTTP Bidirectional Protocol (HBDP) Reference Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.hbdp.server;
+
+import com.henrikhedberg.util.BufferPool;
+import com.henrikhedberg.util.TcpServerConnection;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * An HTTP/1.1 connection of the {@link TcpHbdpServer}.
+ *
+ * <p>Requests are parsed directly from a pooled buffer without copying the
+ * header lines; only the method and the path become strings. Each request
+ * is passed to the {@link HbdpServer} as an {@link HbdpExchange}. Responses
+ * may complete in any order, but they are written in the order of the
+ * requests. A streamed response is written chunk by chunk as it is flushed,
+ * and the responses to later requests wait until it ends.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.2 (20261018)
+ */
+class HttpServerConnection implements TcpServerConnection.Handler {
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(ASCII);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ASCII);
+
+	private TcpHbdpServer server;
+	private TcpServerConnection connection;
+	private BufferPool bufferPool;
+	private InetAddress remoteAddress;
+	private ByteBuffer buffer;
+	private int scanned;
+	private int required;
+	private boolean continueSent;
+	private boolean closing;
+	private ArrayDeque<Exchange> exchanges = new ArrayDeque<>();
+	private RequestBody requestBody = new RequestBody();
+	private byte[] scratch = new byte[256];
+	private int scratchLength;
+
+	HttpServerConnection(TcpHbdpServer server, TcpServerConnection connection) throws IOException {
+		this.server = server;
+		this.connection = connection;
+		bufferPool = server.getSelectorLoop().getBufferPool();
+		remoteAddress = ((InetSocketAddress)connection.getRemoteAddress()).getAddress();
+		connection.setHandler(this);
+	}
+
+	public void handleData(TcpServerConnection connection) {
+		try {
+			if (closing) {
+				ByteBuffer discard = bufferPool.acquire();
+				int got = connection.read(discard);
+				bufferPool.release(discard);
+				if (got == -1)
+					close();
+				return;
+			}
+
+			if (buffer == null)
+				buffer = bufferPool.acquire();
+			if (connection.read(buffer) == -1) {
+				close();
+				return;
+			}
+
+			buffer.flip();
+			while (!closing && parseRequest())
+				;
+			if (closing) {
+				releaseBuffer();
+				return;
+			}
+
+			buffer.compact();
+			if (buffer.position() == 0)
+				releaseBuffer();
+			else if (required > buffer.capacity()) {
+				buffer.flip();
+				ByteBuffer larger = ByteBuffer.allocate(required);
+				larger.put(buffer);
+				bufferPool.release(buffer);
+				buffer = larger;
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	public void handleIOException(IOException exception) {
+		close();
+	}
+
+	private boolean parseRequest() throws IOException {
+		int start = buffer.position();
+		int end = buffer.limit();
+
+		int headerEnd = -1;
+		for (int i = start + scanned; i + 3 < end; i++) {
+			if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+				headerEnd = i;
+				break;
+			}
+		}
+		if (headerEnd == -1) {
+			scanned = Math.max(0, end - start - 3);
+			if (end - start == buffer.capacity())
+				sendError(431, "Request header fields too large.");
+			return false;
+		}
+
+		int lineEnd = indexOf(start, headerEnd, '\r');
+		if (lineEnd == -1)
+			lineEnd = headerEnd;
+		int space1 = indexOf(start, lineEnd, ' ');
+		int space2 = space1 == -1 ? -1 : indexOf(space1 + 1, lineEnd, ' ');
+		if (space2 == -1 || space1 == start) {
+			sendError(400, "Malformed request line.");
+			return false;
+		}
+		String method = method(start, space1);
+		String path = path(space1 + 1, space2);
+		boolean keepAlive;
+		if (equalsIgnoreCase(space2 + 1, lineEnd, "HTTP/1.1"))
+			keepAlive = true;
+		else if (equalsIgnoreCase(space2 + 1, lineEnd, "HTTP/1.0"))
+			keepAlive = false;
+		else {
+			sendError(505, "HTTP version not supported.");
+			return false;
+		}
+
+		long contentLength = 0;
+		boolean expectContinue = false;
+		String acceptEncoding = null;
+		for (int lineStart = lineEnd + 2; lineStart < headerEnd; ) {
+			int eol = indexOf(lineStart, headerEnd, '\r');
+			if (eol == -1)
+				eol = headerEnd;
+			int colon = indexOf(lineStart, eol, ':');
+			if (colon == -1) {
+				sendError(400, "Malformed header line.");
+				return false;
+			}
+			int valueStart = colon + 1;
+			while (valueStart < eol && (buffer.get(valueStart) == ' ' || buffer.get(valueStart) == '\t'))
+				valueStart++;
+			int valueEnd = eol;
+			while (valueEnd > valueStart && (buffer.get(valueEnd - 1) == ' ' || buffer.get(valueEnd - 1) == '\t'))
+				valueEnd--;
+
+			if (equalsIgnoreCase(lineStart, colon, "Content-Length")) {
+				contentLength = decimal(valueStart, valueEnd);
+				if (contentLength < 0) {
+					sendError(400, "Malformed Content-Length.");
+					return false;
+				}
+			} else if (equalsIgnoreCase(lineStart, colon, "Transfer-Encoding")) {
+				if (!equalsIgnoreCase(valueStart, valueEnd, "identity")) {
+					sendError(411, "Only requests with Content-Length are supported.");
+					return false;
+				}
+			} else if (equalsIgnoreCase(lineStart, colon, "Connection")) {
+				if (containsIgnoreCase(valueStart, valueEnd, "close"))
+					keepAlive = false;
+				else if (containsIgnoreCase(valueStart, valueEnd, "keep-alive"))
+					keepAlive = true;
+			} else if (equalsIgnoreCase(lineStart, colon, "Accept-Encoding")) {
+				acceptEncoding = string(valueStart, valueEnd);
+			} else if (equalsIgnoreCase(lineStart, colon, "Expect")) {
+				if (!equalsIgnoreCase(valueStart, valueEnd, "100-continue")) {
+					sendError(417, "Expectation failed.");
+					return false;
+				}
+				expectContinue = true;
+			}
+			lineStart = eol + 2;
+		}
+
+		if (contentLength > server.getMaxRequestBody()) {
+			sendError(413, "Request body too large.");
+			return false;
+		}
+
+		int headerLength = headerEnd + 4 - start;
+		int total = headerLength + (int)contentLength;
+		if (end - start < total) {
+			scanned = headerEnd - start;
+			required = total;
+			if (expectContinue && !continueSent) {
+				connection.write(ByteBuffer.wrap(CONTINUE));
+				continueSent = true;
+			}
+			return false;
+		}
+		scanned = 0;
+		required = 0;
+		continueSent = false;
+
+		Exchange exchange = new Exchange(method, path, keepAlive, contentLength, acceptEncoding);
+		exchanges.add(exchange);
+		requestBody.reset(start + headerLength, start + total);
+		buffer.position(start + total);
+		TcpHbdpServer.Document document = server.getDocument(path);
+		if (document != null)
+			sendDocument(exchange, document);
+		else
+			server.getHbdpServer().handle(exchange);
+		requestBody.reset(0, 0);
+
+		return true;
+	}
+
+	private void sendDocument(Exchange exchange, TcpHbdpServer.Document document) throws IOException {
+		if (!exchange.getRequestMethod().equals("GET")) {
+			exchange.sendResponse(405, "text/plain; charset=utf-8", "Only GET method allowed.".getBytes(UTF8));
+			return;
+		}
+		exchange.sendResponse(200, document.contentType, document.generator.get());
+	}
+
+	private void sendError(int code, String message) throws IOException {
+		Exchange exchange = new Exchange(null, null, false, 0, null);
+		exchanges.add(exchange);
+		exchange.sendResponse(code, "text/plain; charset=utf-8", message.getBytes(UTF8));
+		closing = true;
+	}
+
+	private void flushResponses() throws IOException {
+		while (!exchanges.isEmpty()) {
+			Exchange exchange = exchanges.peek();
+			if (exchange.chunks == null || !exchange.headerSent) {
+				if (exchange.response == null || exchange.response.hasRemaining())
+					return;
+			}
+			if (exchange.chunks != null) {
+				/* A streamed response holds back the responses after it until it ends. */
+				if (!exchange.headerSent && connection.isOpen()) {
+					exchange.response.flip();
+					connection.write(exchange.response);
+				}
+				exchange.headerSent = true;
+				for (ByteBuffer chunk = exchange.chunks.poll(); chunk != null; chunk = exchange.chunks.poll())
+					if (connection.isOpen())
+						connection.write(chunk);
+				if (!exchange.ended)
+					return;
+				exchanges.poll();
+			} else {
+				exchanges.poll();
+				if (!connection.isOpen())
+					continue;
+				exchange.response.flip();
+				connection.write(exchange.response);
+			}
+			if (!exchange.keepAlive) {
+				closing = true;
+				exchanges.clear();
+				connection.closeAfterWriting();
+				return;
+			}
+		}
+	}
+
+	private void close() {
+		closing = true;
+		exchanges.clear();
+		releaseBuffer();
+		try {
+			connection.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void releaseBuffer() {
+		if (buffer != null) {
+			bufferPool.release(buffer);
+			buffer = null;
+		}
+		scanned = 0;
+		required = 0;
+	}
+
+	private int indexOf(int from, int to, char c) {
+		for (int i = from; i < to; i++)
+			if (buffer.get(i) == c)
+				return i;
+		return -1;
+	}
+
+	private boolean equalsIgnoreCase(int from, int to, String string) {
+		if (to - from != string.length())
+			return false;
+		for (int i = 0; i < string.length(); i++)
+			if (Character.toLowerCase((char)buffer.get(from + i)) != Character.toLowerCase(string.charAt(i)))
+				return false;
+		return true;
+	}
+
+	private boolean containsIgnoreCase(int from, int to, String string) {
+		for (int i = from; i + string.length() <= to; i++)
+			if (equalsIgnoreCase(i, i + string.length(), string))
+				return true;
+		return false;
+	}
+
+	private long decimal(int from, int to) {
+		if (from == to || to - from > 18)
+			return -1;
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private String method(int from, int to) {
+		if (equalsIgnoreCase(from, to, "POST"))
+			return "POST";
+		if (equalsIgnoreCase(from, to, "GET"))
+			return "GET";
+		if (equalsIgnoreCase(from, to, "DELETE"))
+			return "DELETE";
+		return string(from, to);
+	}
+
+	private String path(int from, int to) {
+		if (equalsIgnoreCase(from, Math.min(from + 7, to), "http://") || equalsIgnoreCase(from, Math.min(from + 8, to), "https://")) {
+			int slash = indexOf(from + 8, to, '/');
+			from = slash == -1 ? to : slash;
+		}
+		int query = indexOf(from, to, '?');
+		if (query != -1)
+			to = query;
+		return from == to ? "/" : string(from, to);
+	}
+
+	private String string(int from, int to) {
+		if (scratch.length < to - from)
+			scratch = new byte[to - from];
+		for (int i = from; i < to; i++)
+			scratch[i - from] = buffer.get(i);
+		return new String(scratch, 0, to - from, ASCII);
+	}
+
+	private void appendAscii(String string) {
+		int length = string.length();
+		if (scratchLength + length > scratch.length)
+			scratch = Arrays.copyOf(scratch, 2 * (scratchLength + length));
+		for (int i = 0; i < length; i++)
+			scratch[scratchLength++] = (byte)string.charAt(i);
+	}
+
+	private void appendDecimal(int value) {
+		if (value >= 10)
+			appendDecimal(value / 10);
+		if (scratchLength == scratch.length)
+			scratch = Arrays.copyOf(scratch, 2 * scratch.length);
+		scratch[scratchLength++] = (byte)('0' + value % 10);
+	}
+
+	private static String reasonPhrase(int code) {
+		switch (code) {
+			case 200: return "OK";
+			case 400: return "Bad Request";
+			case 404: return "Not Found";
+			case 405: return "Method Not Allowed";
+			case 411: return "Length Required";
+			case 413: return "Payload Too Large";
+			case 417: return "Expectation Failed";
+			case 431: return "Request Header Fields Too Large";
+			case 500: return "Internal Server Error";
+			case 503: return "Service Unavailable";
+			case 505: return "HTTP Version Not Supported";
+			default: return "Unknown";
+		}
+	}
+
+	private class Exchange extends HbdpExchange {
+		private String method;
+		private String path;
+		private boolean keepAlive;
+		private long requestLength;
+		private String acceptEncoding;
+		private ByteBuffer response;
+		private ArrayDeque<ByteBuffer> chunks;
+		private boolean headerSent;
+		private boolean ended;
+
+		Exchange(String method, String path, boolean keepAlive, long requestLength, String acceptEncoding) {
+			this.method = method;
+			this.path = path;
+			this.keepAlive = keepAlive;
+			this.requestLength = requestLength;
+			this.acceptEncoding = acceptEncoding;
+		}
+
+		InetAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		String getRequestMethod() {
+			return method;
+		}
+
+		String getRequestPath() {
+			return path;
+		}
+
+		long getRequestLength() {
+			return requestLength;
+		}
+
+		String getAcceptEncoding() {
+			return acceptEncoding;
+		}
+
+		InputStream getRequestBody() {
+			return requestBody;
+		}
+
+		OutputStream sendResponseHeaders(int code, String contentType, String contentEncoding, int length) throws IOException {
+			if (response != null)
+				throw new IOException("Response headers already sent.");
+
+			scratchLength = 0;
+			appendAscii("HTTP/1.1 ");
+			appendDecimal(code);
+			appendAscii(" ");
+			appendAscii(reasonPhrase(code));
+			if (length < 0) {
+				appendAscii("\r\nTransfer-Encoding: chunked");
+			} else {
+				appendAscii("\r\nContent-Length: ");
+				appendDecimal(length);
+			}
+			if (contentType != null) {
+				appendAscii("\r\nContent-Type: ");
+				appendAscii(contentType);
+			}
+			if (contentEncoding != null) {
+				appendAscii("\r\nContent-Encoding: ");
+				appendAscii(contentEncoding);
+			}
+			if (!keepAlive)
+				appendAscii("\r\nConnection: close");
+			appendAscii("\r\n\r\n");
+
+			if (length < 0) {
+				response = ByteBuffer.allocate(scratchLength);
+				response.put(scratch, 0, scratchLength);
+				chunks = new ArrayDeque<>();
+				flushResponses();
+				return new ChunkedBody(this);
+			}
+
+			response = ByteBuffer.allocate(scratchLength + length);
+			response.put(scratch, 0, scratchLength);
+			if (length == 0)
+				flushResponses();
+
+			return new ResponseBody(this);
+		}
+	}
+
+	private class ResponseBody extends OutputStream {
+		private Exchange exchange;
+
+		ResponseBody(Exchange exchange) {
+			this.exchange = exchange;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!exchange.response.hasRemaining())
+				throw new IOException("Response body longer than announced.");
+			exchange.response.put((byte)b);
+			if (!exchange.response.hasRemaining())
+				flushResponses();
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			if (length == 0)
+				return;
+			if (exchange.response.remaining() < length)
+				throw new IOException("Response body longer than announced.");
+			exchange.response.put(b, offset, length);
+			if (!exchange.response.hasRemaining())
+				flushResponses();
+		}
+	}
+
+	private class ChunkedBody extends OutputStream {
+		private Exchange exchange;
+
+		ChunkedBody(Exchange exchange) {
+			this.exchange = exchange;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			if (exchange.ended)
+				throw new IOException("Response body already ended.");
+			if (length == 0)
+				return;
+			byte[] size = Integer.toHexString(length).getBytes(ASCII);
+			ByteBuffer chunk = ByteBuffer.allocate(size.length + length + 4);
+			chunk.put(size).put((byte)'\r').put((byte)'\n').put(b, offset, length).put((byte)'\r').put((byte)'\n');
+			chunk.flip();
+			exchange.chunks.add(chunk);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushResponses();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (exchange.ended)
+				return;
+			exchange.chunks.add(ByteBuffer.wrap(LAST_CHUNK));
+			exchange.ended = true;
+			flushResponses();
+		}
+	}
+
+	private class RequestBody extends InputStream {
+		private int position;
+		private int limit;
+
+		void reset(int position, int limit) {
+			this.position = position;
+			this.limit = limit;
+		}
+
+		@Override
+		public int available() {
+			return limit - position;
+		}
+
+		@Override
+		public int read() {
+			if (position >= limit)
+				return -1;
+			return buffer.get(position++) & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) {
+			if (length == 0)
+				return 0;
+			if (position >= limit)
+				return -1;
+			int give = Math.min(length, limit - position);
+			int saved = buffer.position();
+			buffer.position(position);
+			buffer.get(b, offset, give);
+			buffer.position(saved);
+			position += give;
+			return give;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * HTTP Bidirectional Protocol (HBDP) Reference Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.hbdp.server;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a response body with the <code>gzip</code> or
+ * <code>deflate</code> content coding.
+ *
+ * <p>The body is written into the compressor as into an {@link OutputStream}
+ * and the result is collected into an internal array that grows as needed.
+ * Both codings use the same raw {@link Deflater} at the fastest level,
+ * which compresses the small, repetitive HBDP bodies almost as well as the
+ * default level at a fraction of the cost; only the header, the checksum
+ * and the trailer differ. The instance is reused for the next
+ * response after {@link #reset(String)}, so it must be used by one thread
+ * at a time; the {@link HbdpServer} lends its compressors from a pool. The
+ * native memory of the {@link Deflater} is freed with {@link #end()}.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.1 (20261018)
+ */
+class ResponseCompressor extends OutputStream {
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 4, (byte)0xff };
+	private static final byte[] ZLIB_HEADER = { 0x78, 0x01 };
+
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private CRC32 crc32 = new CRC32();
+	private Adler32 adler32 = new Adler32();
+	private Checksum checksum;
+	private boolean gzip;
+	private long inputLength;
+	private byte[] bytes = new byte[1024];
+	private int length;
+
+	/**
+	 * Prepares the compressor for a new body.
+	 *
+	 * @param encoding either <code>gzip</code> or <code>deflate</code>
+	 */
+	void reset(String encoding) {
+		gzip = encoding.equals("gzip");
+		checksum = gzip ? crc32 : adler32;
+		checksum.reset();
+		deflater.reset();
+		inputLength = 0;
+		length = 0;
+		append(gzip ? GZIP_HEADER : ZLIB_HEADER);
+	}
+
+	@Override
+	public void write(int b) {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int count) {
+		if (count == 0)
+			return;
+
+		checksum.update(b, offset, count);
+		inputLength += count;
+		deflater.setInput(b, offset, count);
+		while (!deflater.needsInput())
+			deflate();
+	}
+
+	/**
+	 * Finishes the body. The result is available from {@link #getBytes()}
+	 * and {@link #getLength()}.
+	 */
+	void finish() {
+		deflater.finish();
+		while (!deflater.finished())
+			deflate();
+
+		long value = checksum.getValue();
+		if (gzip) {
+			appendLittleEndian(value);
+			appendLittleEndian(inputLength);
+		} else {
+			ensureCapacity(4);
+			bytes[length++] = (byte)(value >>> 24);
+			bytes[length++] = (byte)(value >>> 16);
+			bytes[length++] = (byte)(value >>> 8);
+			bytes[length++] = (byte)value;
+		}
+	}
+
+	/**
+	 * Frees the native memory of the compressor. It cannot be used after
+	 * the call.
+	 */
+	void end() {
+		deflater.end();
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	long getInputLength() {
+		return inputLength;
+	}
+
+	/**
+	 * Selects the content coding from the value of an Accept-Encoding
+	 * header. <code>gzip</code> is preferred over <code>deflate</code>, and
+	 * codings with the quality value 0 are not accepted.
+	 *
+	 * @param acceptEncoding the header value or <code>null</code>
+	 * @return <code>gzip</code>, <code>deflate</code> or <code>null</code>
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return null;
+
+		boolean deflate = false;
+		for (String element : acceptEncoding.split(",")) {
+			int semicolon = element.indexOf(';');
+			String coding = (semicolon == -1 ? element : element.substring(0, semicolon)).trim();
+			if (semicolon != -1 && element.substring(semicolon + 1).replace(" ", "").matches("q=0(\\.0*)?"))
+				continue;
+			if (coding.equalsIgnoreCase("gzip"))
+				return "gzip";
+			if (coding.equalsIgnoreCase("deflate"))
+				deflate = true;
+		}
+
+		return deflate ? "deflate" : null;
+	}
+
+	private void deflate() {
+		ensureCapacity(512);
+		length += deflater.deflate(bytes, length, bytes.length - length);
+	}
+
+	private void append(byte[] source) {
+		ensureCapacity(source.length);
+		System.arraycopy(source, 0, bytes, length, source.length);
+		length += source.length;
+	}
+
+	private void appendLittleEndian(long value) {
+		ensureCapacity(4);
+		for (int i = 0; i < 4; i++)
+			bytes[length++] = (byte)(value >>> (8 * i));
+	}
+
+	private void ensureCapacity(int appendLength) {
+		if (length + appendLength > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + appendLength));
+	}
+}
@@ -0,0 +1,142 @@
+
+/*
+ * HTTP Bidirectional Protocol (HBDP) Reference Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.hbdp.server;
+
+import com.henrikhedberg.util.SelectorLoop;
+import com.henrikhedberg.util.TcpServer;
+import com.henrikhedberg.util.TcpServerConnection;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * HTTP Bidirectional Protocol (HBDP) server with its own minimal HTTP/1.1
+ * implementation on top of a {@link SelectorLoop}.
+ *
+ * <p>Unlike the <code>com.sun.net.httpserver</code> based setup, everything
+ * runs in the thread of the loop, which may be shared with other
+ * {@link TcpServer}s such as the raw TCP OHAP server. Requests are read into
+ * buffers taken from the {@link com.henrikhedberg.util.BufferPool} of the loop.
+ * Persistent connections and pipelined requests are supported; the responses
+ * are sent in the order of the requests. Request bodies must have a
+ * Content-Length header. The request bodies point into the reused read
+ * buffers, so the requests cannot be handed to other threads: the
+ * {@link HbdpServer} may be divided into shards only without executors.
+ *
+ * <p>Next to the HBDP URLs, the server may serve plain documents, such as
+ * metrics, generated on every request (see
+ * {@link #addDocument(String, String, Supplier)}).
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.2 (20261018)
+ */
+public class TcpHbdpServer extends TcpServer {
+	private HbdpServer hbdpServer;
+	private int maxRequestBody = 1024 * 1024;
+	private ConcurrentHashMap<String, Document> documents = new ConcurrentHashMap<>();
+
+	/**
+	 * Instantiates a new server with its own {@link SelectorLoop}.
+	 *
+	 * @param address the address to listen to
+	 * @param contextPath the path prefix of the HBDP URLs
+	 * @param connectionHandler a handler that is called for every new connection
+	 */
+	public TcpHbdpServer(SocketAddress address, String contextPath, HbdpConnection.Handler connectionHandler) throws IOException {
+		this(new SelectorLoop(), address, contextPath, connectionHandler);
+	}
+
+	/**
+	 * Instantiates a new server in the given {@link SelectorLoop}.
+	 *
+	 * @param selectorLoop the loop to run the server in
+	 * @param address the address to listen to
+	 * @param contextPath the path prefix of the HBDP URLs
+	 * @param connectionHandler a handler that is called for every new connection
+	 */
+	public TcpHbdpServer(SelectorLoop selectorLoop, SocketAddress address, String contextPath, HbdpConnection.Handler connectionHandler) throws IOException {
+		super(selectorLoop, address);
+		hbdpServer = new HbdpServer(contextPath, connectionHandler);
+		hbdpServer.setTimerExecutor(selectorLoop);
+		hbdpServer.setLoopConfined();
+	}
+
+	public HbdpServer getHbdpServer() {
+		return hbdpServer;
+	}
+
+	public int getMaxRequestBody() {
+		return maxRequestBody;
+	}
+
+	/**
+	 * Sets the maximum accepted length of a request body. Longer requests
+	 * are answered with 413 (Payload Too Large).
+	 *
+	 * @param maxRequestBody maximum body length in bytes
+	 */
+	public void setMaxRequestBody(int maxRequestBody) {
+		this.maxRequestBody = maxRequestBody;
+	}
+
+	/**
+	 * Serves a document in the given path. The document is generated in the
+	 * thread of the loop on every GET request, so it should be cheap to
+	 * generate. The path takes precedence over the HBDP URLs.
+	 *
+	 * @param path the exact path of the document
+	 * @param contentType the value of the Content-Type header
+	 * @param generator the generator of the document
+	 */
+	public void addDocument(String path, String contentType, Supplier<byte[]> generator) {
+		documents.put(path, new Document(contentType, generator));
+	}
+
+	public void removeDocument(String path) {
+		documents.remove(path);
+	}
+
+	Document getDocument(String path) {
+		return documents.get(path);
+	}
+
+	protected void acceptConnection(TcpServerConnection connection) {
+		try {
+			new HttpServerConnection(this, connection);
+		} catch (IOException e) {
+			try {
+				connection.close();
+			} catch (IOException e2) {
+			}
+		}
+	}
+
+	static class Document {
+		String contentType;
+		Supplier<byte[]> generator;
+
+		Document(String contentType, Supplier<byte[]> generator) {
+			this.contentType = contentType;
+			this.generator = generator;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.Log;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that the hot paths of the server stay within their allocation
+ * budgets in the steady state.
+ *
+ * <p>Every path is run in a loop in this thread until the JIT compiler has
+ * settled, and then measured with the allocation counter of the thread
+ * given by <code>com.sun.management.ThreadMXBean</code>. The paths are the
+ * decoding of a change with {@link IncomingMessage} from a buffer and from a
+ * stream, the encoding of a change with a reused {@link OutgoingMessage},
+ * the dispatching of a change and of a ping in
+ * {@link OhapSession#handleMessage(IncomingMessage)}, and the sending of a
+ * change to 100 listening sessions in {@link Container}. The sessions write
+ * into nothing, so only the server itself is measured.
+ *
+ * <p>The program prints the bytes allocated per operation next to the
+ * budget of each path, and exits with the status 1 if any path exceeds its
+ * budget. A path that allocates nothing has the budget 0. The dispatching of
+ * a change or a ping creates the one {@link OutgoingMessage} that is sent,
+ * which is budgeted as the object and its exactly sized buffer. Run it after
+ * changing a hot path, and lower a budget when a path has been made to
+ * allocate less.
+ *
+ * <p>Usage: <code>AllocationBenchmark [operations]</code>. The default is
+ * 1000000 operations per measurement.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class AllocationBenchmark {
+	private static final int WARM_UP_ROUNDS = 5;
+	private static final int LISTENERS = 100;
+
+	private static com.sun.management.ThreadMXBean threadMXBean;
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+			System.err.println("The JVM does not count allocated memory per thread.");
+			System.exit(2);
+		}
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+		Log.setLevel(Log.Level.OFF);
+
+		Path[] paths = {
+			new DecodeBufferPath(), new DecodeStreamPath(), new EncodePath(),
+			new DispatchPath("dispatch change", 32, changeMessage(2, 21.5)),
+			new DispatchPath("dispatch ping", 24, pingMessage()), new FanOutPath()
+		};
+		boolean failed = false;
+		System.out.printf("%-16s %12s %12s%n", "", "bytes/op", "budget");
+		for (Path path : paths) {
+			for (int round = 0; round < WARM_UP_ROUNDS; round++)
+				path.run(operations);
+			long allocated = threadMXBean.getCurrentThreadAllocatedBytes();
+			path.run(operations);
+			double perOperation = (double)(threadMXBean.getCurrentThreadAllocatedBytes() - allocated) / operations;
+			boolean exceeded = perOperation > path.budget + 0.5;
+			failed |= exceeded;
+			System.out.printf("%-16s %12.1f %12d%s%n", path.name, perOperation, path.budget, exceeded ? "  EXCEEDED" : "");
+		}
+		if (sink == 42)
+			System.out.println();
+
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static OutgoingMessage changeMessage(long identifier, double value) {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).integer32(identifier).decimal64(value);
+
+		return outgoingMessage;
+	}
+
+	private static OutgoingMessage pingMessage() {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PING).integer32(100000);
+
+		return outgoingMessage;
+	}
+
+	/*
+	 * The root container holds one container of one decimal actuator.
+	 */
+	private static OhapServer createServer() {
+		OhapServer server = new OhapServer() {
+		};
+		Container root = new Container(0, "Allocation Benchmark", "The root container.", false);
+		Container container = new Container(1, "Actuators", "The changed actuators.", false);
+		root.addItem(container);
+		container.addItem(new DecimalDevice(2, "Actuator", "A changed actuator.", false, Device.Type.ACTUATOR, 0, -1e12, 1e12, "", ""));
+		server.setRootContainer(root, 3);
+
+		return server;
+	}
+
+	private static OhapSession createSession(OhapServer server, String identifier) {
+		OhapSession session = new OhapSession(server, "benchmark", identifier) {
+			protected void writeMessage(OutgoingMessage outgoingMessage) {
+			}
+
+			protected void close() {
+			}
+
+			protected void execute(Runnable task) {
+				task.run();
+			}
+		};
+		OutgoingMessage login = new OutgoingMessage();
+		login.integer8(OhapServer.MESSAGE_TYPE_LOGIN).integer8(1).text("benchmark").text("benchmark");
+		IncomingMessage incomingMessage = new IncomingMessage();
+		incomingMessage.readFromNB(login.asByteBuffer());
+		session.handleMessage(incomingMessage);
+
+		return session;
+	}
+
+	private static abstract class Path {
+		String name;
+		long budget;
+
+		Path(String name, long budget) {
+			this.name = name;
+			this.budget = budget;
+		}
+
+		abstract void run(int operations) throws IOException;
+	}
+
+	private static class DecodeBufferPath extends Path {
+		private ByteBuffer byteBuffer;
+		private IncomingMessage incomingMessage = new IncomingMessage();
+
+		DecodeBufferPath() throws IOException {
+			super("decode buffer", 0);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (int i = 0; i < 1000; i++)
+				changeMessage(i, i).writeTo(bytes);
+			byteBuffer = ByteBuffer.wrap(bytes.toByteArray());
+		}
+
+		void run(int operations) {
+			for (int i = 0; i < operations; i++) {
+				if (!byteBuffer.hasRemaining())
+					byteBuffer.rewind();
+				incomingMessage.readFromNB(byteBuffer);
+				sink += incomingMessage.integer8() + incomingMessage.integer32() + (long)incomingMessage.decimal64();
+			}
+		}
+	}
+
+	private static class DecodeStreamPath extends Path {
+		private ByteArrayInputStream inputStream;
+		private IncomingMessage incomingMessage = new IncomingMessage();
+
+		DecodeStreamPath() throws IOException {
+			super("decode stream", 0);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (int i = 0; i < 1000; i++)
+				changeMessage(i, i).writeTo(bytes);
+			inputStream = new ByteArrayInputStream(bytes.toByteArray());
+		}
+
+		void run(int operations) throws IOException {
+			for (int i = 0; i < operations; i++) {
+				if (inputStream.available() == 0)
+					inputStream.reset();
+				incomingMessage.readFromNB(inputStream);
+				sink += incomingMessage.integer8() + incomingMessage.integer32() + (long)incomingMessage.decimal64();
+			}
+		}
+	}
+
+	private static class EncodePath extends Path {
+		private OutgoingMessage outgoingMessage = new OutgoingMessage();
+		private OutputStream outputStream = new OutputStream() {
+			public void write(int b) {
+				sink += b;
+			}
+
+			public void write(byte[] b, int offset, int length) {
+				sink += length;
+			}
+		};
+
+		EncodePath() {
+			super("encode", 0);
+		}
+
+		void run(int operations) throws IOException {
+			for (int i = 0; i < operations; i++) {
+				outgoingMessage.clear().integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).integer32(i).decimal64(i);
+				outgoingMessage.writeTo(outputStream);
+			}
+		}
+	}
+
+	private static class DispatchPath extends Path {
+		private ByteBuffer byteBuffer;
+		private IncomingMessage incomingMessage = new IncomingMessage();
+		private OhapSession session;
+
+		DispatchPath(String name, long budget, OutgoingMessage outgoingMessage) {
+			super(name, budget);
+			byteBuffer = outgoingMessage.asByteBuffer();
+			session = createSession(createServer(), name);
+		}
+
+		void run(int operations) {
+			for (int i = 0; i < operations; i++) {
+				byteBuffer.rewind();
+				incomingMessage.readFromNB(byteBuffer);
+				session.handleMessage(incomingMessage);
+			}
+		}
+	}
+
+	private static class FanOutPath extends Path {
+		private Container container;
+		private DecimalDevice device;
+		private OutgoingMessage outgoingMessage = changeMessage(2, 21.5);
+
+		FanOutPath() {
+			super("fan-out x" + LISTENERS, 0);
+			OhapServer server = createServer();
+			container = (Container)server.getItemByIdentifier(1);
+			device = (DecimalDevice)server.getItemByIdentifier(2);
+			for (int i = 0; i < LISTENERS; i++)
+				container.addListener(createSession(server, "listener " + i));
+		}
+
+		void run(int operations) {
+			for (int i = 0; i < operations; i++)
+				container.sendToListeners(device, outgoingMessage);
+		}
+	}
+}
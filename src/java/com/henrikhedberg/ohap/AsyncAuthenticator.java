@@ -0,0 +1,231 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.henrikhedberg.ohap;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an {@link Authenticator} in a pool of worker threads and remembers
+ * the recent successful authentications.
+ *
+ * <p>A user whose name and password were accepted within the cache time is
+ * accepted again without calling the authenticator, so a storm of clients
+ * reconnecting at once costs one digest of the password each instead of a
+ * call to the backend. The cache keeps a salted SHA-256 digest of the
+ * password, never the password itself, and forgets the least recently
+ * used user when it is full. Concurrent logins of the same user with the
+ * same password share one call to the authenticator. Failed
+ * authentications are not cached.
+ *
+ * <p>The worker threads have a bounded queue. A login that does not fit
+ * into it fails with an {@link IOException}, like a login whose
+ * authenticator throws one.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class AsyncAuthenticator {
+	private Authenticator authenticator;
+	private ThreadPoolExecutor executor;
+	private long cacheTime;
+	private byte[] salt = new byte[16];
+	private LinkedHashMap<String, CacheEntry> cache;
+	private HashMap<String, Request> requests = new HashMap<>();
+	private long cacheHits;
+	private long authenticatorCalls;
+
+	/**
+	 * Instantiates a new authenticator.
+	 *
+	 * @param authenticator the authenticator to run in the worker threads
+	 * @param threads the amount of worker threads
+	 * @param cacheSize the maximum amount of users in the cache, 0 for no cache
+	 * @param cacheTime the time in milliseconds a successful authentication is remembered
+	 */
+	public AsyncAuthenticator(Authenticator authenticator, int threads, final int cacheSize, long cacheTime) {
+		this.authenticator = authenticator;
+		this.cacheTime = TimeUnit.MILLISECONDS.toNanos(cacheTime);
+		new SecureRandom().nextBytes(salt);
+		cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > cacheSize;
+			}
+		};
+
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 64),
+		                                  new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Authenticator-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Authenticates the given user. The returned future is already
+	 * completed if the user was found in the cache. Otherwise, it is
+	 * completed in a worker thread.
+	 *
+	 * @param name the name of the user
+	 * @param password the password of the user
+	 * @return a future completed with whether the user may log in, or
+	 * exceptionally if the credentials could not be checked
+	 */
+	public CompletableFuture<Boolean> authenticate(final String name, final String password) {
+		final byte[] digest = digest(name, password);
+		long now = System.nanoTime();
+		final Request request;
+		synchronized (this) {
+			CacheEntry entry = cache.get(name);
+			if (entry != null) {
+				if (now - entry.time >= cacheTime) {
+					cache.remove(name);
+				} else if (MessageDigest.isEqual(entry.digest, digest)) {
+					cacheHits++;
+					return CompletableFuture.completedFuture(Boolean.TRUE);
+				}
+			}
+
+			Request pending = requests.get(name);
+			if (pending != null && MessageDigest.isEqual(pending.digest, digest))
+				return pending.future;
+
+			request = new Request(digest);
+			if (pending == null)
+				requests.put(name, request);
+			authenticatorCalls++;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					boolean accepted;
+					try {
+						accepted = authenticator.authenticate(name, password);
+					} catch (IOException | RuntimeException e) {
+						finish(name, request, false);
+						request.future.completeExceptionally(e);
+						return;
+					}
+					finish(name, request, accepted);
+					request.future.complete(Boolean.valueOf(accepted));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			finish(name, request, false);
+			request.future.completeExceptionally(new IOException("Too many logins in progress."));
+		}
+
+		return request.future;
+	}
+
+	/**
+	 * Forgets the given user, for example when the password has been
+	 * changed or the user removed. An authentication already in progress is
+	 * not affected.
+	 *
+	 * @param name the name of the user
+	 */
+	public synchronized void invalidate(String name) {
+		cache.remove(name);
+	}
+
+	/**
+	 * Returns the amount of authentications answered from the cache.
+	 *
+	 * @return the cache hits
+	 */
+	public synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * Returns the amount of calls to the {@link Authenticator}.
+	 *
+	 * @return the authenticator calls
+	 */
+	public synchronized long getAuthenticatorCalls() {
+		return authenticatorCalls;
+	}
+
+	/**
+	 * Stops the worker threads after the authentications in progress.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private synchronized void finish(String name, Request request, boolean accepted) {
+		if (requests.get(name) == request)
+			requests.remove(name);
+		if (accepted && cacheTime > 0)
+			cache.put(name, new CacheEntry(request.digest, System.nanoTime()));
+	}
+
+	private byte[] digest(String name, String password) {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		messageDigest.update(salt);
+		messageDigest.update(name.getBytes(StandardCharsets.UTF_8));
+		messageDigest.update((byte)0);
+
+		return messageDigest.digest(password.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static class CacheEntry {
+		final byte[] digest;
+		final long time;
+
+		CacheEntry(byte[] digest, long time) {
+			this.digest = digest;
+			this.time = time;
+		}
+	}
+
+	private static class Request {
+		final byte[] digest;
+		final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+		Request(byte[] digest) {
+			this.digest = digest;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.henrikhedberg.ohap;
+
+import java.io.IOException;
+
+/**
+ * Checks the credentials of a user logging in to an {@link OhapServer}.
+ *
+ * <p>An implementation may block, for example when it verifies a password
+ * hash or asks a directory service. It is called in the worker threads of
+ * an {@link AsyncAuthenticator}, never in the thread that handles the
+ * messages of the sessions, and possibly in several threads at once.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ * @see OhapServer#setAuthenticator(AsyncAuthenticator)
+ */
+public interface Authenticator {
+	/**
+	 * Checks the given credentials.
+	 *
+	 * @param name the name of the user
+	 * @param password the password of the user
+	 * @return whether the user may log in
+	 * @throws IOException if the credentials could not be checked
+	 */
+	public boolean authenticate(String name, String password) throws IOException;
+}
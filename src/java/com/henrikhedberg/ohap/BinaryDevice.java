@@ -25,7 +25,7 @@ package com.henrikhedberg.ohap;
  * Inherits all common properties from the {@link Device} super class.
  *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20160311)
+ * @version 1.2 (20261018)
  */
 public class BinaryDevice extends Device {	
 	private boolean value;
@@ -43,14 +43,23 @@ public class BinaryDevice extends Device {
 		outputData(outgoingMessage);	
 	}
 	
-	public void changeValue(boolean value) {
+	public synchronized void changeValue(boolean value) {
 		this.value = value;
 
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		OutgoingMessage outgoingMessage = new OutgoingMessage(8);
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_BINARY_CHANGED);
 		outputIdentifier(outgoingMessage);
 		outgoingMessage.binary8(value);
 
-		getParent().sendToListeners(outgoingMessage);
+		getParent().sendToListeners(this, outgoingMessage);
+		valueChanged();
+	}
+
+	long getValueBits() {
+		return value ? 1 : 0;
+	}
+
+	void restoreValueBits(long bits) {
+		value = bits != 0;
 	}
 }
@@ -0,0 +1,179 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.BufferInputStream;
+import com.henrikhedberg.util.BufferOutputStream;
+import com.henrikhedberg.util.SpscBufferInputStream;
+import com.henrikhedberg.util.SpscBufferOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures the stream bridge between the HTTP threads and an OHAP session
+ * with the synchronized {@link BufferInputStream} and {@link BufferOutputStream}
+ * and with their lock-free single-producer/single-consumer counterparts.
+ *
+ * <p>In the input direction, a producer thread feeds request bodies of 64
+ * decimal change messages into the stream, and a consumer thread parses them
+ * with {@link IncomingMessage#readFrom(InputStream)}. In the output direction,
+ * a producer thread writes {@link OutgoingMessage}s one at a time, and a
+ * consumer thread drains the stream as if into an HTTP response. Both keep
+ * at most 64 KiB in flight.
+ *
+ * <p>Usage: <code>BridgeBenchmark [messages] [rounds]</code>. The first
+ * round of each variant is a warm-up.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class BridgeBenchmark {
+	private static final int IN_FLIGHT = 64 * 1024;
+	private static final int BATCH = 64;
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		messages -= messages % BATCH;
+
+		OutgoingMessage message = new OutgoingMessage();
+		message.integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).integer32(3).decimal64(21.5);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < BATCH; i++)
+			message.writeTo(bytes);
+		byte[] body = bytes.toByteArray();
+
+		for (int round = 0; round < rounds; round++) {
+			String prefix = round == 0 ? "warm-up " : "";
+			report(prefix + "input  synchronized", messages, body.length / BATCH, input(false, body, messages));
+			report(prefix + "input  spsc        ", messages, body.length / BATCH, input(true, body, messages));
+			report(prefix + "output synchronized", messages, body.length / BATCH, output(false, message, messages));
+			report(prefix + "output spsc        ", messages, body.length / BATCH, output(true, message, messages));
+		}
+	}
+
+	private static long input(boolean spsc, byte[] body, int messages) throws Exception {
+		BufferInputStream locked = spsc ? null : new BufferInputStream(1024, IN_FLIGHT);
+		SpscBufferInputStream lockFree = spsc ? new SpscBufferInputStream(IN_FLIGHT) : null;
+		InputStream stream = spsc ? lockFree : locked;
+
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					ByteArrayInputStream request = new ByteArrayInputStream(body);
+					for (int sent = 0; sent < messages; sent += BATCH) {
+						request.reset();
+						if (spsc) {
+							lockFree.readFrom(request);
+						} else {
+							while (request.available() > 0)
+								if (locked.readFrom(request) == 0)
+									Thread.yield();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		long start = System.nanoTime();
+		producer.start();
+		IncomingMessage incomingMessage = new IncomingMessage();
+		double sum = 0;
+		for (int received = 0; received < messages; received++) {
+			incomingMessage.readFrom(stream);
+			incomingMessage.integer8();
+			incomingMessage.integer32();
+			sum += incomingMessage.decimal64();
+		}
+		long elapsed = System.nanoTime() - start;
+		producer.join();
+		if (sum != 21.5 * messages)
+			throw new IllegalStateException("Corrupted input.");
+
+		return elapsed;
+	}
+
+	private static long output(boolean spsc, OutgoingMessage message, int messages) throws Exception {
+		BufferOutputStream locked = spsc ? null : new BufferOutputStream(1024);
+		SpscBufferOutputStream lockFree = spsc ? new SpscBufferOutputStream(IN_FLIGHT) : null;
+
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int sent = 0; sent < messages; sent++) {
+						if (spsc) {
+							message.writeTo(lockFree);
+						} else {
+							while (locked.available() > IN_FLIGHT)
+								Thread.yield();
+							message.writeTo(locked);
+						}
+					}
+					if (spsc)
+						lockFree.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		CountingOutputStream response = new CountingOutputStream();
+		long expected = (long)messages * message.asByteBuffer().remaining();
+		long start = System.nanoTime();
+		producer.start();
+		while (response.count < expected) {
+			int written = spsc ? lockFree.writeTo(response) : locked.writeTo(response);
+			if (written == 0)
+				Thread.yield();
+			else if (written == -1)
+				break;
+		}
+		long elapsed = System.nanoTime() - start;
+		producer.join();
+		if (response.count != expected)
+			throw new IllegalStateException("Corrupted output.");
+
+		return elapsed;
+	}
+
+	private static void report(String name, int messages, int messageSize, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%s  %6.0f ns/msg  %8.2f Mmsg/s  %8.1f MiB/s%n", name, (double)nanos / messages,
+		                  messages / seconds / 1e6, (double)messages * messageSize / seconds / (1024 * 1024));
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int offset, int length) {
+			count += length;
+		}
+	}
+}
@@ -20,6 +20,7 @@
 
 package com.henrikhedberg.ohap;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -28,13 +29,16 @@ import java.io.IOException;
  * A container holding items. Inherits all common properties from the
  * {@link Item} base class.
  *
+ * <p>The listeners may be added, removed and notified from several threads.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20160311)
+ * @version 1.3 (20261018)
  */
 public class Container extends Item {
 	private OhapServer server;
 	private HashSet<Item> items = new HashSet<>();
 	private HashSet<OhapSession> listeners = new HashSet<>();
+	private volatile OhapSession[] listenerArray = new OhapSession[0];
 
 	public Container(long identifier, String name, String description, boolean internal) {
 		super(identifier, name, description, internal);
@@ -46,7 +50,7 @@ public class Container extends Item {
 		outputData(outgoingMessage);	
 	}
 
-	public void addItem(Item item) {
+	public synchronized void addItem(Item item) {
 		item.setParent(this);
 		items.add(item);
 		if (server != null) {
@@ -54,6 +58,10 @@ public class Container extends Item {
 		}
 	}
 	
+	Collection<Item> getItems() {
+		return items;
+	}
+
 	protected void attachToServer(OhapServer server) {
 		super.attachToServer(server);
 		this.server = server;
@@ -61,8 +69,9 @@ public class Container extends Item {
 			item.attachToServer(server);
 	}
 
-	public void addListener(OhapSession session) {
-		listeners.add(session);
+	public synchronized void addListener(OhapSession session) {
+		if (listeners.add(session))
+			listenerArray = listeners.toArray(new OhapSession[listeners.size()]);
 		for (Item item: items) {
 			OutgoingMessage outgoingMessage = new OutgoingMessage();
 			item.outputMessage(outgoingMessage);
@@ -70,14 +79,28 @@ public class Container extends Item {
 		}
 	}
 	
-	public void removeListener(OhapSession session) {
-		listeners.remove(session);
+	public synchronized void removeListener(OhapSession session) {
+		if (listeners.remove(session))
+			listenerArray = listeners.toArray(new OhapSession[listeners.size()]);
 	}
 	
-	void sendToListeners(OutgoingMessage outgoingMessage) {
-		OhapSession[] sessions = listeners.toArray(new OhapSession[listeners.size()]);
+	void sendToListeners(Item item, OutgoingMessage outgoingMessage) {
+		OhapEvents.FanOut event = new OhapEvents.FanOut();
+		event.begin();
+		OhapSession[] sessions = listenerArray;
+		if (server != null)
+			server.getOhapMetrics().fannedOut(sessions.length);
 		for (OhapSession session : sessions) {
 			session.sendMessage(outgoingMessage);
 		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.itemIdentifier = item.getIdentifier();
+			event.containerIdentifier = getIdentifier();
+			event.messageType = outgoingMessage.getType();
+			event.listeners = sessions.length;
+			event.bytes = outgoingMessage.getLength();
+			event.commit();
+		}
 	}
 }
@@ -25,7 +25,7 @@ package com.henrikhedberg.ohap;
  * Inherits all common properties from the {@link Device} super class.
  *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20160311)
+ * @version 1.2 (20261018)
  */
 public class DecimalDevice extends Device {
 	private double value;
@@ -33,6 +33,7 @@ public class DecimalDevice extends Device {
 	private double max;
 	private String unit;
 	private String unitAbbreviation;
+	private TimeSeries history;
 
 	public DecimalDevice(long identifier, String name, String description, boolean internal, Type type, double value, double min, double max, String unit, String unitAbbreviation) {
 		super(identifier, name, description, internal, type);
@@ -52,14 +53,41 @@ public class DecimalDevice extends Device {
 		outgoingMessage.decimal64(min).decimal64(max).text(unit).text(unitAbbreviation);
 	}
 	
-	public void changeValue(double value) {
+	/**
+	 * Starts recording the value history into the given {@link TimeSeries}.
+	 * The current value is recorded immediately.
+	 *
+	 * @param history the ring buffer to record into, or null to stop recording
+	 */
+	public void setHistory(TimeSeries history) {
+		this.history = history;
+		if (history != null)
+			history.record(System.currentTimeMillis(), value);
+	}
+
+	public TimeSeries getHistory() {
+		return history;
+	}
+
+	public synchronized void changeValue(double value) {
 		this.value = value;
+		if (history != null)
+			history.record(System.currentTimeMillis(), value);
 
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		OutgoingMessage outgoingMessage = new OutgoingMessage(15);
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED);
 		outputIdentifier(outgoingMessage);
 		outgoingMessage.decimal64(value);
 
-		getParent().sendToListeners(outgoingMessage);
+		getParent().sendToListeners(this, outgoingMessage);
+		valueChanged();
+	}
+
+	long getValueBits() {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	void restoreValueBits(long bits) {
+		value = Double.longBitsToDouble(bits);
 	}
 }
@@ -34,6 +34,7 @@ public abstract class Device extends Item {
 	}
 	
 	protected Type type;
+	private OhapServer server;
 
 	public Device(long identifier, String name, String description, boolean internal, Type type) {
 		super(identifier, name, description, internal);
@@ -44,4 +45,33 @@ public abstract class Device extends Item {
 	public Type getType() {
 		return type;
 	}
+
+	protected void attachToServer(OhapServer server) {
+		super.attachToServer(server);
+		this.server = server;
+	}
+
+	/**
+	 * Tells the server that the value has changed. Called by the subclasses
+	 * after the listeners have been notified.
+	 */
+	void valueChanged() {
+		if (server != null)
+			server.deviceValueChanged(this);
+	}
+
+	/**
+	 * Returns the current value encoded as 64 bits for persistence.
+	 *
+	 * @return the value bits
+	 */
+	abstract long getValueBits();
+
+	/**
+	 * Sets the value from the bits returned by {@link #getValueBits()}
+	 * without notifying listeners.
+	 *
+	 * @param bits the value bits
+	 */
+	abstract void restoreValueBits(long bits);
 }
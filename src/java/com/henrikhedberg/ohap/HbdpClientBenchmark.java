@@ -0,0 +1,148 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.hbdp.client.HbdpConnection;
+import com.henrikhedberg.hbdp.client.NioHbdpClient;
+import com.henrikhedberg.hbdp.client.NioHbdpConnection;
+import com.henrikhedberg.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the thread-based {@link HbdpConnection} with the event-driven
+ * {@link NioHbdpConnection} at different linger times when an application
+ * writes OHAP messages one at a time at a steady rate.
+ *
+ * <p>The benchmark starts a {@link NioOhapServer} in this process on a
+ * loopback port. For every client variant, one session logs in and writes
+ * decimal changes at the given rate, each with a write call of its own, and
+ * finally waits for the pong of a ping. It reports the POST requests the
+ * server received, the messages per POST and the CPU time of the process
+ * per message. The CPU time includes the server, which handles every POST
+ * with its HTTP parsing and response.
+ *
+ * <p>Usage: <code>HbdpClientBenchmark [messages/s] [seconds] [lingers]</code>,
+ * where the lingers are a comma-separated list of milliseconds. The defaults
+ * are <code>2000 5 0,1,5,20</code>. The first variant is run once as a
+ * warm-up.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class HbdpClientBenchmark {
+	public static void main(String[] args) throws Exception {
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long duration = TimeUnit.SECONDS.toNanos(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+		String[] lingers = (args.length > 2 ? args[2] : "0,1,5,20").split(",");
+		Log.setLevel(Log.Level.OFF);
+
+		NioOhapServer server = new NioOhapServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+		                                         new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/");
+		Container root = new Container(0, "HBDP Client Benchmark", "The root container.", false);
+		root.addItem(new DecimalDevice(1, "Actuator", "The changed actuator.", false, Device.Type.ACTUATOR, 0, -1e12, 1e12, "", ""));
+		server.setRootContainer(root, 2);
+		Thread serverThread = new Thread(server.getSelectorLoop(), "HbdpClientBenchmark");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		InetSocketAddress address = (InetSocketAddress)server.getTcpHbdpServer().getLocalAddress();
+		URL url = new URL("http://" + address.getHostString() + ":" + address.getPort() + "/");
+
+		System.out.printf("%-16s %9s %9s %9s %10s %12s%n", "", "messages", "POSTs", "msg/POST", "CPU ms", "CPU us/msg");
+		run("warm-up thread", server, url, -1, rate, duration);
+		run("thread", server, url, -1, rate, duration);
+		for (String linger : lingers)
+			run("nio linger " + linger.trim(), server, url, Long.parseLong(linger.trim()), rate, duration);
+
+		/* The threads of a closed HbdpConnection wait for their held requests. */
+		System.exit(0);
+	}
+
+	/*
+	 * Runs one variant. A negative linger selects the thread-based client.
+	 */
+	private static void run(String name, NioOhapServer server, URL url, long linger, int rate, long duration) throws Exception {
+		HbdpConnection connection = null;
+		NioHbdpConnection nioConnection = null;
+		OutputStream outputStream;
+		InputStream inputStream;
+		if (linger < 0) {
+			connection = new HbdpConnection(url);
+			outputStream = connection.getOutputStream();
+			inputStream = connection.getInputStream();
+		} else {
+			NioHbdpClient client = new NioHbdpClient(url);
+			client.setLinger(linger);
+			nioConnection = client.connect();
+			outputStream = nioConnection.getOutputStream();
+			inputStream = nioConnection.getInputStream();
+		}
+
+		OutgoingMessage login = new OutgoingMessage();
+		login.integer8(OhapServer.MESSAGE_TYPE_LOGIN).integer8(1).text("benchmark").text("benchmark");
+		login.writeTo(outputStream);
+		waitFor(inputStream, OhapServer.MESSAGE_TYPE_CONTAINER);
+
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+		long polls = server.getTcpHbdpServer().getHbdpServer().getPolls();
+		long cpu = os.getProcessCpuTime();
+
+		long messages = duration * rate / TimeUnit.SECONDS.toNanos(1);
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		long next = System.nanoTime();
+		for (long i = 0; i < messages; i++) {
+			long delay = next - System.nanoTime();
+			if (delay > 0)
+				LockSupport.parkNanos(delay);
+			next += interval;
+			OutgoingMessage change = new OutgoingMessage();
+			change.integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).integer32(1).decimal64(i);
+			change.writeTo(outputStream);
+		}
+		OutgoingMessage ping = new OutgoingMessage();
+		ping.integer8(OhapServer.MESSAGE_TYPE_PING).integer32(1);
+		ping.writeTo(outputStream);
+		waitFor(inputStream, OhapServer.MESSAGE_TYPE_PONG);
+
+		cpu = os.getProcessCpuTime() - cpu;
+		polls = server.getTcpHbdpServer().getHbdpServer().getPolls() - polls;
+		System.out.printf("%-16s %9d %9d %9.1f %10.1f %12.2f%n", name, messages, polls, (double)messages / polls,
+		                  cpu / 1e6, cpu / 1e3 / messages);
+
+		if (connection != null)
+			connection.close();
+		else
+			nioConnection.close();
+	}
+
+	private static void waitFor(InputStream inputStream, int type) throws IOException {
+		IncomingMessage incomingMessage = new IncomingMessage();
+		do {
+			incomingMessage.readFrom(inputStream);
+		} while (incomingMessage.integer8() != type);
+	}
+}
@@ -23,7 +23,9 @@ package com.henrikhedberg.ohap;
 import com.henrikhedberg.hbdp.server.*;
 import com.sun.net.httpserver.*;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
 import com.henrikhedberg.util.InputStreamHandler;
+import com.henrikhedberg.util.MetricsHttpHandler;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.IOException;
@@ -33,8 +35,12 @@ import java.io.IOException;
  * <p>The implementation relies on the {@link HbdpServer} and
  * the <code>com.sun.new.httpserver</code> package.
  *
+ * <p>The metrics of the server are served in the path given in the
+ * <code>ohap.metricsPath</code> system property of the same HTTP server,
+ * <code>/metrics</code> by default. An empty path disables them.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20160312)
+ * @version 1.3 (20261018)
  */
 
 public class HbdpOhapServer extends OhapServer {
@@ -46,6 +52,7 @@ public class HbdpOhapServer extends OhapServer {
 				new HbdpOhapSession(HbdpOhapServer.this, connection);
 			}
 		});
+		registerHbdpMetrics(hbdpServer);
 	}
 	
 	public HbdpServer getHbdpServer() {
@@ -53,20 +60,37 @@ public class HbdpOhapServer extends OhapServer {
 	}
 
 	public static void main(String[] args) throws IOException {
-		HttpServer httpServer = HttpServer.create(new InetSocketAddress(18000), 10);
+		ExecutorService executor = HbdpServer.createExecutor(System.getProperty("hbdp.threads"));
+		int shards = Integer.getInteger("hbdp.shards", 0);
+		if (shards > 0 && executor != null)
+			throw new IllegalArgumentException("hbdp.shards cannot be combined with hbdp.threads: the requests of a session would reach its shard out of order.");
+		HttpServer httpServer = HttpServer.create(new InetSocketAddress(18000), 256);
 		HttpContext httpContext = httpServer.createContext("/");
 		HbdpOhapServer ohapServer = new HbdpOhapServer(httpContext);
-		httpServer.setExecutor(null);
+		ohapServer.configure();
+		String metricsPath = System.getProperty("ohap.metricsPath", "/metrics");
+		if (!metricsPath.isEmpty())
+			httpServer.createContext(metricsPath, new MetricsHttpHandler(ohapServer.getMetrics()));
+		if (shards > 0)
+			ohapServer.getHbdpServer().setShards(HbdpServer.createShardExecutors(shards));
+		ohapServer.getHbdpServer().setOrderTimeout(Long.getLong("hbdp.orderTimeout", executor != null ? 1000 : 0));
+		ohapServer.getHbdpServer().setIdleTimeout(Long.getLong("hbdp.idleTimeout", 300000));
+		ohapServer.getHbdpServer().setHoldTime(Long.getLong("hbdp.holdTime", 0));
+		ohapServer.getHbdpServer().setBatchWindow(Long.getLong("hbdp.batchWindow", 0));
+		ohapServer.getHbdpServer().setCompressionThreshold(Integer.getInteger("hbdp.compressionThreshold", 1024));
+		httpServer.setExecutor(executor);
 		httpServer.start();
 	}
 	
-	private static class HbdpOhapSession extends OhapSession {
+	static class HbdpOhapSession extends OhapSession {
+		private HbdpConnection connection;
 		private InputStream inputStream;
 		private OutputStream outputStream;
 		private IncomingMessage incomingMessage = new IncomingMessage();;
 
 		HbdpOhapSession(OhapServer server, HbdpConnection connection) {
-			super(server, connection.getIdentifier());
+			super(server, "hbdp", connection.getIdentifier());
+			this.connection = connection;
 			inputStream = connection.getInputStream();
 			outputStream = connection.getOutputStream();
 			connection.setInputStreamHandler(new InputStreamHandler() {
@@ -84,9 +108,17 @@ public class HbdpOhapServer extends OhapServer {
 		protected void writeMessage(OutgoingMessage outgoingMessage) throws IOException {
 			outgoingMessage.writeTo(outputStream);
 		}
+
+		protected int getQueuedBytes() {
+			return connection.getPendingOutput();
+		}
 		
 		protected void close() throws IOException {
 			outputStream.close();
 		}
+
+		protected void execute(Runnable task) {
+			connection.execute(task);
+		}
 	}
 }
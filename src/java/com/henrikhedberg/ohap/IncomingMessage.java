@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Parses an incoming OHAP message.
@@ -32,17 +33,34 @@ import java.nio.ByteBuffer;
  * <p>Call either {@link #readFrom(InputStream)} or {@link #readFromNB(InputStream)} to
  * read a message from an {@link InputStream} or @{link #readFrom(ByteBuffer) to read
  * a message from a {@link ByteBuffer}. Then, use {@link #integer8()},
- * {@link #integer16()}, {@link #integer32()}, {@link #decimal64()}, {@link #allBytes(byte[])},
+ * {@link #integer16()}, {@link #integer32()}, {@link #integer64()}, {@link #decimal64()}, {@link #allBytes(byte[])},
  * {@link #binary8()}, and {@link #text()} sequentially to take parsed values.
  *
+ * <p>The messages are read into the same buffer, which grows to the size of
+ * the largest message, so reading a message does not allocate.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20160320)
+ * @version 1.4 (20261018)
  */
 public class IncomingMessage {
-	private byte[] buffer;
+	private static final Charset charset = Charset.forName("UTF-8");
+
+	private byte[] buffer = new byte[64];
+	private int length;
 	private int position;
 	private int nbLength = -1;
-	private final Charset charset = Charset.forName("UTF-8");
+
+	/*
+	 * Returns a copy of the current message, positioned at its start, for
+	 * a message that has to be handled after the next one has been read.
+	 */
+	IncomingMessage copy() {
+		IncomingMessage copy = new IncomingMessage();
+		copy.buffer = Arrays.copyOf(buffer, Math.max(length, 4));
+		copy.length = length;
+
+		return copy;
+	}
 
 	/**
 	 * Reads one message from the given {@link InputStream}. Blocks until
@@ -52,12 +70,8 @@ public class IncomingMessage {
 	 * @throws IOException if an operation on the given stream throws an exception
 	 */
 	public void readFrom(InputStream inputStream) throws IOException {
-		buffer = readExactly(inputStream, 2);
-		position = 0;
-		int length = integer16();
-
-		buffer = readExactly(inputStream, length);
-		position = 0;
+		readExactly(inputStream, 2);
+		readExactly(inputStream, integer16());
 	}
 
 	/**
@@ -73,21 +87,22 @@ public class IncomingMessage {
 	 * @throws IOException if an operation on the given stream throws an exception
 	 */
 	public boolean readFromNB(InputStream inputStream) throws IOException {
+		OhapEvents.MessageDecode event = new OhapEvents.MessageDecode();
+		event.begin();
 		if (nbLength == -1) {
 			if (inputStream.available() < 2)
 				return false;
 
-			buffer = readExactly(inputStream, 2);
-			position = 0;
+			readExactly(inputStream, 2);
 			nbLength = integer16();
 		}
 	
 		if (inputStream.available() < nbLength)
 			return false;
 
-		buffer = readExactly(inputStream, nbLength);
-		position = 0;
+		readExactly(inputStream, nbLength);
 		nbLength = -1;
+		decoded(event);
 
 		return true;
 	}
@@ -102,21 +117,22 @@ public class IncomingMessage {
 	 * @return whether the message was fully read
 	 */
 	public boolean readFromNB(ByteBuffer byteBuffer) {
+		OhapEvents.MessageDecode event = new OhapEvents.MessageDecode();
+		event.begin();
 		if (nbLength == -1) {
 			if (byteBuffer.remaining() < 2)
 				return false;
 
-			buffer = readExactly(byteBuffer, 2);
-			position = 0;
+			readExactly(byteBuffer, 2);
 			nbLength = integer16();
 		}
 
 		if (byteBuffer.remaining() < nbLength)
 			return false;
 
-		buffer = readExactly(byteBuffer, nbLength);
-		position = 0;
+		readExactly(byteBuffer, nbLength);
 		nbLength = -1;
+		decoded(event);
 
 		return true;
 	}
@@ -128,7 +144,7 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public int integer8() {
-		if (position + 1 > buffer.length)
+		if (position + 1 > length)
 			throw new ArrayIndexOutOfBoundsException();
 
 		int value = buffer[position] & 0xff;
@@ -144,7 +160,7 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public int integer16() {
-		if (position + 2 > buffer.length)
+		if (position + 2 > length)
 			throw new ArrayIndexOutOfBoundsException();
 
 		int value = (buffer[position] & 0xff) << 8 |
@@ -161,7 +177,7 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public long integer32() {
-		if (position + 4 > buffer.length)
+		if (position + 4 > length)
 			throw new ArrayIndexOutOfBoundsException();
 
 		long value = (buffer[position] & 0xffL) << 24 |
@@ -173,6 +189,29 @@ public class IncomingMessage {
 		return value;
 	}
 
+	/**
+	 * Takes the next signed 64-bit integer from the message.
+	 *
+	 * @return signed 64-bit integer
+	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
+	 */
+	public long integer64() {
+		if (position + 8 > length)
+			throw new ArrayIndexOutOfBoundsException();
+
+		long value = (buffer[position] & 0xffL) << 56 |
+				(buffer[position + 1] & 0xffL) << 48 |
+				(buffer[position + 2] & 0xffL) << 40 |
+				(buffer[position + 3] & 0xffL) << 32 |
+				(buffer[position + 4] & 0xffL) << 24 |
+				(buffer[position + 5] & 0xffL) << 16 |
+				(buffer[position + 6] & 0xffL) << 8 |
+				(buffer[position + 7] &0xffL);
+		position += 8;
+
+		return value;
+	}
+
 	/**
 	 * Takes the next IEEE 754 floating-point double precision decimal number from the message.
 	 *
@@ -180,7 +219,7 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public double decimal64() {
-		if (position + 8 > buffer.length)
+		if (position + 8 > length)
 			throw new ArrayIndexOutOfBoundsException();
 
 		long value = (buffer[position] & 0xffL) << 56 |
@@ -204,7 +243,7 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public void allBytes(byte[] bytes) {
-		if (position + bytes.length > buffer.length)
+		if (position + bytes.length > length)
 			throw new ArrayIndexOutOfBoundsException();
 
 		System.arraycopy(buffer, position, bytes, 0, bytes.length);
@@ -224,6 +263,31 @@ public class IncomingMessage {
 		return i == 1;
 	}
 
+	/**
+	 * Returns the unsigned 32-bit integer at the given offset of the
+	 * message without taking it, or -1 if the message is too short.
+	 *
+	 * @param offset the offset from the beginning of the message
+	 * @return unsigned 32-bit integer or -1
+	 */
+	long peekInteger32(int offset) {
+		if (offset < 0 || offset + 4 > length)
+			return -1;
+
+		return (buffer[offset] & 0xffL) << 24 | (buffer[offset + 1] & 0xffL) << 16 |
+		       (buffer[offset + 2] & 0xffL) << 8 | (buffer[offset + 3] & 0xffL);
+	}
+
+	/**
+	 * Returns the length of the last fully read message, including its
+	 * length field.
+	 *
+	 * @return length of the message in bytes
+	 */
+	public int getLength() {
+		return length + 2;
+	}
+
 	/**
 	 * Treats the next bytes as text and takes it from the message.
 	 *
@@ -231,33 +295,53 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public String text() {
-		int length = integer16();
-		byte[] bytes = new byte[length];
-		allBytes(bytes);
+		int textLength = integer16();
+		if (position + textLength > length)
+			throw new ArrayIndexOutOfBoundsException();
+
+		String text = new String(buffer, position, textLength, charset);
+		position += textLength;
+
+		return text;
+	}
 
-		return new String(bytes, charset);
+	private void decoded(OhapEvents.MessageDecode event) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.messageType = length > 0 ? buffer[0] & 0xff : -1;
+			event.bytes = length + 2;
+			event.commit();
+		}
 	}
 
-	private static byte[] readExactly(InputStream inputStream, int length) throws IOException {
-		byte[] bytes = new byte[length];
+	/*
+	 * Reads the given amount of bytes into the beginning of the buffer and
+	 * makes them the current message.
+	 */
+	private void readExactly(InputStream inputStream, int length) throws IOException {
+		ensureCapacity(length);
 
 		int offset = 0;
-		while (length > 0) {
-			int got = inputStream.read(bytes, offset, length);
+		while (offset < length) {
+			int got = inputStream.read(buffer, offset, length - offset);
 			if (got == -1)
 				throw new EOFException("End of message input.");
 			offset += got;
-			length -= got;
 		}
-
-		return bytes;
+		this.length = length;
+		position = 0;
 	}
 
-	private static byte[] readExactly(ByteBuffer byteBuffer, int length) {
-		byte[] bytes = new byte[length];
+	private void readExactly(ByteBuffer byteBuffer, int length) {
+		ensureCapacity(length);
 
-		byteBuffer.get(bytes);
+		byteBuffer.get(buffer, 0, length);
+		this.length = length;
+		position = 0;
+	}
 
-		return bytes;
+	private void ensureCapacity(int capacity) {
+		if (buffer.length < capacity)
+			buffer = new byte[Math.max(capacity, 2 * buffer.length)];
 	}
 }
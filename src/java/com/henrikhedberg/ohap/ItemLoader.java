@@ -0,0 +1,202 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Loads a tree of {@link Container}s and {@link Device}s from a compact item file.
+ *
+ * <p>An item file is a sequence of OHAP messages. The first message is a header
+ * holding the format version (unsigned 8-bit integer, currently 1) and the
+ * total amount of items (unsigned 32-bit integer). It is followed by one item
+ * message per item, encoded exactly as the server sends them to clients. The
+ * first item must be the root container with the identifier 0, and every other
+ * item must come after its parent. The {@link #save(Container, OutputStream)}
+ * method writes a tree in this format.
+ *
+ * <p>The loader validates the identifiers and parent references in one pass
+ * over the file, using an index pre-sized from the header.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class ItemLoader {
+	public static final int FORMAT_VERSION = 1;
+
+	private InputStream inputStream;
+	private int itemCount;
+
+	/**
+	 * Constructs a new loader reading the given {@link InputStream}. The stream
+	 * should be buffered.
+	 *
+	 * @param inputStream the stream to read the item file from
+	 */
+	public ItemLoader(InputStream inputStream) {
+		this.inputStream = inputStream;
+	}
+
+	/**
+	 * Reads the whole item file and builds the tree. The items are not
+	 * attached to any server.
+	 *
+	 * @return the root container
+	 * @throws IOException if the stream throws an exception or the file is malformed
+	 */
+	public Container load() throws IOException {
+		IncomingMessage incomingMessage = new IncomingMessage();
+		incomingMessage.readFrom(inputStream);
+		long count;
+		try {
+			int version = incomingMessage.integer8();
+			if (version != FORMAT_VERSION)
+				throw new IOException("Unsupported item file version: " + version);
+			count = incomingMessage.integer32();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed item file header.");
+		}
+		if (count == 0 || count > Integer.MAX_VALUE)
+			throw new IOException("Invalid item count: " + count);
+
+		HashMap<Long, Item> items = new HashMap<>(OhapServer.indexCapacity((int)count));
+		Container rootContainer = null;
+		for (int i = 0; i < count; i++) {
+			try {
+				incomingMessage.readFrom(inputStream);
+			} catch (EOFException e) {
+				throw new IOException("Item file ended after " + i + " of " + count + " items.");
+			}
+
+			Item item;
+			long parentIdentifier;
+			try {
+				int type = incomingMessage.integer8();
+				long identifier = incomingMessage.integer32();
+				switch (type) {
+					case OhapServer.MESSAGE_TYPE_CONTAINER: {
+						parentIdentifier = incomingMessage.integer32();
+						item = new Container(identifier, incomingMessage.text(), incomingMessage.text(), incomingMessage.binary8());
+						break;
+					}
+					case OhapServer.MESSAGE_TYPE_BINARY_SENSOR:
+					case OhapServer.MESSAGE_TYPE_BINARY_ACTUATOR: {
+						boolean value = incomingMessage.binary8();
+						parentIdentifier = incomingMessage.integer32();
+						item = new BinaryDevice(identifier, incomingMessage.text(), incomingMessage.text(), incomingMessage.binary8(),
+						                        type == OhapServer.MESSAGE_TYPE_BINARY_ACTUATOR ? Device.Type.ACTUATOR : Device.Type.SENSOR,
+						                        value);
+						break;
+					}
+					case OhapServer.MESSAGE_TYPE_DECIMAL_SENSOR:
+					case OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR: {
+						double value = incomingMessage.decimal64();
+						parentIdentifier = incomingMessage.integer32();
+						String name = incomingMessage.text();
+						String description = incomingMessage.text();
+						boolean internal = incomingMessage.binary8();
+						item = new DecimalDevice(identifier, name, description, internal,
+						                         type == OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR ? Device.Type.ACTUATOR : Device.Type.SENSOR,
+						                         value, incomingMessage.decimal64(), incomingMessage.decimal64(),
+						                         incomingMessage.text(), incomingMessage.text());
+						break;
+					}
+					default:
+						throw new IOException("Unknown item message type " + type + " in item #" + i + ".");
+				}
+			} catch (ArrayIndexOutOfBoundsException | IllegalStateException e) {
+				throw new IOException("Malformed item #" + i + ".");
+			}
+
+			if (items.putIfAbsent(Long.valueOf(item.getIdentifier()), item) != null)
+				throw new IOException("Duplicate item identifier: " + item.getIdentifier());
+
+			if (rootContainer == null) {
+				if (item.getIdentifier() != 0 || !(item instanceof Container))
+					throw new IOException("The first item must be the root container with the identifier 0.");
+				rootContainer = (Container)item;
+				continue;
+			}
+
+			Item parent = items.get(Long.valueOf(parentIdentifier));
+			if (parent == null)
+				throw new IOException("Parent " + parentIdentifier + " of item " + item.getIdentifier() + " is not defined before it.");
+			if (!(parent instanceof Container))
+				throw new IOException("Parent " + parentIdentifier + " of item " + item.getIdentifier() + " is not a container.");
+			((Container)parent).addItem(item);
+		}
+
+		itemCount = (int)count;
+
+		return rootContainer;
+	}
+
+	/**
+	 * Returns the amount of items read by the last successful {@link #load()}.
+	 *
+	 * @return amount of items including the root container
+	 */
+	public int getItemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * Writes the tree under the given root container as an item file.
+	 * The stream should be buffered.
+	 *
+	 * @param rootContainer the root container with the identifier 0
+	 * @param outputStream the stream to write to
+	 * @throws IOException if an operation on the given stream throws an exception
+	 */
+	public static void save(Container rootContainer, OutputStream outputStream) throws IOException {
+		ArrayDeque<Item> stack = new ArrayDeque<>();
+		long count = 0;
+		stack.push(rootContainer);
+		while (!stack.isEmpty()) {
+			Item item = stack.pop();
+			count++;
+			if (item instanceof Container)
+				for (Item child : ((Container)item).getItems())
+					stack.push(child);
+		}
+
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(FORMAT_VERSION).integer32(count);
+		outgoingMessage.writeTo(outputStream);
+
+		stack.push(rootContainer);
+		while (!stack.isEmpty()) {
+			Item item = stack.pop();
+			outgoingMessage = new OutgoingMessage();
+			item.outputMessage(outgoingMessage);
+			outgoingMessage.writeTo(outputStream);
+			if (item instanceof Container)
+				for (Item child : ((Container)item).getItems())
+					stack.push(child);
+		}
+		outputStream.flush();
+	}
+}
@@ -0,0 +1,129 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.hbdp.server.HbdpConnection;
+import com.henrikhedberg.hbdp.server.TcpHbdpServer;
+import com.henrikhedberg.util.Log;
+import com.henrikhedberg.util.Metrics;
+import com.henrikhedberg.util.SelectorLoop;
+import com.henrikhedberg.util.TcpServer;
+import com.henrikhedberg.util.TcpServerConnection;
+import java.net.SocketAddress;
+import java.net.InetSocketAddress;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Open Home Automation Protocol (OHAP) server with TCP, HBDP and WebSocket
+ * backends.
+ *
+ * <p>All backends run in one {@link SelectorLoop} and share its buffer pool.
+ * The HBDP backend is the {@link TcpHbdpServer} and does not need the
+ * <code>com.sun.net.httpserver</code> package.
+ *
+ * <p>The metrics of the server are served by the HBDP backend in the path
+ * given in the <code>ohap.metricsPath</code> system property,
+ * <code>/metrics</code> by default. An empty path disables them.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.2 (20261018)
+ */
+public class NioOhapServer extends OhapServer {
+	private SelectorLoop selectorLoop;
+	private TcpServer tcpServer;
+	private TcpHbdpServer tcpHbdpServer;
+	private TcpServer webSocketServer;
+
+	public NioOhapServer(SocketAddress tcpAddress, SocketAddress hbdpAddress, String hbdpContextPath) throws IOException {
+		this(tcpAddress, hbdpAddress, hbdpContextPath, null);
+	}
+
+	/**
+	 * Constructs a new server with all three backends. The WebSocket backend
+	 * is left out if its address is <code>null</code>.
+	 */
+	public NioOhapServer(SocketAddress tcpAddress, SocketAddress hbdpAddress, String hbdpContextPath,
+	                     SocketAddress webSocketAddress) throws IOException {
+		selectorLoop = new SelectorLoop();
+		tcpServer = new TcpServer(selectorLoop, tcpAddress) {
+			public void acceptConnection(TcpServerConnection connection) {
+				try {
+					new TcpOhapServer.TcpOhapSession(NioOhapServer.this, connection);
+				} catch (IOException e) {
+				}
+			}
+		};
+		tcpHbdpServer = new TcpHbdpServer(selectorLoop, hbdpAddress, hbdpContextPath, new HbdpConnection.Handler() {
+			public void handle(HbdpConnection connection) {
+				new HbdpOhapServer.HbdpOhapSession(NioOhapServer.this, connection);
+			}
+		});
+		registerHbdpMetrics(tcpHbdpServer.getHbdpServer());
+		if (webSocketAddress != null) {
+			webSocketServer = new TcpServer(selectorLoop, webSocketAddress) {
+				public void acceptConnection(TcpServerConnection connection) {
+					try {
+						new WebSocketOhapServer.WebSocketOhapSession(NioOhapServer.this, connection);
+					} catch (IOException e) {
+					}
+				}
+			};
+		}
+	}
+
+	public SelectorLoop getSelectorLoop() {
+		return selectorLoop;
+	}
+
+	public TcpServer getTcpServer() {
+		return tcpServer;
+	}
+
+	public TcpHbdpServer getTcpHbdpServer() {
+		return tcpHbdpServer;
+	}
+
+	public TcpServer getWebSocketServer() {
+		return webSocketServer;
+	}
+
+	public static void main(String[] args) throws IOException {
+		NioOhapServer ohapServer = new NioOhapServer(new InetSocketAddress(18001), new InetSocketAddress(18000), "/",
+		                                             new InetSocketAddress(18002));
+		ohapServer.configure();
+		String metricsPath = System.getProperty("ohap.metricsPath", "/metrics");
+		if (!metricsPath.isEmpty()) {
+			ohapServer.getTcpHbdpServer().addDocument(metricsPath, Metrics.CONTENT_TYPE, new Supplier<byte[]>() {
+				public byte[] get() {
+					return ohapServer.getMetrics().toString().getBytes(StandardCharsets.UTF_8);
+				}
+			});
+			Log.log(Log.Level.INFO, null, "Ohap", "Serving metrics in {}", metricsPath);
+		}
+		ohapServer.getTcpHbdpServer().getHbdpServer().setIdleTimeout(Long.getLong("hbdp.idleTimeout", 300000));
+		ohapServer.getTcpHbdpServer().getHbdpServer().setHoldTime(Long.getLong("hbdp.holdTime", 0));
+		ohapServer.getTcpHbdpServer().getHbdpServer().setBatchWindow(Long.getLong("hbdp.batchWindow", 0));
+		ohapServer.getTcpHbdpServer().getHbdpServer().setCompressionThreshold(Integer.getInteger("hbdp.compressionThreshold", 1024));
+		ohapServer.getSelectorLoop().run();
+	}
+}
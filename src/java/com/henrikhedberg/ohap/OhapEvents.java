@@ -0,0 +1,115 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the stages a message goes through in the
+ * server: decoding in {@link IncomingMessage}, dispatching in
+ * {@link OhapSession#handleMessage(IncomingMessage)} and sending a change to
+ * the listeners in {@link Container}. The socket writes are recorded by
+ * {@link com.henrikhedberg.util.TcpServerConnection}.
+ *
+ * <p>The events are used in the usual way: an event is created and begun
+ * before the stage, and its fields are filled and it is committed only if
+ * {@link Event#shouldCommit()} returns true after the stage. When the events
+ * are not recorded, the JIT compiler removes the event objects and the
+ * checks, and when they are, only the stages slower than the threshold are
+ * committed. The thresholds can be changed in a <code>.jfc</code> settings
+ * file, for example <code>com.henrikhedberg.ohap.MessageDispatch#threshold</code>.
+ * No stack traces are recorded.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+final class OhapEvents {
+	private OhapEvents() {
+	}
+
+	@Name("com.henrikhedberg.ohap.MessageDecode")
+	@Label("OHAP Message Decode")
+	@Description("An incoming OHAP message taken from the input of a session.")
+	@Category("OHAP")
+	@StackTrace(false)
+	@Threshold("10 us")
+	static class MessageDecode extends Event {
+		@Label("Message Type")
+		int messageType;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+	}
+
+	@Name("com.henrikhedberg.ohap.MessageDispatch")
+	@Label("OHAP Message Dispatch")
+	@Description("An incoming OHAP message handled by a session, including the changes it caused.")
+	@Category("OHAP")
+	@StackTrace(false)
+	@Threshold("50 us")
+	static class MessageDispatch extends Event {
+		@Label("Session")
+		String session;
+
+		@Label("Message Type")
+		int messageType;
+
+		@Label("Item Identifier")
+		@Description("The item the message refers to, or -1.")
+		long itemIdentifier;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+	}
+
+	@Name("com.henrikhedberg.ohap.FanOut")
+	@Label("OHAP Fan-Out")
+	@Description("A change sent to the sessions listening on the container of the item.")
+	@Category("OHAP")
+	@StackTrace(false)
+	@Threshold("50 us")
+	static class FanOut extends Event {
+		@Label("Item Identifier")
+		long itemIdentifier;
+
+		@Label("Container Identifier")
+		long containerIdentifier;
+
+		@Label("Message Type")
+		int messageType;
+
+		@Label("Listeners")
+		int listeners;
+
+		@Label("Size")
+		@Description("The size of the message sent to each listener.")
+		@DataAmount
+		int bytes;
+	}
+}
@@ -0,0 +1,491 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.Histogram;
+import com.henrikhedberg.util.SelectorLoop;
+import com.henrikhedberg.util.TcpClientConnection;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates load on an OHAP server over TCP, such as {@link TcpOhapServer}
+ * or the TCP backend of {@link NioOhapServer}.
+ *
+ * <p>The generator opens the given amount of sessions and logs them in.
+ * Every session listens on every container of the item tree, discovering
+ * the containers and the actuators from the listings. A ping after each
+ * listening request tells when its listing has arrived. When all sessions
+ * are ready, the generator changes the actuators and pings the server at the
+ * target rates until the duration has passed.
+ *
+ * <p>Three latencies are recorded into {@link Histogram}s: from the login
+ * message to the root container, from a ping to its pong, and from an
+ * actuator change to its notification in each listening session. The load is
+ * open: the messages are sent at the intended times whether or not the
+ * server keeps up, and the latencies are measured from the intended times,
+ * so a stalled server shows in the percentiles instead of slowing down the
+ * generator. An actuator is changed again only after its previous change
+ * has been notified to all sessions; a change for which no actuator is free
+ * is counted as skipped.
+ *
+ * <p>All sessions run in one {@link SelectorLoop} thread, and a pacer
+ * thread wakes the loop every millisecond.
+ *
+ * <p>Usage: <code>OhapLoadGenerator [host] [port] [sessions] [changes/s]
+ * [seconds] [pings/s]</code>. The defaults are <code>localhost 18001 100
+ * 100 10 100</code>.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class OhapLoadGenerator {
+	private static final long BARRIER = 0xffffffffL;
+	private static final long STALE_CHANGE = TimeUnit.SECONDS.toNanos(1);
+
+	private SelectorLoop selectorLoop;
+	private InetSocketAddress address;
+	private Session[] sessions;
+	private CountDownLatch ready;
+
+	/* Used only in the thread of the loop */
+	private HashMap<Long, Actuator> actuators = new HashMap<>();
+	private ArrayList<Actuator> actuatorList = new ArrayList<>();
+	private HashSet<Long> containers = new HashSet<>();
+	private Histogram loginLatency = new Histogram();
+	private Histogram pingLatency = new Histogram();
+	private Histogram notificationLatency = new Histogram();
+	private int readySessions;
+	private int failedSessions;
+	private long changesSent;
+	private long changesSkipped;
+	private long pingsSent;
+	private long errors;
+	private int nextSession;
+	private int nextActuator;
+	private double sequence;
+
+	public OhapLoadGenerator(InetSocketAddress address, int sessionCount) throws IOException {
+		this.address = address;
+		selectorLoop = new SelectorLoop();
+		sessions = new Session[sessionCount];
+		ready = new CountDownLatch(sessionCount);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 18001;
+		int sessionCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		double changeRate = args.length > 3 ? Double.parseDouble(args[3]) : 100;
+		int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		double pingRate = args.length > 5 ? Double.parseDouble(args[5]) : 100;
+
+		OhapLoadGenerator generator = new OhapLoadGenerator(new InetSocketAddress(host, port), sessionCount);
+		if (!generator.connect(TimeUnit.SECONDS.toNanos(60)))
+			System.out.println("Not all sessions became ready in 60 s.");
+		System.out.printf("%d sessions ready, %d failed, %d containers, %d actuators%n", generator.readySessions,
+		                  generator.failedSessions, generator.containers.size(), generator.actuatorList.size());
+		generator.drive(changeRate, pingRate, TimeUnit.SECONDS.toNanos(seconds));
+		System.out.printf("%d changes sent, %d skipped, %d pings sent, %d errors in %d s%n",
+		                  generator.changesSent, generator.changesSkipped, generator.pingsSent, generator.errors, seconds);
+		generator.loginLatency.print(System.out, "login", 1e3, "us");
+		generator.pingLatency.print(System.out, "ping", 1e3, "us");
+		generator.notificationLatency.print(System.out, "notification", 1e3, "us");
+		generator.close();
+	}
+
+	/**
+	 * Opens the sessions and waits until they have logged in and received
+	 * the listings of all containers.
+	 *
+	 * @param timeout the time to wait in nanoseconds
+	 * @return true if every session either became ready or failed in time
+	 */
+	public boolean connect(long timeout) throws InterruptedException {
+		Thread loopThread = new Thread(selectorLoop, "OhapLoadGenerator");
+		loopThread.setDaemon(true);
+		loopThread.start();
+
+		selectorLoop.execute(new Runnable() {
+			public void run() {
+				for (int i = 0; i < sessions.length; i++)
+					sessions[i] = new Session();
+			}
+		});
+		boolean completed = ready.await(timeout, TimeUnit.NANOSECONDS);
+		inLoop(null);
+
+		return completed;
+	}
+
+	/**
+	 * Changes the actuators and pings the server at the given rates, and
+	 * then waits a second for the last notifications. The latencies and the
+	 * counters may be read after this method has returned.
+	 *
+	 * @param changeRate the actuator changes per second, or 0 for none
+	 * @param pingRate the pings per second, or 0 for none
+	 * @param duration the duration of the load in nanoseconds
+	 */
+	public void drive(double changeRate, double pingRate, long duration) throws InterruptedException {
+		long changeInterval = changeRate > 0 ? (long)(1e9 / changeRate) : 0;
+		long pingInterval = pingRate > 0 ? (long)(1e9 / pingRate) : 0;
+		long start = System.nanoTime();
+		long[] next = { start, start };
+		while (System.nanoTime() - start < duration) {
+			Thread.sleep(1);
+			long end = Math.min(System.nanoTime(), start + duration);
+			selectorLoop.execute(new Runnable() {
+				public void run() {
+					for (; changeInterval > 0 && next[0] <= end; next[0] += changeInterval)
+						sendChange(next[0]);
+					for (; pingInterval > 0 && next[1] <= end; next[1] += pingInterval)
+						sendPing(next[1]);
+				}
+			});
+		}
+
+		/* Lets the last notifications arrive. */
+		Thread.sleep(1000);
+		inLoop(null);
+	}
+
+	/**
+	 * Closes the sessions and stops the loop.
+	 */
+	public void close() throws InterruptedException {
+		inLoop(new Runnable() {
+			public void run() {
+				for (Session session : sessions)
+					if (session != null)
+						session.close();
+			}
+		});
+		selectorLoop.stop();
+	}
+
+	public int getReadySessions() {
+		return readySessions;
+	}
+
+	public int getActuatorCount() {
+		return actuatorList.size();
+	}
+
+	public long getChangesSent() {
+		return changesSent;
+	}
+
+	public long getChangesSkipped() {
+		return changesSkipped;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public Histogram getLoginLatency() {
+		return loginLatency;
+	}
+
+	public Histogram getPingLatency() {
+		return pingLatency;
+	}
+
+	public Histogram getNotificationLatency() {
+		return notificationLatency;
+	}
+
+	/*
+	 * Runs the task in the loop and waits for it, which also makes the
+	 * state of the loop visible to the calling thread.
+	 */
+	private void inLoop(Runnable task) throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+		selectorLoop.execute(new Runnable() {
+			public void run() {
+				if (task != null)
+					task.run();
+				done.countDown();
+			}
+		});
+		done.await();
+	}
+
+	private void sendChange(long intended) {
+		Session session = nextReadySession();
+		if (session == null || actuatorList.isEmpty()) {
+			changesSkipped++;
+			return;
+		}
+
+		Actuator actuator = null;
+		for (int i = 0; i < actuatorList.size() && actuator == null; i++) {
+			Actuator candidate = actuatorList.get(nextActuator++ % actuatorList.size());
+			if (candidate.intended == 0 || intended - candidate.intended > STALE_CHANGE)
+				actuator = candidate;
+		}
+		if (actuator == null) {
+			changesSkipped++;
+			return;
+		}
+
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		if (actuator.decimal) {
+			double value = ++sequence;
+			actuator.bits = Double.doubleToRawLongBits(value);
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).integer32(actuator.identifier).decimal64(value);
+		} else {
+			actuator.bits ^= 1;
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_BINARY_CHANGED).integer32(actuator.identifier).binary8(actuator.bits != 0);
+		}
+		actuator.intended = intended;
+		actuator.notified = 0;
+		session.send(outgoingMessage);
+		changesSent++;
+	}
+
+	private void sendPing(long intended) {
+		Session session = nextReadySession();
+		if (session == null)
+			return;
+
+		session.ping(intended);
+		pingsSent++;
+	}
+
+	private Session nextReadySession() {
+		for (int i = 0; i < sessions.length; i++) {
+			Session session = sessions[nextSession++ % sessions.length];
+			if (session != null && session.ready && !session.closed)
+				return session;
+		}
+
+		return null;
+	}
+
+	private void notified(long identifier, long bits) {
+		Actuator actuator = actuators.get(Long.valueOf(identifier));
+		if (actuator == null || actuator.intended == 0 || actuator.bits != bits)
+			return;
+
+		notificationLatency.record(System.nanoTime() - actuator.intended);
+		if (++actuator.notified >= readySessions)
+			actuator.intended = 0;
+	}
+
+	private void discovered(int type, long identifier, long bits) {
+		Long key = Long.valueOf(identifier);
+		if (actuators.containsKey(key))
+			return;
+
+		Actuator actuator = new Actuator();
+		actuator.identifier = identifier;
+		actuator.decimal = type == OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR;
+		actuator.bits = bits;
+		actuators.put(key, actuator);
+		actuatorList.add(actuator);
+	}
+
+	private static class Actuator {
+		long identifier;
+		boolean decimal;
+		long bits;
+		long intended;
+		int notified;
+	}
+
+	private class Session implements TcpClientConnection.Handler {
+		private TcpClientConnection connection;
+		private ByteBuffer incomingByteBuffer = ByteBuffer.allocate(16 * 1024);
+		private IncomingMessage incomingMessage = new IncomingMessage();
+		private HashSet<Long> listened = new HashSet<>();
+		private long loginSent;
+		private boolean loggedIn;
+		private int pendingBarriers;
+		private long[] pings = new long[64];
+		private int pingHead;
+		private int pingCount;
+		boolean ready;
+		boolean closed;
+
+		Session() {
+			try {
+				connection = new TcpClientConnection(selectorLoop, address, this);
+			} catch (IOException e) {
+				handleIOException(null, e);
+			}
+		}
+
+		public void handleConnected(TcpClientConnection connection) {
+			OutgoingMessage outgoingMessage = new OutgoingMessage();
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LOGIN).integer8(1).text("load").text("load");
+			loginSent = System.nanoTime();
+			send(outgoingMessage);
+		}
+
+		public void handleData(TcpClientConnection connection) {
+			try {
+				if (connection.read(incomingByteBuffer) == -1)
+					throw new EOFException("Connection closed by server.");
+				incomingByteBuffer.flip();
+				while (!closed && incomingMessage.readFromNB(incomingByteBuffer))
+					handleMessage(incomingMessage);
+				incomingByteBuffer.compact();
+				if (!incomingByteBuffer.hasRemaining()) {
+					incomingByteBuffer.flip();
+					incomingByteBuffer = ByteBuffer.allocate(incomingByteBuffer.capacity() * 2).put(incomingByteBuffer);
+				}
+			} catch (IOException e) {
+				handleIOException(connection, e);
+			}
+		}
+
+		public void handleIOException(TcpClientConnection connection, IOException exception) {
+			if (closed)
+				return;
+			errors++;
+			System.out.println("Session failed: " + exception.getMessage());
+			end();
+		}
+
+		void send(OutgoingMessage outgoingMessage) {
+			try {
+				connection.write(outgoingMessage.asByteBuffer());
+			} catch (IOException e) {
+				handleIOException(connection, e);
+			}
+		}
+
+		void ping(long intended) {
+			if (pingCount == pings.length) {
+				long[] larger = new long[pings.length * 2];
+				for (int i = 0; i < pingCount; i++)
+					larger[i] = pings[(pingHead + i) % pings.length];
+				pings = larger;
+				pingHead = 0;
+			}
+			pings[(pingHead + pingCount++) % pings.length] = intended;
+
+			OutgoingMessage outgoingMessage = new OutgoingMessage();
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PING).integer32(pingsSent & 0x7fffffff);
+			send(outgoingMessage);
+		}
+
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void end() {
+			boolean wasReady = ready;
+			close();
+			if (wasReady)
+				readySessions--;
+			else {
+				failedSessions++;
+				ready = false;
+				OhapLoadGenerator.this.ready.countDown();
+			}
+		}
+
+		private void handleMessage(IncomingMessage incomingMessage) {
+			int type = incomingMessage.integer8();
+			switch (type) {
+				case OhapServer.MESSAGE_TYPE_LOGOUT:
+					errors++;
+					System.out.println("Logged out: " + incomingMessage.text());
+					end();
+					break;
+				case OhapServer.MESSAGE_TYPE_PONG:
+					handlePong(incomingMessage.integer32());
+					break;
+				case OhapServer.MESSAGE_TYPE_CONTAINER:
+					handleContainer(incomingMessage.integer32());
+					break;
+				case OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR:
+					long decimalIdentifier = incomingMessage.integer32();
+					discovered(type, decimalIdentifier, Double.doubleToRawLongBits(incomingMessage.decimal64()));
+					break;
+				case OhapServer.MESSAGE_TYPE_BINARY_ACTUATOR:
+					long binaryIdentifier = incomingMessage.integer32();
+					discovered(type, binaryIdentifier, incomingMessage.binary8() ? 1 : 0);
+					break;
+				case OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED:
+					long changedDecimal = incomingMessage.integer32();
+					notified(changedDecimal, Double.doubleToRawLongBits(incomingMessage.decimal64()));
+					break;
+				case OhapServer.MESSAGE_TYPE_BINARY_CHANGED:
+					long changedBinary = incomingMessage.integer32();
+					notified(changedBinary, incomingMessage.binary8() ? 1 : 0);
+					break;
+				default:
+					break;
+			}
+		}
+
+		private void handleContainer(long identifier) {
+			if (!loggedIn) {
+				loggedIn = true;
+				loginLatency.record(System.nanoTime() - loginSent);
+			}
+			containers.add(Long.valueOf(identifier));
+			if (!listened.add(Long.valueOf(identifier)))
+				return;
+
+			OutgoingMessage outgoingMessage = new OutgoingMessage();
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LISTENING_START).integer32(identifier);
+			send(outgoingMessage);
+			outgoingMessage = new OutgoingMessage();
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PING).integer32(BARRIER);
+			send(outgoingMessage);
+			pendingBarriers++;
+		}
+
+		private void handlePong(long identifier) {
+			if (identifier == BARRIER) {
+				if (--pendingBarriers == 0 && !ready) {
+					ready = true;
+					readySessions++;
+					OhapLoadGenerator.this.ready.countDown();
+				}
+				return;
+			}
+			if (pingCount == 0)
+				return;
+
+			pingLatency.record(System.nanoTime() - pings[pingHead]);
+			pingHead = (pingHead + 1) % pings.length;
+			pingCount--;
+		}
+	}
+}
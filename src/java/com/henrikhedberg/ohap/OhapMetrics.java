@@ -0,0 +1,132 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.Metrics;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The metrics of an {@link OhapServer}, registered in its {@link Metrics}
+ * registry.
+ *
+ * <p>The sessions count their messages and bytes per transport. The bytes
+ * are those of the OHAP messages, including the length fields but not the
+ * framing of the transport, such as HTTP or WebSocket headers. The messages
+ * are also counted per message type and direction. The containers record
+ * the amount of listeners every change is sent to, and the sessions record
+ * the bytes waiting in their outbound queue after every message.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+class OhapMetrics {
+	private static final String[] MESSAGE_TYPE_NAMES = {
+		"login", "logout", "ping", "pong", "decimal_sensor", "decimal_actuator", "binary_sensor", "binary_actuator",
+		"container", "decimal_changed", "binary_changed", "item_removed", "listening_start", "listening_stop",
+		"history_request", "history", "unknown"
+	};
+	private static final long[] FAN_OUT_BOUNDS = { 0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+	private static final long[] QUEUE_BOUNDS = { 0, 64, 256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304 };
+
+	private Metrics metrics;
+	private ConcurrentHashMap<String, Transport> transports = new ConcurrentHashMap<>();
+	private Metrics.Counter[] receivedByType = new Metrics.Counter[MESSAGE_TYPE_NAMES.length];
+	private Metrics.Counter[] sentByType = new Metrics.Counter[MESSAGE_TYPE_NAMES.length];
+	private Metrics.Distribution fanOut;
+	private Metrics.Distribution queuedBytes;
+
+	OhapMetrics(Metrics metrics) {
+		this.metrics = metrics;
+		for (int i = 0; i < MESSAGE_TYPE_NAMES.length; i++)
+			receivedByType[i] = metrics.counter("ohap_messages_received_by_type_total", "OHAP messages received per message type.",
+			                                    "type", MESSAGE_TYPE_NAMES[i]);
+		for (int i = 0; i < MESSAGE_TYPE_NAMES.length; i++)
+			sentByType[i] = metrics.counter("ohap_messages_sent_by_type_total", "OHAP messages sent per message type.",
+			                                "type", MESSAGE_TYPE_NAMES[i]);
+		fanOut = metrics.distribution("ohap_fan_out_listeners", "Listening sessions a change is sent to.", FAN_OUT_BOUNDS);
+		queuedBytes = metrics.distribution("ohap_outbound_queued_bytes", "Bytes waiting in the outbound queue of a session after a message.",
+		                                   QUEUE_BOUNDS);
+	}
+
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the metrics of the given transport, registering them at the
+	 * first call.
+	 *
+	 * @param name the name of the transport, such as <code>tcp</code>
+	 * @return the metrics of the transport
+	 */
+	Transport getTransport(String name) {
+		Transport transport = transports.get(name);
+		if (transport == null) {
+			synchronized (this) {
+				transport = transports.get(name);
+				if (transport == null) {
+					transport = new Transport(metrics, name);
+					transports.put(name, transport);
+				}
+			}
+		}
+
+		return transport;
+	}
+
+	void received(Transport transport, int type, int length) {
+		transport.messagesReceived.increment();
+		transport.bytesReceived.add(length);
+		receivedByType[typeIndex(type)].increment();
+	}
+
+	void sent(Transport transport, int type, int length, int queued) {
+		transport.messagesSent.increment();
+		transport.bytesSent.add(length);
+		sentByType[typeIndex(type)].increment();
+		queuedBytes.record(queued);
+	}
+
+	void fannedOut(int listeners) {
+		fanOut.record(listeners);
+	}
+
+	private static int typeIndex(int type) {
+		return type >= 0 && type < MESSAGE_TYPE_NAMES.length - 1 ? type : MESSAGE_TYPE_NAMES.length - 1;
+	}
+
+	static class Transport {
+		Metrics.Gauge sessions;
+		Metrics.Counter sessionsTotal;
+		Metrics.Counter messagesReceived;
+		Metrics.Counter messagesSent;
+		Metrics.Counter bytesReceived;
+		Metrics.Counter bytesSent;
+
+		Transport(Metrics metrics, String name) {
+			sessions = metrics.gauge("ohap_sessions", "Open OHAP sessions.", "transport", name);
+			sessionsTotal = metrics.counter("ohap_sessions_total", "OHAP sessions opened.", "transport", name);
+			messagesReceived = metrics.counter("ohap_messages_received_total", "OHAP messages received.", "transport", name);
+			messagesSent = metrics.counter("ohap_messages_sent_total", "OHAP messages sent.", "transport", name);
+			bytesReceived = metrics.counter("ohap_bytes_received_total", "Bytes of OHAP messages received.", "transport", name);
+			bytesSent = metrics.counter("ohap_bytes_sent_total", "Bytes of OHAP messages sent.", "transport", name);
+		}
+	}
+}
@@ -20,8 +20,25 @@
 
 package com.henrikhedberg.ohap;
 
+import com.henrikhedberg.hbdp.server.HbdpServer;
+import com.henrikhedberg.util.Log;
+import com.henrikhedberg.util.Metrics;
+import java.util.Collection;
 import java.util.HashMap;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Open Home Automation Protocol (OHAP) server. A subclass
@@ -29,7 +46,7 @@ import java.io.IOException;
  * instantiate OhapSessions.
  *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.2 (20160312)
+ * @version 1.9 (20261018)
  */
 public abstract class OhapServer {
 
@@ -47,10 +64,19 @@ public abstract class OhapServer {
 	public static final int MESSAGE_TYPE_ITEM_REMOVED = 11;
 	public static final int MESSAGE_TYPE_LISTENING_START = 12;
 	public static final int MESSAGE_TYPE_LISTENING_STOP = 13;
+	public static final int MESSAGE_TYPE_HISTORY_REQUEST = 14;
+	public static final int MESSAGE_TYPE_HISTORY = 15;
 
 	private HashMap<Long, Item> items = new HashMap<>();
+	private volatile ValueStore valueStore;
+	private OhapMetrics metrics = new OhapMetrics(new Metrics());
+	private volatile AsyncAuthenticator authenticator;
+	private volatile Executor handlerExecutor;
 
 	public OhapServer() {
+		registerAuthenticatorMetrics();
+		registerValueStoreMetrics();
+
 		Container rootContainer = new Container(0, "OHAP Test Server", "This site provides a test server that can be used when testing clients implementing the open home automation protocol. The usage of the server is not allowed for any other purpose, nor it must be tried to operate against the specification. ", false);
 		addItem(rootContainer);
 		rootContainer.attachToServer(this);
@@ -66,6 +92,334 @@ public abstract class OhapServer {
 		
 	}
 
+	/**
+	 * Replaces the whole item tree with the given one. The item index is
+	 * pre-sized for the given amount of items. Must be called before any
+	 * session is accepted.
+	 *
+	 * @param rootContainer the root container with the identifier 0
+	 * @param itemCount the expected amount of items in the tree
+	 */
+	public void setRootContainer(Container rootContainer, int itemCount) {
+		if (rootContainer.getIdentifier() != 0)
+			throw new IllegalArgumentException("The root container must have the identifier 0.");
+
+		items = new HashMap<>(indexCapacity(itemCount));
+		rootContainer.attachToServer(this);
+	}
+
+	/**
+	 * Replaces the whole item tree with the one read from the given item file.
+	 *
+	 * @param inputStream the stream to read the item file from
+	 * @return the amount of items loaded
+	 * @throws IOException if the stream throws an exception or the file is malformed
+	 * @see ItemLoader
+	 */
+	public int loadItems(InputStream inputStream) throws IOException {
+		ItemLoader loader = new ItemLoader(inputStream);
+		Container rootContainer = loader.load();
+		setRootContainer(rootContainer, loader.getItemCount());
+
+		return loader.getItemCount();
+	}
+
+	/**
+	 * Configures the server from the system properties. The following
+	 * properties are supported:
+	 *
+	 * <ul>
+	 * <li><code>ohap.items</code> - an item file to load the item tree from
+	 * (see {@link ItemLoader})</li>
+	 * <li><code>ohap.store</code> - a directory to persist device values in
+	 * (see {@link ValueStore})</li>
+	 * <li><code>ohap.history</code> - the amount of samples to keep in the
+	 * history of each decimal device (see {@link TimeSeries})</li>
+	 * <li><code>ohap.authenticator</code> - the class name of an
+	 * {@link Authenticator} with a public no-argument constructor, run in an
+	 * {@link AsyncAuthenticator}</li>
+	 * <li><code>ohap.authThreads</code> - the amount of its worker threads,
+	 * 4 by default</li>
+	 * <li><code>ohap.authCacheSize</code> - the amount of users in its cache,
+	 * 10000 by default</li>
+	 * <li><code>ohap.authCacheTime</code> - the time in milliseconds a user
+	 * is kept in its cache, 600000 by default</li>
+	 * <li><code>ohap.handlerThreads</code> - the amount of the threads of
+	 * the handler executor (see {@link #createHandlerExecutor(int)}), none
+	 * by default (see {@link #setHandlerExecutor(Executor)})</li>
+	 * </ul>
+	 *
+	 * @throws IOException if the configuration could not be applied
+	 */
+	protected void configure() throws IOException {
+		String itemFile = System.getProperty("ohap.items");
+		if (itemFile != null) {
+			long start = System.nanoTime();
+			int count;
+			try (InputStream inputStream = new BufferedInputStream(new FileInputStream(itemFile), 65536)) {
+				count = loadItems(inputStream);
+			}
+			Log.log(Log.Level.INFO, null, "Ohap", "Loaded {} items from {} in {} ms", count, itemFile, (System.nanoTime() - start) / 1000000);
+		}
+
+		String storeDirectory = System.getProperty("ohap.store");
+		if (storeDirectory != null) {
+			long start = System.nanoTime();
+			ValueStore store = new ValueStore(new File(storeDirectory));
+			int count = store.open(this);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					store.close();
+				}
+			});
+			Log.log(Log.Level.INFO, null, "Ohap", "Restored {} values from {} in {} ms", count, storeDirectory, (System.nanoTime() - start) / 1000000);
+		}
+
+		String historySize = System.getProperty("ohap.history");
+		if (historySize != null) {
+			try {
+				enableHistory(Integer.parseInt(historySize.trim()));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid ohap.history " + historySize + ": " + e.getMessage(), e);
+			}
+		}
+
+		String authenticatorClass = System.getProperty("ohap.authenticator");
+		if (authenticatorClass != null) {
+			Authenticator backend;
+			try {
+				backend = (Authenticator)Class.forName(authenticatorClass).getConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IOException("Cannot instantiate the authenticator " + authenticatorClass + ": " + e, e);
+			}
+			setAuthenticator(new AsyncAuthenticator(backend, Integer.getInteger("ohap.authThreads", 4),
+			                                        Integer.getInteger("ohap.authCacheSize", 10000),
+			                                        Long.getLong("ohap.authCacheTime", 600000)));
+			Log.log(Log.Level.INFO, null, "Ohap", "Authenticating with {}", authenticatorClass);
+		}
+
+		String handlerThreads = System.getProperty("ohap.handlerThreads");
+		if (handlerThreads != null) {
+			try {
+				setHandlerExecutor(createHandlerExecutor(Integer.parseInt(handlerThreads.trim())));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid ohap.handlerThreads " + handlerThreads + ": " + e.getMessage(), e);
+			}
+			Log.log(Log.Level.INFO, null, "Ohap", "Handling messages in {} worker threads", handlerThreads);
+		}
+	}
+
+	/**
+	 * Creates a pool of daemon threads for {@link #setHandlerExecutor(Executor)}.
+	 * Its queue is unbounded, so a task is never run in the calling thread,
+	 * which would stall the loop and reorder the messages. The sessions
+	 * limit the amount of their queued messages themselves.
+	 *
+	 * @param threads the amount of threads
+	 * @return the executor
+	 * @throws IllegalArgumentException if the amount is not positive
+	 */
+	public static ExecutorService createHandlerExecutor(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+		                              new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Handler-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the executor in which the sessions of the transports running in
+	 * a {@link com.henrikhedberg.util.SelectorLoop}, TCP and WebSocket,
+	 * handle their messages. The loop then only reads, decodes and writes.
+	 * Each session hands its messages to the executor through a
+	 * {@link com.henrikhedberg.util.SerialExecutor} of its own, so they are
+	 * handled in order, and its writes from the worker threads are passed
+	 * back to the loop. The messages are copied, and a session stops
+	 * reading while too many of them are waiting. By default, the messages
+	 * are handled in the thread of the loop. Applies to the sessions
+	 * accepted after the call.
+	 *
+	 * @param executor the executor or null to handle the messages in the loop
+	 */
+	public void setHandlerExecutor(Executor executor) {
+		handlerExecutor = executor;
+	}
+
+	public Executor getHandlerExecutor() {
+		return handlerExecutor;
+	}
+
+	/**
+	 * Sets the {@link AsyncAuthenticator} that checks the credentials of the
+	 * logging users. A session completes its login in its own thread once the
+	 * authenticator has answered, holding the messages received meanwhile.
+	 * Without an authenticator, {@link #authenticateUser(String, String)} is
+	 * called directly in the thread of the session.
+	 *
+	 * @param authenticator the authenticator or null to use
+	 * {@link #authenticateUser(String, String)}
+	 */
+	public void setAuthenticator(AsyncAuthenticator authenticator) {
+		this.authenticator = authenticator;
+	}
+
+	public AsyncAuthenticator getAuthenticator() {
+		return authenticator;
+	}
+
+	/*
+	 * Returns a future that is already completed unless the credentials are
+	 * being checked in another thread.
+	 */
+	CompletableFuture<Boolean> authenticate(String name, String password) {
+		AsyncAuthenticator asyncAuthenticator = authenticator;
+		if (asyncAuthenticator != null)
+			return asyncAuthenticator.authenticate(name, password);
+
+		return CompletableFuture.completedFuture(Boolean.valueOf(authenticateUser(name, password)));
+	}
+
+	private void registerValueStoreMetrics() {
+		Metrics registry = getMetrics();
+		registry.sampled("ohap_value_store_failed", "1 while the value store cannot write to the disk.", false, new Metrics.Source() {
+			public long sample() {
+				ValueStore store = valueStore;
+				return store != null && store.isFailed() ? 1 : 0;
+			}
+		});
+		registry.sampled("ohap_value_store_dropped_changes_total", "Value changes dropped because the value store was behind.", true, new Metrics.Source() {
+			public long sample() {
+				ValueStore store = valueStore;
+				return store != null ? store.getDroppedChanges() : 0;
+			}
+		});
+	}
+
+	private void registerAuthenticatorMetrics() {
+		Metrics registry = getMetrics();
+		registry.sampled("ohap_authentication_cache_hits_total", "Logins accepted from the authentication cache.", true, new Metrics.Source() {
+			public long sample() {
+				AsyncAuthenticator asyncAuthenticator = authenticator;
+				return asyncAuthenticator != null ? asyncAuthenticator.getCacheHits() : 0;
+			}
+		});
+		registry.sampled("ohap_authenticator_calls_total", "Logins checked by the authenticator.", true, new Metrics.Source() {
+			public long sample() {
+				AsyncAuthenticator asyncAuthenticator = authenticator;
+				return asyncAuthenticator != null ? asyncAuthenticator.getAuthenticatorCalls() : 0;
+			}
+		});
+	}
+
+	/**
+	 * Returns the registry of the runtime metrics of the server. The
+	 * sessions, the messages and the fan-out of the changes are counted
+	 * there, and a subclass may register the metrics of its transport.
+	 *
+	 * @return the metrics registry
+	 */
+	public Metrics getMetrics() {
+		return metrics.getMetrics();
+	}
+
+	OhapMetrics getOhapMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Registers the statistics of the given {@link HbdpServer} as metrics.
+	 *
+	 * @param hbdpServer the server whose statistics to register
+	 */
+	protected void registerHbdpMetrics(HbdpServer hbdpServer) {
+		Metrics registry = getMetrics();
+		registry.sampled("hbdp_polls_total", "HBDP poll requests.", true, new Metrics.Source() {
+			public long sample() {
+				return hbdpServer.getPolls();
+			}
+		});
+		registry.sampled("hbdp_compressed_responses_total", "HBDP response bodies compressed.", true, new Metrics.Source() {
+			public long sample() {
+				return hbdpServer.getCompressedResponses();
+			}
+		});
+		registry.sampled("hbdp_compression_input_bytes_total", "HBDP response bytes before compression.", true, new Metrics.Source() {
+			public long sample() {
+				return hbdpServer.getCompressionStatistics()[0];
+			}
+		});
+		registry.sampled("hbdp_compression_output_bytes_total", "HBDP response bytes after compression.", true, new Metrics.Source() {
+			public long sample() {
+				return hbdpServer.getCompressionStatistics()[1];
+			}
+		});
+	}
+
+	/**
+	 * Starts recording the value history of every decimal device. The ring
+	 * buffers are sliced from a few large direct buffers of at most 1 GiB,
+	 * so the history of one device must fit into 1 GiB.
+	 *
+	 * @param capacity the amount of samples to keep for each device
+	 * @throws IllegalArgumentException if the capacity is not positive or too large
+	 */
+	public void enableHistory(int capacity) {
+		long maxSlabSize = 1 << 30;
+		if (capacity <= 0 || (long)capacity * TimeSeries.SAMPLE_SIZE > maxSlabSize)
+			throw new IllegalArgumentException("The history capacity must be between 1 and " + maxSlabSize / TimeSeries.SAMPLE_SIZE + ".");
+
+		int bytesPerDevice = capacity * TimeSeries.SAMPLE_SIZE;
+		int devicesPerSlab = (int)(maxSlabSize / bytesPerDevice);
+		int remaining = 0;
+		for (Item item : items.values())
+			if (item instanceof DecimalDevice)
+				remaining++;
+		ByteBuffer slab = null;
+		int used = devicesPerSlab;
+		for (Item item : items.values()) {
+			if (!(item instanceof DecimalDevice))
+				continue;
+			if (used == devicesPerSlab) {
+				slab = ByteBuffer.allocateDirect(Math.min(devicesPerSlab, remaining) * bytesPerDevice);
+				remaining -= devicesPerSlab;
+				used = 0;
+			}
+			slab.limit((used + 1) * bytesPerDevice).position(used * bytesPerDevice);
+			((DecimalDevice)item).setHistory(new TimeSeries(slab));
+			used++;
+		}
+	}
+
+	/**
+	 * Sets the {@link ValueStore} that records every device value change.
+	 *
+	 * @param valueStore the store or null to stop recording
+	 */
+	public void setValueStore(ValueStore valueStore) {
+		this.valueStore = valueStore;
+	}
+
+	Collection<Item> getItems() {
+		return items.values();
+	}
+
+	void deviceValueChanged(Device device) {
+		ValueStore store = valueStore;
+		if (store != null)
+			store.append(device.getIdentifier(), device.getValueBits());
+	}
+
+	static int indexCapacity(int itemCount) {
+		return (int)Math.min((long)itemCount * 4 / 3 + 1, 1 << 30);
+	}
+
 	public Item getItemByIdentifier(long identifier) {
 		return items.get(Long.valueOf(identifier));
 	}
@@ -74,6 +428,16 @@ public abstract class OhapServer {
 		items.put(Long.valueOf(item.getIdentifier()), item);
 	}
 	
+	/**
+	 * Checks the credentials of a logging user when no
+	 * {@link AsyncAuthenticator} has been set. Called in the thread of the
+	 * session, so it must not block. Accepts everybody by default.
+	 *
+	 * @param name the name of the user
+	 * @param password the password of the user
+	 * @return whether the user may log in
+	 * @see #setAuthenticator(AsyncAuthenticator)
+	 */
 	public boolean authenticateUser(String name, String password) {
 		return true;
 	}
@@ -21,8 +21,19 @@
 package com.henrikhedberg.ohap;
 
 import com.henrikhedberg.hbdp.server.*;
+import com.henrikhedberg.util.Log;
+import com.henrikhedberg.util.SelectorLoop;
+import com.henrikhedberg.util.SerialExecutor;
+import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * Open Home Automation Protocol (OHAP) server-side session.
@@ -32,96 +43,328 @@ import java.io.IOException;
  * the listening state of its client and sends required update
  * messages through a listener mechanism.
  *
+ * <p>Every session counts its messages in the {@link OhapMetrics} of
+ * the server under the name of its transport, and records the handling of
+ * every message as a {@link OhapEvents.MessageDispatch} event.
+ *
+ * <p>If the server has an {@link AsyncAuthenticator}, a login may complete
+ * after the next messages have been received. They are held and handled in
+ * order once the login has completed in the thread of the session, see
+ * {@link #execute(Runnable)}.
+ *
+ * <p>A session of a transport running in a {@link SelectorLoop} may hand
+ * its messages to the handler executor of the server, see
+ * {@link OhapServer#setHandlerExecutor(Executor)}. Its writes and its
+ * closing are then passed back to the loop from the other threads.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20150312)
+ * @version 1.7 (20261018)
  */
 public abstract class OhapSession {
+	private static final int MAX_HELD_MESSAGES = 256;
+	private static final int MAX_QUEUED_MESSAGES = 4096;
+	private static final int RESUME_QUEUED_MESSAGES = 1024;
+
 	private OhapServer server;
 	private String identifier;
 	private String user;
 	private HashSet<Container> listenedContainers = new HashSet<>();
+	private OhapMetrics metrics;
+	private OhapMetrics.Transport transport;
+	private boolean ended;
+	private boolean loginPending;
+	private ArrayDeque<IncomingMessage> heldMessages;
+	private SerialExecutor handlerExecutor;
+	private AtomicInteger queuedMessages;
+	private volatile boolean readingStopped;
+	private AtomicBoolean resumePending = new AtomicBoolean();
 	
-	OhapSession(OhapServer server, String identifier) {
+	OhapSession(OhapServer server, String transportName, String identifier) {
 		this.server = server;
 		this.identifier = identifier;
+		metrics = server.getOhapMetrics();
+		transport = metrics.getTransport(transportName);
+		transport.sessions.increment();
+		transport.sessionsTotal.increment();
 	}
 	
 	protected abstract void writeMessage(OutgoingMessage outgoingMessage) throws IOException;
 	protected abstract void close() throws IOException;
 
-	public void sendMessage(OutgoingMessage outgoingMessage) {
+	/**
+	 * Runs the given task in the same thread, or holding the same lock, as
+	 * the {@link #handleMessage(IncomingMessage)} calls of the session. Used
+	 * to complete a login that was authenticated in another thread.
+	 *
+	 * @param task the task to run
+	 */
+	protected abstract void execute(Runnable task);
+
+	/**
+	 * Returns the loop that owns the connection of the session, if the
+	 * connection may be used only in its thread. Writes and closing in
+	 * other threads are then passed to the loop.
+	 *
+	 * @return the loop or null if the connection is thread-safe
+	 */
+	protected SelectorLoop getSelectorLoop() {
+		return null;
+	}
+
+	/**
+	 * Stops or resumes reading the connection. Called in the thread of the
+	 * {@link #getSelectorLoop()} while the messages handed to the handler
+	 * executor are piling up.
+	 *
+	 * @param reading whether to read
+	 */
+	protected void setReading(boolean reading) {
+	}
+
+	/**
+	 * Makes {@link #receiveMessage(IncomingMessage)} hand the messages to
+	 * the handler executor of the server, if it has one. Called by the
+	 * sessions that implement {@link #getSelectorLoop()} and
+	 * {@link #setReading(boolean)}.
+	 */
+	protected void useHandlerExecutor() {
+		Executor executor = server.getHandlerExecutor();
+		if (executor != null) {
+			handlerExecutor = new SerialExecutor(executor);
+			queuedMessages = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns the amount of bytes written but not yet sent to the client.
+	 * Used only for the metrics.
+	 *
+	 * @return bytes in the outbound queue
+	 */
+	protected int getQueuedBytes() {
+		return 0;
+	}
+
+	public void sendMessage(final OutgoingMessage outgoingMessage) {
+		SelectorLoop selectorLoop = getSelectorLoop();
+		if (selectorLoop != null && !selectorLoop.isLoopThread()) {
+			selectorLoop.execute(new Runnable() {
+				public void run() {
+					sendMessage(outgoingMessage);
+				}
+			});
+			return;
+		}
+
 		try {
 			writeMessage(outgoingMessage);
+			metrics.sent(transport, outgoingMessage.getType(), outgoingMessage.getLength(), getQueuedBytes());
 		} catch (IOException e) {
-			log("Error: IOException when writing: " + e.getMessage());
+			Log.log(Log.Level.WARNING, identifier, "Ohap", "Error: IOException when writing: {}", e.getMessage());
 			end();
 			// TODO: Remove itself from somewhere?
 		}
 	}
 	
 	protected void readMessageFailed(IOException exception) {
-		log("Error: IOException when reading: " + exception.getMessage());
+		Log.log(Log.Level.WARNING, identifier, "Ohap", "Error: IOException when reading: {}", exception.getMessage());
 		end();
 	}
 	
-	protected void handleMessage(IncomingMessage incomingMessage) {
-		try {
-			int type = incomingMessage.integer8();
-			if (user == null && type != OhapServer.MESSAGE_TYPE_LOGIN) {
-				log("Error: First message not login");
-				end();
-				return;
+	/**
+	 * Handles the given message, or with a handler executor, hands a copy
+	 * of it to the executor. Called by the transport for every message
+	 * read; the message may be reused after the call.
+	 *
+	 * @param incomingMessage the message
+	 */
+	protected void receiveMessage(IncomingMessage incomingMessage) {
+		if (handlerExecutor == null) {
+			handleMessage(incomingMessage);
+			return;
+		}
+
+		final IncomingMessage copy = incomingMessage.copy();
+		if (queuedMessages.incrementAndGet() >= MAX_QUEUED_MESSAGES && !readingStopped) {
+			readingStopped = true;
+			setReading(false);
+			/* The workers may have drained the queue before seeing the flag. */
+			resumeReadingTask.run();
+		}
+		handlerExecutor.execute(new Runnable() {
+			public void run() {
+				if (!isEnded())
+					handleMessage(copy);
+				if (queuedMessages.decrementAndGet() <= RESUME_QUEUED_MESSAGES && readingStopped &&
+				    resumePending.compareAndSet(false, true))
+					getSelectorLoop().execute(resumeReadingTask);
 			}
-			switch (type) {
-				case OhapServer.MESSAGE_TYPE_LOGOUT:
-					log("Message: Logout");
-					end();
-					break;
-				case OhapServer.MESSAGE_TYPE_LOGIN:
-					handleLogin(incomingMessage);
-					break;
-				case OhapServer.MESSAGE_TYPE_PING:
-					handlePing(incomingMessage);
-					break;
-				case OhapServer.MESSAGE_TYPE_PONG:
-					handlePong(incomingMessage);
-					break;
-				case OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED:
-					handleDecimalChanged(incomingMessage);
-					break;
-				case OhapServer.MESSAGE_TYPE_BINARY_CHANGED:
-					handleBinaryChanged(incomingMessage);
-					break;
-				case OhapServer.MESSAGE_TYPE_LISTENING_START:
-					handleListening(incomingMessage, true);
-					break;
-				case OhapServer.MESSAGE_TYPE_LISTENING_STOP:
-					handleListening(incomingMessage, false);
-					break;
-				default:
-					sendError("Wrong message type: " + type);
-					break;
+		});
+	}
+
+	/*
+	 * Runs in the thread of the loop, like the stopping. At most one is
+	 * posted at a time; it is posted again if the queue is still too long.
+	 */
+	private Runnable resumeReadingTask = new Runnable() {
+		public void run() {
+			resumePending.set(false);
+			if (readingStopped && queuedMessages.get() <= RESUME_QUEUED_MESSAGES) {
+				readingStopped = false;
+				setReading(true);
 			}
+		}
+	};
+
+	protected void handleMessage(IncomingMessage incomingMessage) {
+		OhapEvents.MessageDispatch event = new OhapEvents.MessageDispatch();
+		event.begin();
+		int type = -1;
+		try {
+			type = incomingMessage.integer8();
+			metrics.received(transport, type, incomingMessage.getLength());
+			if (loginPending)
+				holdMessage(incomingMessage);
+			else
+				dispatchMessage(type, incomingMessage);
 		} catch (ArrayIndexOutOfBoundsException e) {
 			sendError("Malformed message");
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.session = identifier;
+				event.messageType = type;
+				event.itemIdentifier = itemIdentifierOf(incomingMessage, type);
+				event.bytes = incomingMessage.getLength();
+				event.commit();
+			}
+		}
+	}
+
+	private void dispatchMessage(int type, IncomingMessage incomingMessage) {
+		if (user == null && type != OhapServer.MESSAGE_TYPE_LOGIN) {
+			Log.log(Log.Level.WARNING, identifier, "Ohap", "Error: First message not login");
+			end();
+			return;
+		}
+		switch (type) {
+			case OhapServer.MESSAGE_TYPE_LOGOUT:
+				Log.log(Log.Level.INFO, identifier, "Ohap", "Message: Logout");
+				end();
+				break;
+			case OhapServer.MESSAGE_TYPE_LOGIN:
+				handleLogin(incomingMessage);
+				break;
+			case OhapServer.MESSAGE_TYPE_PING:
+				handlePing(incomingMessage);
+				break;
+			case OhapServer.MESSAGE_TYPE_PONG:
+				handlePong(incomingMessage);
+				break;
+			case OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED:
+				handleDecimalChanged(incomingMessage);
+				break;
+			case OhapServer.MESSAGE_TYPE_BINARY_CHANGED:
+				handleBinaryChanged(incomingMessage);
+				break;
+			case OhapServer.MESSAGE_TYPE_LISTENING_START:
+				handleListening(incomingMessage, true);
+				break;
+			case OhapServer.MESSAGE_TYPE_LISTENING_STOP:
+				handleListening(incomingMessage, false);
+				break;
+			case OhapServer.MESSAGE_TYPE_HISTORY_REQUEST:
+				handleHistoryRequest(incomingMessage);
+				break;
+			default:
+				sendError("Wrong message type: " + type);
+				break;
+		}
+	}
+
+	private void holdMessage(IncomingMessage incomingMessage) {
+		if (heldMessages.size() >= MAX_HELD_MESSAGES) {
+			sendError("Too many messages before login completed");
+			return;
+		}
+		heldMessages.add(incomingMessage.copy());
+	}
+
+	private void releaseHeldMessages() {
+		IncomingMessage incomingMessage;
+		while (!loginPending && !isEnded() && (incomingMessage = heldMessages.poll()) != null) {
+			try {
+				dispatchMessage(incomingMessage.integer8(), incomingMessage);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				sendError("Malformed message");
+			}
+		}
+		if (!loginPending)
+			heldMessages = null;
+	}
+
+	private static long itemIdentifierOf(IncomingMessage incomingMessage, int type) {
+		switch (type) {
+			case OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED:
+			case OhapServer.MESSAGE_TYPE_BINARY_CHANGED:
+			case OhapServer.MESSAGE_TYPE_LISTENING_START:
+			case OhapServer.MESSAGE_TYPE_LISTENING_STOP:
+			case OhapServer.MESSAGE_TYPE_HISTORY_REQUEST:
+				return incomingMessage.peekInteger32(1);
+			default:
+				return -1;
 		}
 	}
 	
 	private void end() {
-		try {
-			close();
-		} catch (IOException e) {
-		}
+		SelectorLoop selectorLoop = getSelectorLoop();
+		if (selectorLoop != null && !selectorLoop.isLoopThread())
+			selectorLoop.execute(closeTask);
+		else
+			closeTask.run();
 		
-		for (Container container : listenedContainers) {
+		/* May be called from a thread that is notifying listeners. */
+		Container[] containers;
+		synchronized (listenedContainers) {
+			containers = listenedContainers.toArray(new Container[listenedContainers.size()]);
+			listenedContainers.clear();
+			if (!ended)
+				transport.sessions.decrement();
+			ended = true;
+		}
+		for (Container container : containers) {
 			container.removeListener(this);
 		}
-		listenedContainers.clear();	
+	}
+
+	private Runnable closeTask = new Runnable() {
+		public void run() {
+			try {
+				close();
+			} catch (IOException e) {
+			}
+		}
+	};
+
+	/*
+	 * Runs the task in the same context as the handling of the messages.
+	 */
+	private void executeInSession(Runnable task) {
+		if (handlerExecutor != null)
+			handlerExecutor.execute(task);
+		else
+			execute(task);
+	}
+
+	private boolean isEnded() {
+		synchronized (listenedContainers) {
+			return ended;
+		}
 	}
 
 	private void handleLogin(IncomingMessage incomingMessage) {
 		int protocolVersion = incomingMessage.integer8();
-		String name = incomingMessage.text();
+		final String name = incomingMessage.text();
 		String password = incomingMessage.text();
 
 		if (protocolVersion != 1) {
@@ -132,12 +375,45 @@ public abstract class OhapSession {
 			sendError("Already logged in");
 			return;
 		}
-		if (!server.authenticateUser(name, password)) {
+
+		final CompletableFuture<Boolean> result = server.authenticate(name, password);
+		if (result.isDone()) {
+			completeLogin(name, result);
+			return;
+		}
+
+		loginPending = true;
+		heldMessages = new ArrayDeque<>();
+		result.whenComplete(new BiConsumer<Boolean, Throwable>() {
+			public void accept(Boolean accepted, Throwable exception) {
+				executeInSession(new Runnable() {
+					public void run() {
+						loginPending = false;
+						completeLogin(name, result);
+						releaseHeldMessages();
+					}
+				});
+			}
+		});
+	}
+
+	private void completeLogin(String name, CompletableFuture<Boolean> result) {
+		if (isEnded())
+			return;
+
+		boolean accepted;
+		try {
+			accepted = result.join().booleanValue();
+		} catch (CompletionException | CancellationException e) {
+			Log.log(Log.Level.WARNING, identifier, "Ohap", "Error: Authentication failed: {}", e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+			accepted = false;
+		}
+		if (!accepted) {
 			sendError("Login failed: " + name);
 			return;
 		}
-		
-		log("Login: "+ name);
+
+		Log.log(Log.Level.INFO, identifier, "Ohap", "Login: {}", name);
 		user = name;
 		
 		OutgoingMessage outgoingMessage = new OutgoingMessage();
@@ -149,9 +425,10 @@ public abstract class OhapSession {
 	private void handlePing(IncomingMessage incomingMessage) {
 		long pingIdentifier = incomingMessage.integer32();
 
-		log("Ping: " + pingIdentifier);
+		if (Log.isEnabled(Log.Level.DEBUG))
+			Log.log(Log.Level.DEBUG, identifier, "Ohap", "Ping: {}", pingIdentifier);
 
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		OutgoingMessage outgoingMessage = new OutgoingMessage(7);
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PONG).integer32(pingIdentifier);
 		sendMessage(outgoingMessage);
 	}
@@ -159,7 +436,8 @@ public abstract class OhapSession {
 	private void handlePong(IncomingMessage incomingMessage) {
 		long pingIdentifier = incomingMessage.integer32();
 
-		log("Pong: " + pingIdentifier);
+		if (Log.isEnabled(Log.Level.DEBUG))
+			Log.log(Log.Level.DEBUG, identifier, "Ohap", "Pong: {}", pingIdentifier);
 	}
 
 	private void handleDecimalChanged(IncomingMessage incomingMessage) {
@@ -182,7 +460,8 @@ public abstract class OhapSession {
 			return;
 		}
 
-		log("Change: " + device.getIdentifier() + " -> " + decimalValue);
+		if (Log.isEnabled(Log.Level.DEBUG))
+			Log.log(Log.Level.DEBUG, identifier, "Ohap", "Change: {} -> {}", device.getIdentifier(), decimalValue);
 		device.changeValue(decimalValue);
 	}
 
@@ -206,7 +485,8 @@ public abstract class OhapSession {
 			return;
 		}
 
-		log("Change: " + device.getIdentifier() + " -> " + binaryValue);
+		if (Log.isEnabled(Log.Level.DEBUG))
+			Log.log(Log.Level.DEBUG, identifier, "Ohap", "Change: {} -> {}", device.getIdentifier(), binaryValue);
 		device.changeValue(binaryValue);
 	}
 
@@ -224,31 +504,60 @@ public abstract class OhapSession {
 		}
 		
 		Container container = (Container)item;
+		boolean changed;
+		synchronized (listenedContainers) {
+			changed = start ? listenedContainers.add(container) : listenedContainers.remove(container);
+		}
 		if (start) {
-			if (listenedContainers.add(container)) {
-				log("Start listening: " + container.getIdentifier());
+			if (changed) {
+				Log.log(Log.Level.INFO, identifier, "Ohap", "Start listening: {}", container.getIdentifier());
 				container.addListener(this);
 			} else
 				sendError("Container was already being listened: " + itemIdentifier);
 		} else {
-			if (listenedContainers.remove(container)) {
-				log("Stop listening: " + container.getIdentifier());
+			if (changed) {
+				Log.log(Log.Level.INFO, identifier, "Ohap", "Stop listening: {}", container.getIdentifier());
 				container.removeListener(this);
 			} else
 				sendError("Container was not being listened: " + itemIdentifier);
 		}
 	}
+
+	private void handleHistoryRequest(IncomingMessage incomingMessage) {
+		long itemIdentifier = incomingMessage.integer32();
+		long from = incomingMessage.integer64();
+		long to = incomingMessage.integer64();
+		int maxPoints = incomingMessage.integer16();
+
+		Item item = server.getItemByIdentifier(itemIdentifier);
+		if (item == null) {
+			sendError("No such item: " + itemIdentifier);
+			return;
+		}
+		if (!(item instanceof DecimalDevice)) {
+			sendError("Item is not decimal device: " + itemIdentifier);
+			return;
+		}
+
+		if (Log.isEnabled(Log.Level.DEBUG))
+			Log.log(Log.Level.DEBUG, identifier, "Ohap", "History: {} {}-{}", itemIdentifier, from, to);
+
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_HISTORY).integer32(itemIdentifier);
+		TimeSeries history = ((DecimalDevice)item).getHistory();
+		if (history != null)
+			history.outputRange(from, to, maxPoints, outgoingMessage);
+		else
+			outgoingMessage.integer16(0);
+		sendMessage(outgoingMessage);
+	}
+
 	private void sendError(String message) {
-		log("Error: " + message);
+		Log.log(Log.Level.WARNING, identifier, "Ohap", "Error: {}", message);
 		OutgoingMessage outgoingMessage = new OutgoingMessage();
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LOGOUT).text(message);
 		sendMessage(outgoingMessage);
 		
 		end();
 	}
-
-	private void log(String detail) {
-		long seconds = System.currentTimeMillis() / 1000;
-		System.out.println(seconds + "  " + identifier + "  Ohap  " + detail);
-	}
 }
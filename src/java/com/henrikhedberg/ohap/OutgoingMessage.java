@@ -30,18 +30,51 @@ import java.nio.ByteBuffer;
  * Builds an outgoing OHAP message.
  *
  * <p>Use {@link #integer8(int)}, {@link #integer16(int)}, {@link #integer32(long)},
- * {@link #decimal64(double)}, {@link #allBytes(byte[])}, {@link #binary8(boolean)},
+ * {@link #integer64(long)}, {@link #decimal64(double)}, {@link #allBytes(byte[])}, {@link #binary8(boolean)},
  * and {@link #text(String)} sequentially to build a message. Then, call
  * {@link #writeTo(OutputStream)} to write it into an {@link OutputStream}, or
- * {@link #asByteBuffer()} to get it as a @{link ByteBuffer}.
+ * {@link #asByteBuffer()} to get it as a @{link ByteBuffer}. A message that
+ * has been written may be reused with {@link #clear()}.
  *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20160320)
+ * @version 1.3 (20261018)
  */
 public class OutgoingMessage {
-	private byte[] buffer = new byte[256];
+	private static final Charset charset = Charset.forName("UTF-8");
+
+	private byte[] buffer;
 	private int position = 2;
-	private final Charset charset = Charset.forName("UTF-8");
+
+	/**
+	 * Constructs a new message with a buffer of 256 bytes. The buffer grows
+	 * when needed.
+	 */
+	public OutgoingMessage() {
+		this(256);
+	}
+
+	/**
+	 * Constructs a new message with a buffer of the given size, including
+	 * the length field. The buffer grows when needed.
+	 *
+	 * @param initialBufferSize initial buffer size
+	 */
+	public OutgoingMessage(int initialBufferSize) {
+		buffer = new byte[Math.max(initialBufferSize, 4)];
+	}
+
+	/**
+	 * Empties the message for building a new one into the same buffer. The
+	 * message must not be in use anymore, for example in a
+	 * {@link ByteBuffer} returned by {@link #asByteBuffer()}.
+	 *
+	 * @return itself (for chaining calls)
+	 */
+	public OutgoingMessage clear() {
+		position = 2;
+
+		return this;
+	}
 
 	/**
 	 * Appends unsigned 8-bit integer into the message.
@@ -89,6 +122,27 @@ public class OutgoingMessage {
 		return this;
 	}
 
+	/**
+	 * Appends signed 64-bit integer into the message.
+	 *
+	 * @param value signed 64-bit integer
+	 * @return itself (for chaining calls)
+	 */
+	public OutgoingMessage integer64(long value) {
+		ensureCapacity(8);
+		buffer[position] = (byte)(value >> 56);
+		buffer[position + 1] = (byte)(value >> 48);
+		buffer[position + 2] = (byte)(value >> 40);
+		buffer[position + 3] = (byte)(value >> 32);
+		buffer[position + 4] = (byte)(value >> 24);
+		buffer[position + 5] = (byte)(value >> 16);
+		buffer[position + 6] = (byte)(value >> 8);
+		buffer[position + 7] = (byte)value;
+		position += 8;
+
+		return this;
+	}
+
 	/**
 	 * Appends IEEE 754 floating-point double precision decimal number into the message.
 	 *
@@ -178,12 +232,26 @@ public class OutgoingMessage {
 		return ByteBuffer.wrap(buffer, 0, length);
 	}
 
+	/**
+	 * Returns the length of the message built so far, including its
+	 * length field.
+	 *
+	 * @return length of the message in bytes
+	 */
+	public int getLength() {
+		return position;
+	}
+
+	int getType() {
+		return position > 2 ? buffer[2] & 0xff : -1;
+	}
+
 	private void ensureCapacity(int appendLength) {
-		if (position + appendLength < buffer.length)
+		if (position + appendLength <= buffer.length)
 			return;
 
 		int newLength = buffer.length * 2;
-		while (position + appendLength >= newLength)
+		while (position + appendLength > newLength)
 			newLength *= 2;
 		buffer = Arrays.copyOf(buffer, newLength);
 	}
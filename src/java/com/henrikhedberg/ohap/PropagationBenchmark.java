@@ -0,0 +1,122 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.Histogram;
+import com.henrikhedberg.util.Log;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast an actuator change propagates through the server to the
+ * sockets of the listening sessions.
+ *
+ * <p>Each point of the sweep starts a {@link TcpOhapServer} in this process
+ * on a loopback port, with one container of decimal actuators under the root
+ * container. An {@link OhapLoadGenerator} then opens the listening sessions,
+ * which all listen on the container, and changes the actuators through them
+ * at the given rate. Every change travels through
+ * {@link OhapSession}, {@link DecimalDevice#changeValue(double)} and
+ * {@link Container}, and is sent to every listener, so the server writes
+ * <code>rate * listeners</code> notifications per second.
+ *
+ * <p>For every combination of listener count, container size and change
+ * rate, the benchmark prints the changes and the notifications delivered per
+ * second together with the percentiles of the change-to-notification
+ * latency. Changes that found every actuator still waiting for its previous
+ * notification are counted as skipped, which means that the server did not
+ * keep up with the rate.
+ *
+ * <p>Usage: <code>PropagationBenchmark [listeners] [sizes] [rates]
+ * [seconds]</code>, where the first three are comma-separated lists. The
+ * defaults are <code>1,10,100 10,1000 100,1000,10000 5</code>. The first
+ * point is run once as a warm-up before the sweep.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class PropagationBenchmark {
+	public static void main(String[] args) throws Exception {
+		int[] listenerCounts = parseList(args.length > 0 ? args[0] : "1,10,100");
+		int[] sizes = parseList(args.length > 1 ? args[1] : "10,1000");
+		int[] rates = parseList(args.length > 2 ? args[2] : "100,1000,10000");
+		long duration = TimeUnit.SECONDS.toNanos(args.length > 3 ? Integer.parseInt(args[3]) : 5);
+		Log.setLevel(Log.Level.OFF);
+
+		System.out.printf("%-9s %9s %6s %6s %9s %11s %7s %9s %9s %9s %9s%n", "", "listeners", "size", "rate",
+		                  "changes/s", "notified/s", "skipped", "p50 us", "p99 us", "p99.9 us", "max us");
+		run("warm-up", listenerCounts[0], sizes[0], rates[0], duration);
+		for (int listenerCount : listenerCounts)
+			for (int size : sizes)
+				for (int rate : rates)
+					run("", listenerCount, size, rate, duration);
+	}
+
+	private static void run(String name, int listenerCount, int size, int rate, long duration) throws Exception {
+		TcpOhapServer server = new TcpOhapServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.setRootContainer(createTree(size), size + 2);
+		Thread serverThread = new Thread(server.getTcpServer(), "PropagationBenchmark");
+		serverThread.start();
+
+		OhapLoadGenerator generator = new OhapLoadGenerator((InetSocketAddress)server.getTcpServer().getLocalAddress(), listenerCount);
+		if (!generator.connect(TimeUnit.SECONDS.toNanos(60)) || generator.getReadySessions() < listenerCount) {
+			System.out.printf("%-9s %9d %6d %6d  only %d sessions ready%n", name, listenerCount, size, rate,
+			                  generator.getReadySessions());
+		} else {
+			generator.drive(rate, 0, duration);
+			Histogram latency = generator.getNotificationLatency();
+			System.out.printf("%-9s %9d %6d %6d %9.0f %11.0f %7d %9.1f %9.1f %9.1f %9.1f%n", name, listenerCount, size, rate,
+			                  generator.getChangesSent() * 1e9 / duration, latency.getTotalCount() * 1e9 / duration,
+			                  generator.getChangesSkipped(), latency.getValueAtPercentile(50) / 1e3,
+			                  latency.getValueAtPercentile(99) / 1e3, latency.getValueAtPercentile(99.9) / 1e3,
+			                  latency.getMax() / 1e3);
+		}
+		generator.close();
+
+		server.getTcpServer().stop();
+		serverThread.join();
+		server.getTcpServer().close();
+	}
+
+	/*
+	 * The root container holds only the benchmark container, so that all
+	 * changes go to the same listeners.
+	 */
+	private static Container createTree(int size) {
+		Container root = new Container(0, "Propagation Benchmark", "The root container.", false);
+		Container container = new Container(1, "Actuators", "The changed actuators.", false);
+		root.addItem(container);
+		for (int i = 0; i < size; i++)
+			container.addItem(new DecimalDevice(2 + i, "Actuator " + i, "A changed actuator.", false,
+			                                    Device.Type.ACTUATOR, 0, -1e12, 1e12, "", ""));
+
+		return root;
+	}
+
+	private static int[] parseList(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+
+		return values;
+	}
+}
@@ -20,10 +20,15 @@
 
 package com.henrikhedberg.ohap;
 
+import com.henrikhedberg.util.BufferPool;
+import com.henrikhedberg.util.Log;
+import com.henrikhedberg.util.MetricsHttpHandler;
+import com.henrikhedberg.util.SelectorLoop;
 import com.henrikhedberg.util.TcpServer;
 import com.henrikhedberg.util.TcpServerConnection;
 import java.net.SocketAddress;
 import java.net.InetSocketAddress;
+import java.io.EOFException;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.IOException;
@@ -32,8 +37,14 @@ import java.nio.ByteBuffer;
 /**
  * Open Home Automation Protocol (OHAP) server with TCP backend.
  *
+ * <p>The server has no HTTP server of its own. If the
+ * <code>ohap.metricsPort</code> system property is set, the metrics are
+ * served from a separate one on that port, in the path given in the
+ * <code>ohap.metricsPath</code> system property, <code>/metrics</code> by
+ * default.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20160320)
+ * @version 1.4 (20261018)
  */
 
 public class TcpOhapServer extends OhapServer {
@@ -56,50 +67,104 @@ public class TcpOhapServer extends OhapServer {
 
 	public static void main(String[] args) throws IOException {
 		TcpOhapServer ohapServer = new TcpOhapServer(new InetSocketAddress(18001));
+		ohapServer.configure();
+		Integer metricsPort = Integer.getInteger("ohap.metricsPort");
+		if (metricsPort != null) {
+			MetricsHttpHandler.serve(ohapServer.getMetrics(), metricsPort.intValue(), System.getProperty("ohap.metricsPath", "/metrics"));
+			Log.log(Log.Level.INFO, null, "Ohap", "Serving metrics on port {}", metricsPort);
+		}
 		ohapServer.getTcpServer().run();
 	}
 	
-	private static class TcpOhapSession extends OhapSession {
+	static class TcpOhapSession extends OhapSession {
 		TcpServerConnection connection;
+		private BufferPool bufferPool;
 		private IncomingMessage incomingMessage = new IncomingMessage();
-		private ByteBuffer incomingByteBuffer = ByteBuffer.allocate(1024);
+		private ByteBuffer incomingByteBuffer;
+		private boolean closed;
 
 		TcpOhapSession(OhapServer server, TcpServerConnection connection) throws IOException {
-			super(server, connection.getRemoteAddress().toString());
+			super(server, "tcp", connection.getRemoteAddress().toString());
 			this.connection = connection;
+			bufferPool = connection.getTcpServer().getSelectorLoop().getBufferPool();
+			useHandlerExecutor();
 			connection.setHandler(new TcpServerConnection.Handler() {
 				public void handleData(TcpServerConnection connection) {
 					try {
-						connection.read(incomingByteBuffer);
+						if (incomingByteBuffer == null)
+							incomingByteBuffer = bufferPool.acquire();
+						if (connection.read(incomingByteBuffer) == -1)
+							throw new EOFException("Connection closed by peer.");
 						incomingByteBuffer.flip();
-						if (incomingMessage.readFromNB(incomingByteBuffer))
-							handleMessage(incomingMessage);
+						while (!closed && incomingMessage.readFromNB(incomingByteBuffer))
+							receiveMessage(incomingMessage);
+						if (closed) {
+							releaseBuffer();
+							return;
+						}
 						incomingByteBuffer.compact();
-						if (!incomingByteBuffer.hasRemaining()) {
+						if (incomingByteBuffer.position() == 0)
+							releaseBuffer();
+						else if (!incomingByteBuffer.hasRemaining()) {
 							incomingByteBuffer.flip();
-							incomingByteBuffer =
-							    ByteBuffer.allocate(incomingByteBuffer.capacity() * 2)
-							    .put(incomingByteBuffer);
+							ByteBuffer larger = ByteBuffer.allocate(incomingByteBuffer.capacity() * 2).put(incomingByteBuffer);
+							bufferPool.release(incomingByteBuffer);
+							incomingByteBuffer = larger;
 						}
 
 					} catch (IOException e) {
+						releaseBuffer();
 						readMessageFailed(e);
 					}
 				  }
 				  
 				  public void handleIOException(IOException exception) {
-				  	// TODO
+				  	releaseBuffer();
+				  	readMessageFailed(exception);
 				  }
 			});
 		}
 
 		protected void writeMessage(OutgoingMessage outgoingMessage) throws IOException {
+			if (closed)
+				throw new IOException("Connection closed.");
+
 			ByteBuffer outgoingByteBuffer = outgoingMessage.asByteBuffer();
 			connection.write(outgoingByteBuffer);
 		}
+
+		protected int getQueuedBytes() {
+			return connection.getQueuedBytes();
+		}
 		
 		protected void close() throws IOException {
+			if (closed)
+				return;
+
+			closed = true;
 			connection.close();
 		}
+
+		protected void execute(Runnable task) {
+			connection.getTcpServer().getSelectorLoop().execute(task);
+		}
+
+		protected SelectorLoop getSelectorLoop() {
+			return connection.getTcpServer().getSelectorLoop();
+		}
+
+		protected void setReading(boolean reading) {
+			try {
+				connection.setReading(reading);
+			} catch (IOException e) {
+			}
+		}
+
+		private void releaseBuffer() {
+			if (incomingByteBuffer != null) {
+				bufferPool.release(incomingByteBuffer);
+				incomingByteBuffer = null;
+			}
+		}
 	}
 }
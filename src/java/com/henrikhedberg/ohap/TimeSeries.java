@@ -0,0 +1,162 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size ring buffer of (timestamp, value) samples stored outside of
+ * the Java heap.
+ *
+ * <p>Each sample takes 16 bytes: the timestamp in milliseconds since the epoch
+ * and the value as an IEEE 754 double. When the ring is full, the oldest
+ * sample is overwritten. {@link #record(long, double)} does not allocate.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class TimeSeries {
+	public static final int SAMPLE_SIZE = 16;
+
+	/**
+	 * The maximum amount of samples that fit into one OHAP message.
+	 */
+	public static final int MAX_POINTS = (65535 - 7) / SAMPLE_SIZE;
+
+	private ByteBuffer buffer;
+	private int capacity;
+	private int next;
+	private int size;
+
+	/**
+	 * Constructs a new time series with its own direct buffer.
+	 *
+	 * @param capacity the maximum amount of samples
+	 */
+	public TimeSeries(int capacity) {
+		this(ByteBuffer.allocateDirect(capacity * SAMPLE_SIZE));
+	}
+
+	/**
+	 * Constructs a new time series on top of the given buffer, which
+	 * may be a slice of a larger direct buffer. The capacity is determined
+	 * by the remaining bytes of the buffer.
+	 *
+	 * @param buffer the buffer to store samples in
+	 */
+	public TimeSeries(ByteBuffer buffer) {
+		this.buffer = buffer.slice();
+		capacity = this.buffer.capacity() / SAMPLE_SIZE;
+		if (capacity == 0)
+			throw new IllegalArgumentException("No room for samples.");
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Stores a new sample, overwriting the oldest one if the ring is full.
+	 *
+	 * @param timestamp milliseconds since the epoch
+	 * @param value the sample value
+	 */
+	public synchronized void record(long timestamp, double value) {
+		int offset = next * SAMPLE_SIZE;
+		buffer.putLong(offset, timestamp);
+		buffer.putDouble(offset + 8, value);
+		next = next + 1 == capacity ? 0 : next + 1;
+		if (size < capacity)
+			size++;
+	}
+
+	/**
+	 * Appends the samples between the given timestamps (inclusive) into
+	 * the message: first the amount of samples as an unsigned 16-bit
+	 * integer, then each sample as a 64-bit timestamp and a decimal value.
+	 *
+	 * <p>If there are more samples than <code>maxPoints</code>, the range
+	 * is divided into <code>maxPoints</code> equal time buckets and each
+	 * non-empty bucket is output as the mean of its timestamps and values.
+	 *
+	 * @param from the start of the range in milliseconds since the epoch
+	 * @param to the end of the range in milliseconds since the epoch
+	 * @param maxPoints the maximum amount of samples to output
+	 * @param outgoingMessage the message to append into
+	 */
+	public synchronized void outputRange(long from, long to, int maxPoints, OutgoingMessage outgoingMessage) {
+		maxPoints = Math.max(1, Math.min(maxPoints, MAX_POINTS));
+		int first = next - size < 0 ? next - size + capacity : next - size;
+
+		int count = 0;
+		for (int i = 0, index = first; i < size; i++, index = index + 1 == capacity ? 0 : index + 1) {
+			long timestamp = buffer.getLong(index * SAMPLE_SIZE);
+			if (timestamp >= from && timestamp <= to)
+				count++;
+		}
+
+		if (count <= maxPoints) {
+			outgoingMessage.integer16(count);
+			for (int i = 0, index = first; i < size; i++, index = index + 1 == capacity ? 0 : index + 1) {
+				long timestamp = buffer.getLong(index * SAMPLE_SIZE);
+				if (timestamp >= from && timestamp <= to)
+					outgoingMessage.integer64(timestamp).decimal64(buffer.getDouble(index * SAMPLE_SIZE + 8));
+			}
+			return;
+		}
+
+		double span = (double)to - from + 1;
+		for (int pass = 0; pass < 2; pass++) {
+			int buckets = 0;
+			int bucket = -1;
+			int samples = 0;
+			double timestampSum = 0;
+			double valueSum = 0;
+			for (int i = 0, index = first; i < size; i++, index = index + 1 == capacity ? 0 : index + 1) {
+				long timestamp = buffer.getLong(index * SAMPLE_SIZE);
+				if (timestamp < from || timestamp > to)
+					continue;
+				int sampleBucket = (int)((timestamp - from) / span * maxPoints);
+				if (sampleBucket > bucket) {
+					if (samples > 0) {
+						if (pass == 1)
+							outgoingMessage.integer64((long)(timestampSum / samples)).decimal64(valueSum / samples);
+						buckets++;
+					}
+					bucket = sampleBucket;
+					samples = 0;
+					timestampSum = 0;
+					valueSum = 0;
+				}
+				samples++;
+				timestampSum += timestamp;
+				valueSum += buffer.getDouble(index * SAMPLE_SIZE + 8);
+			}
+			if (samples > 0) {
+				if (pass == 1)
+					outgoingMessage.integer64((long)(timestampSum / samples)).decimal64(valueSum / samples);
+				buckets++;
+			}
+			if (pass == 0)
+				outgoingMessage.integer16(buckets);
+		}
+	}
+}
@@ -0,0 +1,402 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Persists the values of {@link Device}s over server restarts.
+ *
+ * <p>The store consists of two files in a directory. The snapshot
+ * (<code>values.snapshot</code>) is a memory-mapped table of fixed-size
+ * records holding the value of every device keyed by the item identifier.
+ * The journal (<code>values.journal</code>) is an append-only log of value
+ * changes written after the snapshot. Both use the same 16-byte record:
+ * the identifier (32 bits), a check word (32 bits) and the value bits
+ * (64 bits).
+ *
+ * <p>{@link #append(long, long)} only queues the change, so it can be
+ * called on the same thread that notifies the listeners. A background
+ * writer thread takes all queued changes at once, writes them to the
+ * journal and forces them to the disk with a single call (group commit).
+ * It also updates the mapped snapshot and truncates the journal whenever
+ * it grows over {@link #CHECKPOINT_JOURNAL_SIZE}.
+ *
+ * <p>{@link #open(OhapServer)} recovers the values by reading the snapshot
+ * and replaying the journal on top of it. A torn record at the end of the
+ * journal is ignored.
+ *
+ * <p>If the journal cannot be written, the store is marked failed (see
+ * {@link #isFailed()}) and the writer retries every
+ * {@link #RETRY_INTERVAL} milliseconds by forcing the changes into the
+ * snapshot and starting a new journal. At most
+ * {@link #MAX_PENDING_CHANGES} changes are queued meanwhile, or when the
+ * writer otherwise falls behind; the changes after that are dropped and
+ * counted (see {@link #getDroppedChanges()}) rather than blocking the
+ * caller.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.1 (20261018)
+ */
+public class ValueStore {
+	public static final int CHECKPOINT_JOURNAL_SIZE = 16 * 1024 * 1024;
+	public static final int MAX_PENDING_CHANGES = 1024 * 1024;
+	public static final long RETRY_INTERVAL = 1000;
+
+	private static final int MAGIC = 0x4f485653;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 16;
+
+	private File snapshotFile;
+	private File journalFile;
+	private FileChannel snapshotChannel;
+	private MappedByteBuffer snapshot;
+	private int snapshotRecords;
+	private HashMap<Long, Integer> slots = new HashMap<>();
+	private FileChannel journalChannel;
+	private ByteBuffer journalBuffer = ByteBuffer.allocateDirect(64 * 1024);
+	private Thread writerThread;
+
+	/* Synchronized */
+	private long[] pending = new long[2048];
+	private long[] spare = new long[2048];
+	private int pendingCount;
+	private boolean closed;
+	private boolean failed;
+	private long droppedChanges;
+
+	/**
+	 * Constructs a new store in the given directory. The directory is created
+	 * if it does not exist.
+	 *
+	 * @param directory the directory for the snapshot and journal files
+	 */
+	public ValueStore(File directory) {
+		snapshotFile = new File(directory, "values.snapshot");
+		journalFile = new File(directory, "values.journal");
+	}
+
+	/**
+	 * Restores the saved values into the devices of the given server, writes
+	 * a fresh snapshot, starts the writer thread and sets this store as the
+	 * {@link ValueStore} of the server.
+	 *
+	 * @param server the server whose devices to restore and record
+	 * @return the amount of restored values
+	 * @throws IOException if the files cannot be read or written
+	 */
+	public int open(OhapServer server) throws IOException {
+		Files.createDirectories(snapshotFile.toPath().getParent());
+
+		int restored = 0;
+		if (snapshotFile.exists())
+			restored += replay(server, snapshotFile, true);
+		if (journalFile.exists())
+			restored += replay(server, journalFile, false);
+
+		writeSnapshot(server);
+
+		journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		journalChannel.truncate(0);
+		journalChannel.force(true);
+
+		writerThread = new Thread("ValueStore writer") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		server.setValueStore(this);
+
+		return restored;
+	}
+
+	/**
+	 * Queues a value change to be written into the journal. Does not block
+	 * on I/O. The change is dropped if {@link #MAX_PENDING_CHANGES} changes
+	 * are already queued.
+	 *
+	 * @param identifier the item identifier of the device
+	 * @param bits the value bits of the device
+	 */
+	public synchronized void append(long identifier, long bits) {
+		if (closed)
+			return;
+
+		if (pendingCount == MAX_PENDING_CHANGES * 2) {
+			if (droppedChanges++ == 0 || droppedChanges % MAX_PENDING_CHANGES == 0)
+				Log.log(Log.Level.ERROR, null, "Ohap", "ValueStore: {} changes dropped, the writer is behind", droppedChanges);
+			return;
+		}
+		if (pendingCount == pending.length)
+			pending = Arrays.copyOf(pending, Math.min(pending.length * 2, MAX_PENDING_CHANGES * 2));
+		pending[pendingCount++] = identifier;
+		pending[pendingCount++] = bits;
+		if (pendingCount == 2)
+			notify();
+	}
+
+	/**
+	 * Returns true while the changes cannot be written to the disk.
+	 *
+	 * @return true if the store has failed and not yet recovered
+	 */
+	public synchronized boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the amount of the changes dropped because too many changes
+	 * were queued.
+	 *
+	 * @return amount of dropped changes
+	 */
+	public synchronized long getDroppedChanges() {
+		return droppedChanges;
+	}
+
+	/**
+	 * Writes all queued changes, forces the snapshot to the disk and stops
+	 * the writer thread.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notify();
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				long[] batch;
+				int count;
+				synchronized (this) {
+					while (pendingCount == 0 && !closed)
+						wait();
+					if (pendingCount == 0)
+						break;
+					batch = pending;
+					count = pendingCount;
+					pending = spare;
+					pendingCount = 0;
+				}
+
+				try {
+					writeJournal(batch, count);
+					for (int i = 0; i < count; i += 2)
+						putRecord(snapshot, HEADER_SIZE + slotFor(batch[i]) * RECORD_SIZE, batch[i], batch[i + 1]);
+					if (journalChannel.position() >= CHECKPOINT_JOURNAL_SIZE)
+						checkpoint();
+				} catch (IOException e) {
+					Log.log(Log.Level.ERROR, null, "Ohap", "ValueStore: IOException when writing: {}", e.getMessage());
+					if (!recover(batch, count))
+						return;
+				}
+
+				synchronized (this) {
+					spare = batch;
+				}
+			}
+			snapshot.force();
+			journalChannel.truncate(0);
+			journalChannel.close();
+			snapshotChannel.close();
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			Log.log(Log.Level.ERROR, null, "Ohap", "ValueStore: IOException when closing: {}", e.getMessage());
+		}
+	}
+
+	/*
+	 * Retries until the given batch is in the snapshot and the journal has
+	 * been started anew, or the store is closed. Returns false if the store
+	 * was closed first; the batch and the changes queued meanwhile are lost.
+	 */
+	private boolean recover(long[] batch, int count) throws InterruptedException {
+		synchronized (this) {
+			failed = true;
+		}
+		while (true) {
+			synchronized (this) {
+				if (closed) {
+					Log.log(Log.Level.ERROR, null, "Ohap", "ValueStore: Closed while failed, {} changes lost", (count + pendingCount) / 2);
+					return false;
+				}
+				wait(RETRY_INTERVAL);
+			}
+			try {
+				for (int i = 0; i < count; i += 2)
+					putRecord(snapshot, HEADER_SIZE + slotFor(batch[i]) * RECORD_SIZE, batch[i], batch[i + 1]);
+				try {
+					journalChannel.close();
+				} catch (IOException e) {
+				}
+				journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				journalBuffer.clear();
+				checkpoint();
+				synchronized (this) {
+					failed = false;
+				}
+				Log.log(Log.Level.INFO, null, "Ohap", "ValueStore: Recovered, writing the journal again");
+				return true;
+			} catch (IOException e) {
+				Log.log(Log.Level.DEBUG, null, "Ohap", "ValueStore: Still failing: {}", e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Forces the snapshot to the disk and empties the journal.
+	 */
+	private void checkpoint() throws IOException {
+		snapshot.force();
+		journalChannel.truncate(0);
+		journalChannel.position(0);
+		journalChannel.force(true);
+	}
+
+	private void writeJournal(long[] batch, int count) throws IOException {
+		for (int i = 0; i < count; i += 2) {
+			if (journalBuffer.remaining() < RECORD_SIZE) {
+				journalBuffer.flip();
+				while (journalBuffer.hasRemaining())
+					journalChannel.write(journalBuffer);
+				journalBuffer.clear();
+			}
+			journalBuffer.putInt((int)batch[i]).putInt(check((int)batch[i], batch[i + 1])).putLong(batch[i + 1]);
+		}
+		journalBuffer.flip();
+		while (journalBuffer.hasRemaining())
+			journalChannel.write(journalBuffer);
+		journalBuffer.clear();
+		journalChannel.force(false);
+	}
+
+	private int replay(OhapServer server, File file, boolean isSnapshot) throws IOException {
+		int restored = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size == 0)
+				return 0;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (isSnapshot) {
+				if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+					throw new IOException("Not a value snapshot: " + file);
+				long records = buffer.getInt(8) & 0xffffffffL;
+				buffer.limit((int)Math.min(size, HEADER_SIZE + records * RECORD_SIZE));
+				buffer.position(HEADER_SIZE);
+			}
+			while (buffer.remaining() >= RECORD_SIZE) {
+				int identifier = buffer.getInt();
+				int check = buffer.getInt();
+				long bits = buffer.getLong();
+				if (check != check(identifier, bits)) {
+					if (isSnapshot)
+						continue;
+					break;
+				}
+				Item item = server.getItemByIdentifier(identifier & 0xffffffffL);
+				if (item instanceof Device) {
+					((Device)item).restoreValueBits(bits);
+					restored++;
+				}
+			}
+		}
+
+		return restored;
+	}
+
+	private void writeSnapshot(OhapServer server) throws IOException {
+		int count = 0;
+		for (Item item : server.getItems())
+			if (item instanceof Device)
+				count++;
+
+		File newFile = new File(snapshotFile.getPath() + ".new");
+		try (FileChannel channel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+		                                            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)count * RECORD_SIZE);
+			buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, count);
+			int slot = 0;
+			for (Item item : server.getItems()) {
+				if (item instanceof Device) {
+					putRecord(buffer, HEADER_SIZE + slot * RECORD_SIZE, item.getIdentifier(), ((Device)item).getValueBits());
+					slots.put(Long.valueOf(item.getIdentifier()), Integer.valueOf(slot));
+					slot++;
+				}
+			}
+			buffer.force();
+		}
+		Files.move(newFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		snapshotChannel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		snapshotRecords = count;
+		snapshot = snapshotChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)count * RECORD_SIZE);
+	}
+
+	private int slotFor(long identifier) throws IOException {
+		Integer slot = slots.get(Long.valueOf(identifier));
+		if (slot != null)
+			return slot.intValue();
+
+		/* A device added after the store was opened; grow the snapshot. */
+		int newSlot = slots.size();
+		slots.put(Long.valueOf(identifier), Integer.valueOf(newSlot));
+		if (newSlot >= snapshotRecords) {
+			snapshot.force();
+			snapshotRecords = Math.max(16, snapshotRecords * 2);
+			snapshot = snapshotChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)snapshotRecords * RECORD_SIZE);
+		}
+		snapshot.putInt(8, slots.size());
+
+		return newSlot;
+	}
+
+	private static void putRecord(ByteBuffer buffer, int offset, long identifier, long bits) {
+		buffer.putInt(offset, (int)identifier)
+		      .putInt(offset + 4, check((int)identifier, bits))
+		      .putLong(offset + 8, bits);
+	}
+
+	private static int check(int identifier, long bits) {
+		return identifier ^ (int)bits ^ (int)(bits >>> 32) ^ MAGIC;
+	}
+}
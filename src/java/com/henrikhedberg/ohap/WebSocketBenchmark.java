@@ -0,0 +1,292 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.hbdp.client.NioHbdpClient;
+import com.henrikhedberg.hbdp.client.NioHbdpConnection;
+import com.henrikhedberg.util.InputStreamHandler;
+import com.henrikhedberg.util.SelectorLoop;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the WebSocket and HBDP backends of a running {@link NioOhapServer}
+ * with the same workload.
+ *
+ * <p>Every session logs in and then sends pings one after another, each
+ * after the pong of the previous one has arrived. All sessions run at the
+ * same time. The HBDP sessions use a {@link NioHbdpClient}, whose pipelined
+ * requests are the fastest HBDP can do over HTTP/1.1, and the WebSocket
+ * sessions a minimal client in the same {@link SelectorLoop}, so both
+ * clients have one thread. The benchmark reports the round trips per
+ * second and the percentiles of the round-trip time.
+ *
+ * <p>Usage: <code>WebSocketBenchmark [host] [sessions] [pings] [rounds]</code>.
+ * The HBDP backend is expected at the port 18000 and the WebSocket backend at
+ * the port 18002. The first round of each backend is a warm-up.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class WebSocketBenchmark {
+	public static void main(String[] args) throws Exception {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int pings = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+		NioHbdpClient hbdpClient = new NioHbdpClient(new URL("http://" + host + ":18000/"));
+		InetSocketAddress webSocketAddress = new InetSocketAddress(host, 18002);
+
+		for (int round = 0; round < rounds; round++) {
+			String prefix = round == 0 ? "warm-up " : "";
+
+			Session[] webSocketSessions = new Session[sessions];
+			CountDownLatch done = new CountDownLatch(sessions);
+			long start = System.nanoTime();
+			for (int i = 0; i < sessions; i++)
+				webSocketSessions[i] = new WebSocketSession(hbdpClient.getSelectorLoop(), webSocketAddress, pings, done);
+			report(prefix + "websocket", webSocketSessions, done, start);
+
+			Session[] hbdpSessions = new Session[sessions];
+			done = new CountDownLatch(sessions);
+			start = System.nanoTime();
+			for (int i = 0; i < sessions; i++)
+				hbdpSessions[i] = new HbdpSession(hbdpClient, pings, done);
+			report(prefix + "hbdp     ", hbdpSessions, done, start);
+		}
+	}
+
+	private static void report(String name, Session[] sessions, CountDownLatch done, long start) throws Exception {
+		if (!done.await(5, TimeUnit.MINUTES)) {
+			System.out.printf("%s  did not finish%n", name);
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		for (Session session : sessions)
+			session.close();
+
+		int count = 0;
+		for (Session session : sessions)
+			count += session.count;
+		long[] latencies = new long[count];
+		int position = 0;
+		for (Session session : sessions) {
+			System.arraycopy(session.latencies, 0, latencies, position, session.count);
+			position += session.count;
+		}
+		Arrays.sort(latencies);
+
+		System.out.printf("%s  %8.0f round trips/s  p50 %7.1f us  p99 %7.1f us  max %8.1f us%n", name,
+		                  count * 1e9 / nanos, percentile(latencies, 0.50) / 1e3,
+		                  percentile(latencies, 0.99) / 1e3, latencies[count - 1] / 1e3);
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		return sorted[Math.min(sorted.length - 1, (int)(sorted.length * fraction))];
+	}
+
+	/*
+	 * Drives the workload of one session. The subclasses only move the
+	 * messages.
+	 */
+	private static abstract class Session {
+		long[] latencies;
+		int count;
+		private CountDownLatch done;
+		private long sent;
+
+		Session(int pings, CountDownLatch done) {
+			latencies = new long[pings];
+			this.done = done;
+		}
+
+		protected abstract void send(OutgoingMessage outgoingMessage) throws IOException;
+		protected abstract void close();
+
+		protected void login() throws IOException {
+			OutgoingMessage outgoingMessage = new OutgoingMessage();
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LOGIN).integer8(1).text("benchmark").text("benchmark");
+			send(outgoingMessage);
+		}
+
+		protected void received(IncomingMessage incomingMessage) throws IOException {
+			int type = incomingMessage.integer8();
+			if (type == OhapServer.MESSAGE_TYPE_PONG)
+				latencies[count++] = System.nanoTime() - sent;
+			else if (type != OhapServer.MESSAGE_TYPE_CONTAINER)
+				return;
+
+			if (count == latencies.length) {
+				done.countDown();
+				return;
+			}
+			OutgoingMessage outgoingMessage = new OutgoingMessage();
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PING).integer32(count);
+			sent = System.nanoTime();
+			send(outgoingMessage);
+		}
+	}
+
+	/*
+	 * A minimal WebSocket client in the loop of the HBDP client. The
+	 * handshake is made before the channel joins the loop.
+	 */
+	private static class WebSocketSession extends Session {
+		private SocketChannel channel;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+		private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+		private IncomingMessage incomingMessage = new IncomingMessage();
+		private int mask = ThreadLocalRandom.current().nextInt();
+
+		WebSocketSession(SelectorLoop selectorLoop, InetSocketAddress address, int pings, CountDownLatch done) throws IOException {
+			super(pings, done);
+			channel = SocketChannel.open(address);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			byte[] key = new byte[16];
+			ThreadLocalRandom.current().nextBytes(key);
+			String request = "GET / HTTP/1.1\r\nHost: " + address.getHostString() + ":" + address.getPort() + "\r\n" +
+			                 "Upgrade: websocket\r\nConnection: Upgrade\r\n" +
+			                 "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(key) + "\r\n" +
+			                 "Sec-WebSocket-Version: 13\r\nSec-WebSocket-Protocol: ohap\r\n\r\n";
+			channel.write(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+			StringBuilder response = new StringBuilder();
+			ByteBuffer one = ByteBuffer.allocate(1);
+			while (response.indexOf("\r\n\r\n") == -1) {
+				one.clear();
+				if (channel.read(one) == -1)
+					throw new IOException("WebSocket handshake failed.");
+				response.append((char)one.get(0));
+			}
+			if (!response.toString().startsWith("HTTP/1.1 101"))
+				throw new IOException("WebSocket handshake failed: " + response);
+			channel.configureBlocking(false);
+
+			selectorLoop.execute(new Runnable() {
+				public void run() {
+					try {
+						selectorLoop.registerReadableHandler(channel, new SelectorLoop.ReadableHandler() {
+							public void handleReadable(SelectableChannel selectableChannel) {
+								try {
+									readFrames();
+								} catch (IOException e) {
+									close();
+								}
+							}
+						});
+						login();
+					} catch (IOException e) {
+						close();
+					}
+				}
+			});
+		}
+
+		private void readFrames() throws IOException {
+			if (channel.read(readBuffer) == -1)
+				throw new IOException("Connection closed by peer.");
+			readBuffer.flip();
+			while (readBuffer.remaining() >= 2) {
+				int position = readBuffer.position();
+				int headerLength = 2;
+				int length = readBuffer.get(position + 1) & 0x7f;
+				if (length == 126) {
+					if (readBuffer.remaining() < 4)
+						break;
+					length = readBuffer.getShort(position + 2) & 0xffff;
+					headerLength = 4;
+				}
+				if (readBuffer.remaining() < headerLength + length)
+					break;
+				readBuffer.position(position + headerLength);
+				int limit = readBuffer.limit();
+				readBuffer.limit(position + headerLength + length);
+				if ((readBuffer.get(position) & 0x0f) == 0x2)
+					while (incomingMessage.readFromNB(readBuffer))
+						received(incomingMessage);
+				readBuffer.position(position + headerLength + length).limit(limit);
+			}
+			readBuffer.compact();
+		}
+
+		protected void send(OutgoingMessage outgoingMessage) throws IOException {
+			ByteBuffer payload = outgoingMessage.asByteBuffer();
+			int length = payload.remaining();
+			writeBuffer.clear();
+			writeBuffer.put((byte)0x82);
+			if (length < 126) {
+				writeBuffer.put((byte)(0x80 | length));
+			} else {
+				writeBuffer.put((byte)(0x80 | 126));
+				writeBuffer.putShort((short)length);
+			}
+			writeBuffer.putInt(mask);
+			for (int i = 0; i < length; i++)
+				writeBuffer.put((byte)(payload.get() ^ (mask >>> (24 - 8 * (i & 3)))));
+			writeBuffer.flip();
+			while (writeBuffer.hasRemaining())
+				channel.write(writeBuffer);
+		}
+
+		protected void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static class HbdpSession extends Session {
+		private NioHbdpConnection connection;
+		private IncomingMessage incomingMessage = new IncomingMessage();
+
+		HbdpSession(NioHbdpClient client, int pings, CountDownLatch done) throws IOException {
+			super(pings, done);
+			connection = client.connect();
+			connection.setInputStreamHandler(new InputStreamHandler() {
+				public void handle(InputStream inputStream) throws IOException {
+					while (incomingMessage.readFromNB(inputStream))
+						received(incomingMessage);
+				}
+			});
+			login();
+		}
+
+		protected void send(OutgoingMessage outgoingMessage) throws IOException {
+			outgoingMessage.writeTo(connection.getOutputStream());
+		}
+
+		protected void close() {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,479 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.BufferPool;
+import com.henrikhedberg.util.Log;
+import com.henrikhedberg.util.MetricsHttpHandler;
+import com.henrikhedberg.util.SelectorLoop;
+import com.henrikhedberg.util.TcpServer;
+import com.henrikhedberg.util.TcpServerConnection;
+import java.net.SocketAddress;
+import java.net.InetSocketAddress;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Open Home Automation Protocol (OHAP) server with WebSocket backend.
+ *
+ * <p>A browser opens a WebSocket (RFC 6455) to any path of the server and
+ * exchanges OHAP messages in binary frames, one message in each frame the
+ * server sends. The payloads of the frames from the client are treated as
+ * one stream, so a message may also span several frames or a frame carry
+ * several messages. If the client asks for the <code>ohap</code>
+ * subprotocol, it is selected.
+ *
+ * <p>The payload is unmasked in place in the pooled read buffer and the
+ * messages are parsed from there. A payload is moved only to join it with
+ * a message that started in an earlier frame. The frame header of an
+ * outgoing message is written with the message in one gathering write, so
+ * the message is not copied either.
+ *
+ * <p>The server has no HTTP server of its own. If the
+ * <code>ohap.metricsPort</code> system property is set, the metrics are
+ * served from a separate one on that port, in the path given in the
+ * <code>ohap.metricsPath</code> system property, <code>/metrics</code> by
+ * default.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.4 (20261018)
+ */
+public class WebSocketOhapServer extends OhapServer {
+	private TcpServer tcpServer;
+
+	public WebSocketOhapServer(SocketAddress socketAddress) throws IOException {
+		this(new SelectorLoop(), socketAddress);
+	}
+
+	public WebSocketOhapServer(SelectorLoop selectorLoop, SocketAddress socketAddress) throws IOException {
+		tcpServer = new TcpServer(selectorLoop, socketAddress) {
+			public void acceptConnection(TcpServerConnection connection) {
+				try {
+					new WebSocketOhapSession(WebSocketOhapServer.this, connection);
+				} catch (IOException e) {
+				}
+			}
+		};
+	}
+
+	public TcpServer getTcpServer() {
+		return tcpServer;
+	}
+
+	public static void main(String[] args) throws IOException {
+		WebSocketOhapServer ohapServer = new WebSocketOhapServer(new InetSocketAddress(18002));
+		ohapServer.configure();
+		Integer metricsPort = Integer.getInteger("ohap.metricsPort");
+		if (metricsPort != null) {
+			MetricsHttpHandler.serve(ohapServer.getMetrics(), metricsPort.intValue(), System.getProperty("ohap.metricsPath", "/metrics"));
+			Log.log(Log.Level.INFO, null, "Ohap", "Serving metrics on port {}", metricsPort);
+		}
+		ohapServer.getTcpServer().run();
+	}
+
+	static class WebSocketOhapSession extends OhapSession {
+		private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+		private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+		private static final int OPCODE_CONTINUATION = 0x0;
+		private static final int OPCODE_TEXT = 0x1;
+		private static final int OPCODE_BINARY = 0x2;
+		private static final int OPCODE_CLOSE = 0x8;
+		private static final int OPCODE_PING = 0x9;
+		private static final int OPCODE_PONG = 0xa;
+
+		private static final int STATUS_NORMAL = 1000;
+		private static final int STATUS_PROTOCOL_ERROR = 1002;
+		private static final int STATUS_UNSUPPORTED_DATA = 1003;
+
+		private TcpServerConnection connection;
+		private BufferPool bufferPool;
+		private IncomingMessage incomingMessage = new IncomingMessage();
+		private boolean handshaken;
+		private boolean closed;
+
+		/*
+		 * The read buffer holds the unmasked payload not yet parsed in
+		 * [dataStart, dataEnd) and the bytes not yet unmasked from rawStart
+		 * to its position.
+		 */
+		private ByteBuffer incomingByteBuffer;
+		private int dataStart;
+		private int dataEnd;
+		private int rawStart;
+
+		/* The frame whose payload is being read */
+		private long frameRemaining;
+		private int mask;
+		private long maskOffset;
+
+		WebSocketOhapSession(OhapServer server, TcpServerConnection connection) throws IOException {
+			super(server, "websocket", connection.getRemoteAddress().toString());
+			this.connection = connection;
+			bufferPool = connection.getTcpServer().getSelectorLoop().getBufferPool();
+			useHandlerExecutor();
+			connection.setHandler(new TcpServerConnection.Handler() {
+				public void handleData(TcpServerConnection connection) {
+					try {
+						if (incomingByteBuffer == null)
+							incomingByteBuffer = bufferPool.acquire();
+						if (connection.read(incomingByteBuffer) == -1)
+							throw new EOFException("Connection closed by peer.");
+						if (!handshaken && !handshake())
+							return;
+						readFrames();
+						if (closed)
+							releaseBuffer();
+						else
+							compact();
+					} catch (IOException e) {
+						releaseBuffer();
+						readMessageFailed(e);
+					}
+				}
+
+				public void handleIOException(IOException exception) {
+					closed = true;
+					try {
+						connection.close();
+					} catch (IOException e) {
+					}
+					releaseBuffer();
+					readMessageFailed(exception);
+				}
+			});
+		}
+
+		protected void writeMessage(OutgoingMessage outgoingMessage) throws IOException {
+			if (closed)
+				throw new IOException("WebSocket closed.");
+
+			ByteBuffer payload = outgoingMessage.asByteBuffer();
+			connection.write(new ByteBuffer[] { frameHeader(OPCODE_BINARY, payload.remaining()), payload });
+		}
+
+		protected int getQueuedBytes() {
+			return connection.getQueuedBytes();
+		}
+
+		protected void close() throws IOException {
+			if (closed)
+				return;
+
+			sendClose(STATUS_NORMAL);
+		}
+
+		protected void execute(Runnable task) {
+			connection.getTcpServer().getSelectorLoop().execute(task);
+		}
+
+		protected SelectorLoop getSelectorLoop() {
+			return connection.getTcpServer().getSelectorLoop();
+		}
+
+		protected void setReading(boolean reading) {
+			try {
+				connection.setReading(reading);
+			} catch (IOException e) {
+			}
+		}
+
+		/*
+		 * Returns false while the request headers are still incomplete.
+		 */
+		private boolean handshake() throws IOException {
+			int end = incomingByteBuffer.position();
+			int headerEnd = -1;
+			for (int i = 3; i < end && headerEnd == -1; i++)
+				if (incomingByteBuffer.get(i) == '\n' && incomingByteBuffer.get(i - 1) == '\r' &&
+				    incomingByteBuffer.get(i - 2) == '\n' && incomingByteBuffer.get(i - 3) == '\r')
+					headerEnd = i + 1;
+			if (headerEnd == -1) {
+				if (end == incomingByteBuffer.capacity())
+					reject("431 Request Header Fields Too Large", "");
+				return false;
+			}
+
+			byte[] bytes = new byte[headerEnd];
+			incomingByteBuffer.get(0, bytes);
+			String[] lines = new String(bytes, ASCII).split("\r\n");
+			String upgrade = null;
+			String key = null;
+			String version = null;
+			boolean ohapProtocol = false;
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon == -1)
+					continue;
+				String name = lines[i].substring(0, colon).trim();
+				String value = lines[i].substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Upgrade"))
+					upgrade = value;
+				else if (name.equalsIgnoreCase("Sec-WebSocket-Key"))
+					key = value;
+				else if (name.equalsIgnoreCase("Sec-WebSocket-Version"))
+					version = value;
+				else if (name.equalsIgnoreCase("Sec-WebSocket-Protocol"))
+					for (String protocol : value.split(","))
+						ohapProtocol |= protocol.trim().equals("ohap");
+			}
+
+			if (!lines[0].startsWith("GET ") || upgrade == null || !upgrade.equalsIgnoreCase("websocket") || key == null) {
+				reject("400 Bad Request", "");
+				return false;
+			}
+			if (!"13".equals(version)) {
+				reject("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+				return false;
+			}
+
+			String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+			                  "Upgrade: websocket\r\n" +
+			                  "Connection: Upgrade\r\n" +
+			                  "Sec-WebSocket-Accept: " + accept(key) + "\r\n" +
+			                  (ohapProtocol ? "Sec-WebSocket-Protocol: ohap\r\n" : "") +
+			                  "\r\n";
+			connection.write(ByteBuffer.wrap(response.getBytes(ASCII)));
+			handshaken = true;
+			rawStart = dataStart = dataEnd = headerEnd;
+
+			return true;
+		}
+
+		private void reject(String status, String headers) throws IOException {
+			String response = "HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+			closed = true;
+			releaseBuffer();
+			connection.write(ByteBuffer.wrap(response.getBytes(ASCII)));
+			connection.closeAfterWriting();
+			readMessageFailed(new IOException("WebSocket handshake failed: " + status));
+		}
+
+		private void readFrames() throws IOException {
+			ByteBuffer buffer = incomingByteBuffer;
+			int end = buffer.position();
+			while (!closed) {
+				if (frameRemaining == 0 && !readFrameHeader(end))
+					break;
+				if (closed || frameRemaining == 0)
+					continue;
+
+				int length = (int)Math.min(frameRemaining, end - rawStart);
+				if (length == 0)
+					break;
+				unmask(buffer, rawStart, length, mask, maskOffset);
+				if (dataStart == dataEnd)
+					dataStart = dataEnd = rawStart;
+				else if (dataEnd != rawStart)
+					buffer.put(dataEnd, buffer, rawStart, length);
+				dataEnd += length;
+				rawStart += length;
+				frameRemaining -= length;
+				maskOffset += length;
+
+				buffer.limit(dataEnd).position(dataStart);
+				while (!closed && incomingMessage.readFromNB(buffer))
+					receiveMessage(incomingMessage);
+				dataStart = buffer.position();
+				buffer.limit(buffer.capacity()).position(end);
+			}
+		}
+
+		/*
+		 * Reads the next frame header. A control frame is handled as a
+		 * whole, leaving no payload to read. Returns false if the header
+		 * or the control frame is not complete yet.
+		 */
+		private boolean readFrameHeader(int end) throws IOException {
+			ByteBuffer buffer = incomingByteBuffer;
+			int available = end - rawStart;
+			if (available < 2)
+				return false;
+
+			int first = buffer.get(rawStart) & 0xff;
+			int second = buffer.get(rawStart + 1) & 0xff;
+			int headerLength = 6;
+			long length = second & 0x7f;
+			if (length == 126)
+				headerLength += 2;
+			else if (length == 127)
+				headerLength += 8;
+			if (available < headerLength)
+				return false;
+			if (length == 126)
+				length = buffer.getShort(rawStart + 2) & 0xffff;
+			else if (length == 127)
+				length = buffer.getLong(rawStart + 2);
+
+			int frameOpcode = first & 0x0f;
+			boolean control = (frameOpcode & 0x08) != 0;
+			if ((first & 0x70) != 0 || (second & 0x80) == 0 || length < 0) {
+				fail(STATUS_PROTOCOL_ERROR, "Malformed WebSocket frame");
+				return true;
+			}
+			if (control && ((first & 0x80) == 0 || length > 125)) {
+				fail(STATUS_PROTOCOL_ERROR, "Malformed WebSocket control frame");
+				return true;
+			}
+			if (control && available < headerLength + length)
+				return false;
+
+			int frameMask = buffer.getInt(rawStart + headerLength - 4);
+			rawStart += headerLength;
+			if (control) {
+				unmask(buffer, rawStart, (int)length, frameMask, 0);
+				handleControlFrame(frameOpcode, rawStart, (int)length);
+				rawStart += (int)length;
+				if (dataStart == dataEnd)
+					dataStart = dataEnd = rawStart;
+				return true;
+			}
+
+			if (frameOpcode == OPCODE_TEXT) {
+				fail(STATUS_UNSUPPORTED_DATA, "Text frames are not supported");
+				return true;
+			}
+			if (frameOpcode != OPCODE_BINARY && frameOpcode != OPCODE_CONTINUATION) {
+				fail(STATUS_PROTOCOL_ERROR, "Unknown WebSocket opcode: " + frameOpcode);
+				return true;
+			}
+			frameRemaining = length;
+			mask = frameMask;
+			maskOffset = 0;
+
+			return true;
+		}
+
+		private void handleControlFrame(int controlOpcode, int offset, int length) throws IOException {
+			switch (controlOpcode) {
+				case OPCODE_CLOSE:
+					sendClose(length >= 2 ? incomingByteBuffer.getShort(offset) & 0xffff : STATUS_NORMAL);
+					readMessageFailed(new EOFException("Connection closed by peer."));
+					break;
+				case OPCODE_PING:
+					ByteBuffer payload = ByteBuffer.allocate(length);
+					payload.put(0, incomingByteBuffer, offset, length);
+					connection.write(new ByteBuffer[] { frameHeader(OPCODE_PONG, length), payload });
+					break;
+				case OPCODE_PONG:
+					break;
+				default:
+					fail(STATUS_PROTOCOL_ERROR, "Unknown WebSocket opcode: " + controlOpcode);
+					break;
+			}
+		}
+
+		private void fail(int status, String message) throws IOException {
+			sendClose(status);
+			readMessageFailed(new IOException(message));
+		}
+
+		private void sendClose(int status) throws IOException {
+			closed = true;
+			ByteBuffer payload = ByteBuffer.allocate(2).putShort(0, (short)status);
+			connection.write(new ByteBuffer[] { frameHeader(OPCODE_CLOSE, 2), payload });
+			connection.closeAfterWriting();
+		}
+
+		/*
+		 * Moves the unparsed payload and the bytes not yet unmasked to the
+		 * beginning of the buffer when the end of the buffer has been
+		 * reached, or returns the buffer into the pool if it is empty.
+		 */
+		private void compact() {
+			ByteBuffer buffer = incomingByteBuffer;
+			int end = buffer.position();
+			if (dataStart == dataEnd && rawStart == end) {
+				releaseBuffer();
+				return;
+			}
+			if (end < buffer.capacity())
+				return;
+
+			int dataLength = dataEnd - dataStart;
+			int rawLength = end - rawStart;
+			if (dataLength + rawLength == buffer.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				larger.put(0, buffer, 0, buffer.capacity());
+				bufferPool.release(buffer);
+				incomingByteBuffer = buffer = larger;
+			}
+			buffer.put(0, buffer, dataStart, dataLength);
+			buffer.put(dataLength, buffer, rawStart, rawLength);
+			dataStart = 0;
+			dataEnd = dataLength;
+			rawStart = dataLength;
+			buffer.limit(buffer.capacity()).position(dataLength + rawLength);
+		}
+
+		private void releaseBuffer() {
+			if (incomingByteBuffer != null) {
+				bufferPool.release(incomingByteBuffer);
+				incomingByteBuffer = null;
+			}
+			dataStart = dataEnd = rawStart = 0;
+		}
+
+		private static ByteBuffer frameHeader(int frameOpcode, int length) {
+			ByteBuffer header;
+			if (length < 126) {
+				header = ByteBuffer.allocate(2);
+				header.put(0, (byte)(0x80 | frameOpcode)).put(1, (byte)length);
+			} else if (length < 0x10000) {
+				header = ByteBuffer.allocate(4);
+				header.put(0, (byte)(0x80 | frameOpcode)).put(1, (byte)126).putShort(2, (short)length);
+			} else {
+				header = ByteBuffer.allocate(10);
+				header.put(0, (byte)(0x80 | frameOpcode)).put(1, (byte)127).putLong(2, length);
+			}
+
+			return header;
+		}
+
+		/*
+		 * XORs the payload with the masking key eight bytes at a time. The
+		 * key is rotated to the offset of the first byte in the frame.
+		 */
+		private static void unmask(ByteBuffer buffer, int offset, int length, int mask, long maskOffset) {
+			int rotated = Integer.rotateLeft(mask, 8 * (int)(maskOffset & 3));
+			long wide = ((long)rotated << 32) | (rotated & 0xffffffffL);
+			int end = offset + length;
+			int i = offset;
+			for (; i + 8 <= end; i += 8)
+				buffer.putLong(i, buffer.getLong(i) ^ wide);
+			for (; i < end; i++, rotated = Integer.rotateLeft(rotated, 8))
+				buffer.put(i, (byte)(buffer.get(i) ^ (rotated >>> 24)));
+		}
+
+		private static String accept(String key) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-1");
+				return Base64.getEncoder().encodeToString(digest.digest((key + GUID).getBytes(ASCII)));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,569 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap.client;
+
+import com.henrikhedberg.hbdp.client.NioHbdpClient;
+import com.henrikhedberg.hbdp.client.NioHbdpConnection;
+import com.henrikhedberg.ohap.IncomingMessage;
+import com.henrikhedberg.ohap.OhapServer;
+import com.henrikhedberg.ohap.OutgoingMessage;
+import com.henrikhedberg.util.InputStreamHandler;
+import com.henrikhedberg.util.Log;
+import com.henrikhedberg.util.SelectorLoop;
+import com.henrikhedberg.util.TcpClientConnection;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An asynchronous Open Home Automation Protocol (OHAP) client over TCP or
+ * HBDP.
+ *
+ * <p>Every request returns a {@link CompletableFuture} immediately and is
+ * sent without waiting for the responses of the earlier ones. The requests
+ * made in one round of the {@link SelectorLoop} are encoded into one buffer
+ * and sent with one write. OHAP has no responses to most requests, so the
+ * client follows the requests of a round that need confirmation, such as
+ * changes and listening, with one ping. The server handles the messages of
+ * a session in order, so when the pong arrives, the server has handled
+ * them and, for listening, sent the items of the container.
+ *
+ * <p>The items and the changes sent by the server are delivered to the
+ * {@link Listener}. The listener is called and the futures are completed in
+ * the thread of the loop, which must not be blocked; use the asynchronous
+ * methods of the futures to continue in another thread. The requests may be
+ * made in any thread.
+ *
+ * <p>When the server logs the client out, for example because a request
+ * was invalid, or the connection fails, the pending futures fail with an
+ * {@link IOException} and the listener is told.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class OhapClient {
+	private static final int KIND_MESSAGE = 0;
+	private static final int KIND_CONFIRMED = 1;
+	private static final int KIND_LOGIN = 2;
+	private static final int KIND_PING = 3;
+	private static final int KIND_LOGOUT = 4;
+
+	private SelectorLoop selectorLoop;
+	private Listener listener;
+	private Transport transport;
+	private ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean sendScheduled = new AtomicBoolean();
+	private Runnable sendTask = new Runnable() {
+		public void run() {
+			sendScheduled.set(false);
+			send();
+		}
+	};
+	private volatile boolean closed;
+
+	/* In the thread of the loop */
+	private ArrayList<Request> batch = new ArrayList<>();
+	private ArrayDeque<CompletableFuture<RemoteItem>> logins = new ArrayDeque<>();
+	private ArrayDeque<Ping> pings = new ArrayDeque<>();
+	private long nextPingIdentifier;
+	private IncomingMessage incomingMessage = new IncomingMessage();
+	private IOException failure;
+
+	private OhapClient(SelectorLoop selectorLoop, Listener listener) {
+		this.selectorLoop = selectorLoop;
+		this.listener = listener;
+	}
+
+	/**
+	 * Connects to an OHAP server over TCP. The connection is established
+	 * in the thread of the loop; requests may be made right away.
+	 *
+	 * @param selectorLoop the loop to run the client in
+	 * @param address the address of the server
+	 * @param listener the listener of the items and the changes
+	 * @return the new client
+	 */
+	public static OhapClient connect(SelectorLoop selectorLoop, SocketAddress address, Listener listener) {
+		OhapClient client = new OhapClient(selectorLoop, listener);
+		TcpTransport transport = client.new TcpTransport();
+		client.transport = transport;
+		selectorLoop.execute(new Runnable() {
+			public void run() {
+				transport.open(address);
+			}
+		});
+
+		return client;
+	}
+
+	/**
+	 * Connects to an OHAP server over HBDP in the loop of the given
+	 * {@link NioHbdpClient}.
+	 *
+	 * @param hbdpClient the HBDP client to open the session with
+	 * @param listener the listener of the items and the changes
+	 * @return the new client
+	 */
+	public static OhapClient connect(NioHbdpClient hbdpClient, Listener listener) {
+		OhapClient client = new OhapClient(hbdpClient.getSelectorLoop(), listener);
+		client.transport = client.new HbdpTransport(hbdpClient.connect());
+
+		return client;
+	}
+
+	public SelectorLoop getSelectorLoop() {
+		return selectorLoop;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Logs in. The future completes with the root container.
+	 *
+	 * @param name the name of the user
+	 * @param password the password of the user
+	 * @return the future of the root container
+	 */
+	public CompletableFuture<RemoteItem> login(String name, String password) {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LOGIN).integer8(1).text(name).text(password);
+
+		return submit(KIND_LOGIN, outgoingMessage);
+	}
+
+	/**
+	 * Pings the server. The future completes with the round-trip time in
+	 * nanoseconds, measured from the write of the ping.
+	 *
+	 * @return the future of the round-trip time
+	 */
+	public CompletableFuture<Long> ping() {
+		return submit(KIND_PING, null);
+	}
+
+	/**
+	 * Starts listening on the given container. The items of the container
+	 * are delivered to the listener before the future completes, and the
+	 * changes of the items after that.
+	 *
+	 * @param containerIdentifier the identifier of the container
+	 * @return the future completed when the items have arrived
+	 */
+	public CompletableFuture<Void> startListening(long containerIdentifier) {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LISTENING_START).integer32(containerIdentifier);
+
+		return submit(KIND_CONFIRMED, outgoingMessage);
+	}
+
+	public CompletableFuture<Void> stopListening(long containerIdentifier) {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LISTENING_STOP).integer32(containerIdentifier);
+
+		return submit(KIND_CONFIRMED, outgoingMessage);
+	}
+
+	/**
+	 * Changes the value of a decimal actuator. The future completes when
+	 * the server has handled the change.
+	 *
+	 * @param itemIdentifier the identifier of the actuator
+	 * @param value the new value
+	 * @return the future completed when the change has been handled
+	 */
+	public CompletableFuture<Void> changeDecimal(long itemIdentifier, double value) {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).integer32(itemIdentifier).decimal64(value);
+
+		return submit(KIND_CONFIRMED, outgoingMessage);
+	}
+
+	/**
+	 * Changes the value of a binary actuator. The future completes when
+	 * the server has handled the change.
+	 *
+	 * @param itemIdentifier the identifier of the actuator
+	 * @param value the new value
+	 * @return the future completed when the change has been handled
+	 */
+	public CompletableFuture<Void> changeBinary(long itemIdentifier, boolean value) {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_BINARY_CHANGED).integer32(itemIdentifier).binary8(value);
+
+		return submit(KIND_CONFIRMED, outgoingMessage);
+	}
+
+	/**
+	 * Logs out after the requests made so far have been sent, and closes
+	 * the connection. The pending futures fail.
+	 */
+	public void close() {
+		submit(KIND_LOGOUT, null);
+		closed = true;
+	}
+
+	private <T> CompletableFuture<T> submit(int kind, OutgoingMessage outgoingMessage) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		requests.add(new Request(kind, outgoingMessage, future));
+		if (sendScheduled.compareAndSet(false, true))
+			selectorLoop.execute(sendTask);
+
+		return future;
+	}
+
+	/*
+	 * Sends the queued requests with one write, followed by a ping if any
+	 * of them needs confirmation.
+	 */
+	@SuppressWarnings("unchecked")
+	private void send() {
+		ArrayList<CompletableFuture<Void>> confirmed = null;
+		boolean logout = false;
+		int length = 0;
+		long now = System.nanoTime();
+		for (Request request = requests.poll(); request != null; request = requests.poll()) {
+			if (failure != null || logout) {
+				request.future.completeExceptionally(failure != null ? failure : new IOException("Client closed."));
+				continue;
+			}
+			switch (request.kind) {
+				case KIND_CONFIRMED:
+					if (confirmed == null)
+						confirmed = new ArrayList<>();
+					confirmed.add((CompletableFuture<Void>)request.future);
+					break;
+				case KIND_LOGIN:
+					logins.add((CompletableFuture<RemoteItem>)request.future);
+					break;
+				case KIND_PING:
+					request.outgoingMessage = ping(new Ping((CompletableFuture<Long>)request.future, null, now));
+					break;
+				case KIND_LOGOUT:
+					logout = true;
+					continue;
+				default:
+					break;
+			}
+			if (request.outgoingMessage != null) {
+				batch.add(request);
+				length += request.outgoingMessage.getLength();
+			}
+		}
+		if (confirmed != null) {
+			Request request = new Request(KIND_PING, ping(new Ping(null, confirmed, now)), null);
+			batch.add(request);
+			length += request.outgoingMessage.getLength();
+		}
+		if (logout) {
+			OutgoingMessage outgoingMessage = new OutgoingMessage();
+			outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LOGOUT);
+			batch.add(new Request(KIND_LOGOUT, outgoingMessage, null));
+			length += outgoingMessage.getLength();
+		}
+		if (batch.isEmpty())
+			return;
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (Request request : batch)
+			buffer.put(request.outgoingMessage.asByteBuffer());
+		buffer.flip();
+		batch.clear();
+		try {
+			transport.write(buffer);
+			if (logout) {
+				transport.closeAfterWriting();
+				fail(new IOException("Client closed."), false);
+			}
+		} catch (IOException e) {
+			fail(e, true);
+		}
+	}
+
+	private OutgoingMessage ping(Ping ping) {
+		ping.identifier = nextPingIdentifier;
+		nextPingIdentifier = (nextPingIdentifier + 1) & 0xffffffffL;
+		pings.add(ping);
+
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PING).integer32(ping.identifier);
+
+		return outgoingMessage;
+	}
+
+	private void received() {
+		try {
+			int type = incomingMessage.integer8();
+			switch (type) {
+				case OhapServer.MESSAGE_TYPE_LOGOUT:
+					fail(new IOException("Logged out: " + incomingMessage.text()), true);
+					break;
+				case OhapServer.MESSAGE_TYPE_PING:
+					OutgoingMessage outgoingMessage = new OutgoingMessage();
+					outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PONG).integer32(incomingMessage.integer32());
+					transport.write(outgoingMessage.asByteBuffer());
+					break;
+				case OhapServer.MESSAGE_TYPE_PONG:
+					handlePong(incomingMessage.integer32());
+					break;
+				case OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED:
+					long decimalIdentifier = incomingMessage.integer32();
+					listener.decimalChanged(this, decimalIdentifier, incomingMessage.decimal64());
+					break;
+				case OhapServer.MESSAGE_TYPE_BINARY_CHANGED:
+					long binaryIdentifier = incomingMessage.integer32();
+					listener.binaryChanged(this, binaryIdentifier, incomingMessage.binary8());
+					break;
+				case OhapServer.MESSAGE_TYPE_ITEM_REMOVED:
+					listener.itemRemoved(this, incomingMessage.integer32());
+					break;
+				default:
+					if (RemoteItem.isItemType(type)) {
+						RemoteItem item = new RemoteItem(type, incomingMessage);
+						if (item.isContainer() && item.getIdentifier() == 0 && !logins.isEmpty())
+							logins.poll().complete(item);
+						listener.itemReceived(this, item);
+					}
+					break;
+			}
+		} catch (IOException e) {
+			fail(e, true);
+		} catch (RuntimeException e) {
+			Log.log(Log.Level.WARNING, null, "OhapClient", "Message handling failed: {}", e);
+		}
+	}
+
+	private void handlePong(long identifier) {
+		Ping ping = pings.peek();
+		if (ping == null || ping.identifier != identifier)
+			return;
+
+		pings.poll();
+		if (ping.future != null)
+			ping.future.complete(Long.valueOf(System.nanoTime() - ping.sent));
+		if (ping.confirmed != null)
+			for (CompletableFuture<Void> future : ping.confirmed)
+				future.complete(null);
+	}
+
+	private void fail(IOException exception, boolean closeTransport) {
+		if (failure != null)
+			return;
+
+		failure = exception;
+		closed = true;
+		if (closeTransport)
+			transport.close();
+		for (CompletableFuture<RemoteItem> future : logins)
+			future.completeExceptionally(exception);
+		logins.clear();
+		for (Ping ping : pings) {
+			if (ping.future != null)
+				ping.future.completeExceptionally(exception);
+			if (ping.confirmed != null)
+				for (CompletableFuture<Void> future : ping.confirmed)
+					future.completeExceptionally(exception);
+		}
+		pings.clear();
+		for (Request request = requests.poll(); request != null; request = requests.poll())
+			if (request.future != null)
+				request.future.completeExceptionally(exception);
+		listener.disconnected(this, closeTransport ? exception : null);
+	}
+
+	/**
+	 * Receives the items and the changes from the server. Called in the
+	 * thread of the loop.
+	 */
+	public static interface Listener {
+		/**
+		 * Called for every item the server describes: the root container
+		 * after the login and the items of a container when listening on it
+		 * starts.
+		 */
+		public void itemReceived(OhapClient client, RemoteItem item);
+		public void decimalChanged(OhapClient client, long itemIdentifier, double value);
+		public void binaryChanged(OhapClient client, long itemIdentifier, boolean value);
+		public void itemRemoved(OhapClient client, long itemIdentifier);
+
+		/**
+		 * Called when the client has been disconnected.
+		 *
+		 * @param exception the cause, or null if the client was closed
+		 */
+		public void disconnected(OhapClient client, IOException exception);
+	}
+
+	private static class Request {
+		int kind;
+		OutgoingMessage outgoingMessage;
+		CompletableFuture<?> future;
+
+		Request(int kind, OutgoingMessage outgoingMessage, CompletableFuture<?> future) {
+			this.kind = kind;
+			this.outgoingMessage = outgoingMessage;
+			this.future = future;
+		}
+	}
+
+	private static class Ping {
+		long identifier;
+		CompletableFuture<Long> future;
+		ArrayList<CompletableFuture<Void>> confirmed;
+		long sent;
+
+		Ping(CompletableFuture<Long> future, ArrayList<CompletableFuture<Void>> confirmed, long sent) {
+			this.future = future;
+			this.confirmed = confirmed;
+			this.sent = sent;
+		}
+	}
+
+	private static abstract class Transport {
+		abstract void write(ByteBuffer buffer) throws IOException;
+		abstract void closeAfterWriting();
+		abstract void close();
+	}
+
+	private class TcpTransport extends Transport implements TcpClientConnection.Handler {
+		private TcpClientConnection connection;
+		private ArrayList<ByteBuffer> pending = new ArrayList<>();
+		private boolean connected;
+		private boolean closing;
+		private ByteBuffer incomingByteBuffer = ByteBuffer.allocate(16 * 1024);
+
+		void open(SocketAddress address) {
+			try {
+				connection = new TcpClientConnection(selectorLoop, address, this);
+			} catch (IOException e) {
+				fail(e, true);
+			}
+		}
+
+		void write(ByteBuffer buffer) throws IOException {
+			if (connected)
+				connection.write(buffer);
+			else
+				pending.add(buffer);
+		}
+
+		void closeAfterWriting() {
+			if (!connected) {
+				closing = true;
+				return;
+			}
+			try {
+				connection.closeAfterWriting();
+			} catch (IOException e) {
+			}
+		}
+
+		void close() {
+			connected = false;
+			pending.clear();
+			if (connection == null)
+				return;
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+		}
+
+		public void handleConnected(TcpClientConnection connection) {
+			connected = true;
+			try {
+				for (ByteBuffer buffer : pending)
+					connection.write(buffer);
+				pending.clear();
+				if (closing)
+					connection.closeAfterWriting();
+			} catch (IOException e) {
+				fail(e, true);
+			}
+		}
+
+		public void handleData(TcpClientConnection connection) {
+			try {
+				if (connection.read(incomingByteBuffer) == -1)
+					throw new EOFException("Connection closed by server.");
+				incomingByteBuffer.flip();
+				while (failure == null && incomingMessage.readFromNB(incomingByteBuffer))
+					received();
+				incomingByteBuffer.compact();
+				if (!incomingByteBuffer.hasRemaining()) {
+					incomingByteBuffer.flip();
+					incomingByteBuffer = ByteBuffer.allocate(incomingByteBuffer.capacity() * 2).put(incomingByteBuffer);
+				}
+			} catch (IOException e) {
+				fail(e, true);
+			}
+		}
+
+		public void handleIOException(TcpClientConnection connection, IOException exception) {
+			fail(exception, true);
+		}
+	}
+
+	private class HbdpTransport extends Transport {
+		private NioHbdpConnection connection;
+		private OutputStream outputStream;
+
+		HbdpTransport(NioHbdpConnection connection) {
+			this.connection = connection;
+			outputStream = connection.getOutputStream();
+			connection.setInputStreamHandler(new InputStreamHandler() {
+				public void handle(InputStream inputStream) throws IOException {
+					try {
+						while (failure == null && incomingMessage.readFromNB(inputStream))
+							received();
+					} catch (IOException e) {
+						fail(e, true);
+						return;
+					}
+					if (failure == null && HbdpTransport.this.connection.isFinished()) {
+						IOException exception = HbdpTransport.this.connection.getException();
+						fail(exception != null ? exception : new EOFException("Session closed by server."), true);
+					}
+				}
+			});
+		}
+
+		void write(ByteBuffer buffer) throws IOException {
+			outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+
+		void closeAfterWriting() {
+			connection.close();
+		}
+
+		void close() {
+			connection.close();
+		}
+	}
+}
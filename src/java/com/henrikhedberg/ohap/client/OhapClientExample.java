@@ -0,0 +1,89 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap.client;
+
+import com.henrikhedberg.hbdp.client.NioHbdpClient;
+import com.henrikhedberg.util.SelectorLoop;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+/**
+ * A program that demonstrates the usage of the {@link OhapClient} class.
+ *
+ * <p>The main method connects to the given server over HBDP if the address
+ * is a URL, and over TCP otherwise. It logs in, starts listening on every
+ * container it finds and prints the items and their changes until the end
+ * of the standard input, when the client is closed.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class OhapClientExample {
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: java -jar ohap-client-example.jar <host:port | URL> <user> <password>");
+			return;
+		}
+
+		OhapClient.Listener listener = new OhapClient.Listener() {
+			public void itemReceived(OhapClient client, RemoteItem item) {
+				System.out.println(item + " in container " + item.getParentIdentifier());
+				if (item.isContainer())
+					client.startListening(item.getIdentifier());
+			}
+
+			public void decimalChanged(OhapClient client, long itemIdentifier, double value) {
+				System.out.println(itemIdentifier + " = " + value);
+			}
+
+			public void binaryChanged(OhapClient client, long itemIdentifier, boolean value) {
+				System.out.println(itemIdentifier + " = " + value);
+			}
+
+			public void itemRemoved(OhapClient client, long itemIdentifier) {
+				System.out.println(itemIdentifier + " removed");
+			}
+
+			public void disconnected(OhapClient client, IOException exception) {
+				System.out.println("Disconnected" + (exception != null ? ": " + exception.getMessage() : "."));
+			}
+		};
+
+		OhapClient client;
+		if (args[0].contains("://")) {
+			client = OhapClient.connect(new NioHbdpClient(new URL(args[0])), listener);
+		} else {
+			int colon = args[0].lastIndexOf(':');
+			SelectorLoop selectorLoop = new SelectorLoop();
+			Thread thread = new Thread(selectorLoop, "OhapClientExample");
+			thread.setDaemon(true);
+			thread.start();
+			client = OhapClient.connect(selectorLoop, new InetSocketAddress(args[0].substring(0, colon),
+			                            Integer.parseInt(args[0].substring(colon + 1))), listener);
+		}
+		client.login(args[1], args[2]);
+
+		while (System.in.read() != -1)
+			;
+
+		client.close();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap.client;
+
+import com.henrikhedberg.ohap.IncomingMessage;
+import com.henrikhedberg.ohap.OhapServer;
+
+/**
+ * An item as described by an OHAP server: a container, a sensor or an
+ * actuator. The value is the one at the time the item was received; later
+ * changes are delivered separately to the {@link OhapClient.Listener}.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class RemoteItem {
+	private int type;
+	private long identifier;
+	private long parentIdentifier;
+	private String name;
+	private String description;
+	private boolean internal;
+	private double decimalValue;
+	private boolean binaryValue;
+	private double min;
+	private double max;
+	private String unit;
+	private String unitAbbreviation;
+
+	/**
+	 * Parses an item message whose type has already been taken.
+	 *
+	 * @param type the message type, one of the item types of {@link OhapServer}
+	 * @param incomingMessage the rest of the message
+	 */
+	RemoteItem(int type, IncomingMessage incomingMessage) {
+		this.type = type;
+		identifier = incomingMessage.integer32();
+		if (type == OhapServer.MESSAGE_TYPE_DECIMAL_SENSOR || type == OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR)
+			decimalValue = incomingMessage.decimal64();
+		else if (type == OhapServer.MESSAGE_TYPE_BINARY_SENSOR || type == OhapServer.MESSAGE_TYPE_BINARY_ACTUATOR)
+			binaryValue = incomingMessage.binary8();
+		parentIdentifier = incomingMessage.integer32();
+		name = incomingMessage.text();
+		description = incomingMessage.text();
+		internal = incomingMessage.binary8();
+		if (isDecimal()) {
+			min = incomingMessage.decimal64();
+			max = incomingMessage.decimal64();
+			unit = incomingMessage.text();
+			unitAbbreviation = incomingMessage.text();
+		}
+	}
+
+	static boolean isItemType(int type) {
+		return type >= OhapServer.MESSAGE_TYPE_DECIMAL_SENSOR && type <= OhapServer.MESSAGE_TYPE_CONTAINER;
+	}
+
+	/**
+	 * Returns the message type of the item, such as
+	 * {@link OhapServer#MESSAGE_TYPE_DECIMAL_ACTUATOR}.
+	 *
+	 * @return the item type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	public long getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * Returns the identifier of the parent container. The root container
+	 * has the identifier 0 and no parent, in which case 0 is returned.
+	 *
+	 * @return the identifier of the parent
+	 */
+	public long getParentIdentifier() {
+		return parentIdentifier;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public boolean isInternal() {
+		return internal;
+	}
+
+	public boolean isContainer() {
+		return type == OhapServer.MESSAGE_TYPE_CONTAINER;
+	}
+
+	public boolean isDecimal() {
+		return type == OhapServer.MESSAGE_TYPE_DECIMAL_SENSOR || type == OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR;
+	}
+
+	public boolean isBinary() {
+		return type == OhapServer.MESSAGE_TYPE_BINARY_SENSOR || type == OhapServer.MESSAGE_TYPE_BINARY_ACTUATOR;
+	}
+
+	public boolean isActuator() {
+		return type == OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR || type == OhapServer.MESSAGE_TYPE_BINARY_ACTUATOR;
+	}
+
+	public double getDecimalValue() {
+		return decimalValue;
+	}
+
+	public boolean getBinaryValue() {
+		return binaryValue;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public String getUnitAbbreviation() {
+		return unitAbbreviation;
+	}
+
+	@Override
+	public String toString() {
+		return (isContainer() ? "container " : isActuator() ? "actuator " : "sensor ") + identifier + " \"" + name + "\"";
+	}
+}
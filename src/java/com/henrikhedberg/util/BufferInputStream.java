@@ -22,6 +22,7 @@ package com.henrikhedberg.util;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 
 /**
  * An {@link InputStream} that contains an internal buffer to enable communication between
@@ -35,25 +36,45 @@ import java.io.IOException;
  * {@link #readFrom(InputStream)} method. The {@link #end()} method may be used to
  * mark the end of file (EOF).
  *
+ * <p>The buffer is a queue of fixed-size segments. It grows a segment at a time
+ * up to a limit, and the segments are released when they have been read, except
+ * for one that is kept for reuse.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20150503)
+ * @version 1.1 (20261018)
  */
 public class BufferInputStream extends InputStream {
-	private byte[] bytes;
+	private ArrayDeque<byte[]> segments = new ArrayDeque<>();
+	private byte[] spare;
+	private int segmentSize;
+	private int limit;
 	private int position;
+	private int writePosition;
 	private int readable;
 	private boolean ended;
 	private Handler handler;
 	private boolean closed;
 
 	/**
-	 * Constructs a new {@link BufferOutputStream} with the given buffer size.
-	 * The buffer does not grow during operation.
+	 * Constructs a new {@link BufferInputStream} with the given segment size
+	 * and no limit.
+	 *
+	 * @param segmentSize the size of a buffer segment
+	 */
+	public BufferInputStream(int segmentSize) {
+		this(segmentSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Constructs a new {@link BufferInputStream} with the given segment size
+	 * and limit.
 	 *
-	 * @param bufferSize initial buffer size
+	 * @param segmentSize the size of a buffer segment
+	 * @param limit the maximum amount of buffered bytes
 	 */
-	public BufferInputStream(int bufferSize) {
-		bytes = new byte[bufferSize];
+	public BufferInputStream(int segmentSize, int limit) {
+		this.segmentSize = segmentSize;
+		this.limit = limit;
 	}
 
 	/**
@@ -68,6 +89,29 @@ public class BufferInputStream extends InputStream {
 		return readable;
 	}
 
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets the maximum amount of bytes buffered at a time.
+	 *
+	 * @param limit the maximum amount of buffered bytes
+	 */
+	public synchronized void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Returns the amount of bytes that can still be buffered before the limit
+	 * is reached.
+	 *
+	 * @return amount of free space in bytes
+	 */
+	public synchronized int getSpace() {
+		return Math.max(limit - readable, 0);
+	}
+
 	/**
 	 * Closes the stream. The {@link Handler} is notified.
 	 */
@@ -77,6 +121,9 @@ public class BufferInputStream extends InputStream {
 			throw new IOException("Stream is closed.");
 
 		closed = true;
+		segments.clear();
+		spare = null;
+		readable = 0;
 		notify();
 	
 		if (handler != null)
@@ -95,30 +142,13 @@ public class BufferInputStream extends InputStream {
 	 */
 	@Override
 	public synchronized int read() throws IOException {
-		if (closed)
-			throw new IOException("Stream is closed.");
+		if (!waitReadable())
+			return -1;
 
-		if (readable == 0) {
-			if (ended)
-				return -1;
-			if (handler != null)
-				handler.handleRead(this);
-			while (readable == 0 && !ended && !closed) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-					throw new IOException(e);
-				}
-			}
-			if (closed)
-				throw new IOException("Stream is closed.");
-			if (ended)
-				return -1;
-		}
-
-		int value = bytes[position];
-		position = (position + 1) % bytes.length;
+		byte[] segment = segments.peekFirst();
+		int value = segment[position++] & 0xff;
 		readable--;
+		consumed(segment);
 
 		return value;
 	}
@@ -134,51 +164,50 @@ public class BufferInputStream extends InputStream {
 		if (length == 0)
 			return 0;
 
-		if (readable == 0) {
-			if (ended)
-				return -1;
-			if (handler != null)
-				handler.handleRead(this);
-			while (readable == 0 && !ended && !closed) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-					throw new IOException(e);
-				}
-			}
-			if (closed)
-				throw new IOException("Stream is closed.");
-			if (ended)
-				return -1;
-		}
+		if (!waitReadable())
+			return -1;
 		
 		int give = Math.min(length, readable);
-		System.arraycopy(bytes, position, b, offset, give);
-		position = (position + give) % bytes.length;
-		readable -= give;
+		for (int copied = 0; copied < give; ) {
+			byte[] segment = segments.peekFirst();
+			int end = segment == segments.peekLast() ? writePosition : segmentSize;
+			int count = Math.min(give - copied, end - position);
+			System.arraycopy(segment, position, b, offset + copied, count);
+			position += count;
+			readable -= count;
+			copied += count;
+			consumed(segment);
+		}
 
 		return give;
 	}
 
 	/**
-	 * Reads bytes from the given {@link InputStream} into the internal buffer.
+	 * Reads bytes from the given {@link InputStream} into the internal buffer
+	 * until the end of the given stream or until the limit is reached. Use
+	 * {@link #getSpace()} to check whether the limit was reached.
 	 *
 	 * @param input a stream to read the bytes into the internal buffer
 	 * @return the amount of bytes read
 	 */
 	public synchronized int readFrom(InputStream input) throws IOException {
+		if (closed)
+			throw new IOException("Stream is closed.");
+
 		int result = 0;
-		
-		for (int available = input.available(); available > 0; available = input.available()) {
-			int offset = (position + readable) % bytes.length;
-			int length = offset < position ? position - offset : bytes.length - offset;
-			length = Math.min(length, available);
-			int got = input.read(bytes, offset, length);
-			if (got > 0) {
-				readable += got;
-				result += got;
-			} else if (got == -1 && result == 0)
-				return -1;
+		while (readable < limit) {
+			if (segments.isEmpty() || writePosition == segmentSize) {
+				segments.addLast(spare != null ? spare : new byte[segmentSize]);
+				spare = null;
+				writePosition = 0;
+			}
+			int length = Math.min(segmentSize - writePosition, limit - readable);
+			int got = input.read(segments.peekLast(), writePosition, length);
+			if (got == -1)
+				break;
+			writePosition += got;
+			readable += got;
+			result += got;
 		}
 		if (result > 0)
 			notify();
@@ -194,6 +223,44 @@ public class BufferInputStream extends InputStream {
 	public synchronized void setHandler(Handler handler) {
 		this.handler = handler;
 	}
+
+	private boolean waitReadable() throws IOException {
+		if (closed)
+			throw new IOException("Stream is closed.");
+
+		if (readable == 0) {
+			if (ended)
+				return false;
+			if (handler != null)
+				handler.handleRead(this);
+			while (readable == 0 && !ended && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			if (closed)
+				throw new IOException("Stream is closed.");
+			if (readable == 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	private void consumed(byte[] segment) {
+		if (readable == 0) {
+			segments.clear();
+			spare = segment;
+			position = 0;
+			writePosition = 0;
+		} else if (position == segmentSize) {
+			segments.removeFirst();
+			spare = segment;
+			position = 0;
+		}
+	}
 	
 	/**
 	 * A handler that is called when the specified {@link BufferInputStream} has
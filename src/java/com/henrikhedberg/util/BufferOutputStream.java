@@ -36,7 +36,7 @@ import java.util.Arrays;
  * {@link #writeTo(OutputStream)} method.
  *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20150503)
+ * @version 1.1 (20261018)
  */
 public class BufferOutputStream extends OutputStream {
 	private byte[] bytes;
@@ -120,7 +120,7 @@ public class BufferOutputStream extends OutputStream {
 	/**
 	 * Writes the bytes from the internal buffer into the given
 	 * {@link OutputStream}. The internal buffer will be empty after
-	 * the operation.
+	 * the operation, and the threads waiting on the stream are notified.
 	 *
 	 * @param output a stream to write the bytes from the internal buffer
 	 * @return the amount of bytes written
@@ -132,7 +132,7 @@ public class BufferOutputStream extends OutputStream {
 		int result = written;
 		output.write(bytes, 0, written);
 		written = 0;
-		notify();
+		notifyAll();
 		
 		return result;
 	}
@@ -142,7 +142,7 @@ public class BufferOutputStream extends OutputStream {
 			return;
 
 		int newLength = 2 * bytes.length;
-		while (written + appendLength >= bytes.length)
+		while (written + appendLength >= newLength)
 			newLength *= 2;
 
 		bytes = Arrays.copyOf(bytes, newLength);
@@ -0,0 +1,78 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized direct {@link ByteBuffer}s.
+ *
+ * <p>The pool is not thread-safe. Each {@link SelectorLoop} has its own pool,
+ * which is shared by all connections served by the loop.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class BufferPool {
+	private ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+	private int bufferSize;
+	private int maxPooled;
+
+	/**
+	 * Constructs a new pool.
+	 *
+	 * @param bufferSize the capacity of the buffers
+	 * @param maxPooled the maximum amount of idle buffers kept in the pool
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool or allocates a new one.
+	 *
+	 * @return a buffer with {@link #getBufferSize()} capacity
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.pollLast();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers of other sizes are ignored.
+	 *
+	 * @param buffer a buffer taken with {@link #acquire()}
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == bufferSize && buffer.isDirect() && buffers.size() < maxPooled)
+			buffers.addLast(buffer);
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative values with a bounded relative error, in the
+ * style of the HdrHistogram.
+ *
+ * <p>The values are counted in buckets whose width doubles at every power
+ * of two, and each power of two is divided into the same amount of
+ * sub-buckets. With 7 significant bits, a recorded value is off by less than
+ * 1/64 of itself, whatever its magnitude, and the whole range of
+ * <code>long</code> takes under 4000 counters. Recording is a few shifts
+ * and an increment, without allocations.
+ *
+ * <p>The histogram is not thread-safe. Histograms recorded in different
+ * threads can be combined with {@link #add(Histogram)}.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class Histogram {
+	private static final double[] REPORTED_PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99, 100 };
+
+	private int significantBits;
+	private int halfCount;
+	private long[] counts;
+	private long totalCount;
+	private long min = Long.MAX_VALUE;
+	private long max;
+	private double sum;
+
+	/**
+	 * Constructs a histogram with 7 significant bits.
+	 */
+	public Histogram() {
+		this(7);
+	}
+
+	/**
+	 * Constructs a histogram with the given precision.
+	 *
+	 * @param significantBits the amount of significant bits kept of every value, 2-20
+	 */
+	public Histogram(int significantBits) {
+		if (significantBits < 2 || significantBits > 20)
+			throw new IllegalArgumentException("Significant bits must be between 2 and 20.");
+		this.significantBits = significantBits;
+		halfCount = 1 << (significantBits - 1);
+		counts = new long[(64 - significantBits + 2) * halfCount];
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 *
+	 * @param value the value to record
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[indexOf(value)]++;
+		totalCount++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Adds the counts of the given histogram into this one. Both must have
+	 * the same precision.
+	 *
+	 * @param histogram the histogram to add
+	 */
+	public void add(Histogram histogram) {
+		if (histogram.significantBits != significantBits)
+			throw new IllegalArgumentException("Histograms have different precision.");
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += histogram.counts[i];
+		totalCount += histogram.totalCount;
+		sum += histogram.sum;
+		min = Math.min(min, histogram.min);
+		max = Math.max(max, histogram.max);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public long getMin() {
+		return totalCount == 0 ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return totalCount == 0 ? 0 : sum / totalCount;
+	}
+
+	/**
+	 * Returns the value below or at which the given percentage of the
+	 * recorded values are. The value is the highest one counted in the same
+	 * bucket, but never over the maximum recorded value.
+	 *
+	 * @param percentile the percentage, 0-100
+	 * @return the value at the percentile, or 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0)
+			return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestEquivalentValue(i), max);
+		}
+
+		return max;
+	}
+
+	/**
+	 * Prints the count, the mean and the usual percentiles on one line.
+	 *
+	 * @param out the stream to print to
+	 * @param name the name printed at the beginning of the line
+	 * @param unit the divisor from the recorded unit to the printed one
+	 * @param unitName the name of the printed unit
+	 */
+	public void print(PrintStream out, String name, double unit, String unitName) {
+		StringBuilder line = new StringBuilder();
+		line.append(String.format("%-14s %9d  mean %9.2f", name, totalCount, getMean() / unit));
+		for (double percentile : REPORTED_PERCENTILES)
+			line.append(String.format("  %s %9.2f", percentile == 100 ? "max" : "p" + format(percentile),
+			                          getValueAtPercentile(percentile) / unit));
+		line.append(' ').append(unitName);
+		out.println(line);
+	}
+
+	private int indexOf(long value) {
+		int magnitude = 64 - Long.numberOfLeadingZeros(value) - significantBits;
+		if (magnitude <= 0)
+			return (int)value;
+
+		return magnitude * halfCount + (int)(value >>> magnitude);
+	}
+
+	private long highestEquivalentValue(int index) {
+		if (index < 2 * halfCount)
+			return index;
+
+		int magnitude = index / halfCount - 1;
+		long subBucket = index - (long)magnitude * halfCount;
+
+		return ((subBucket + 1) << magnitude) - 1;
+	}
+
+	private static String format(double percentile) {
+		return percentile == Math.rint(percentile) ? String.valueOf((long)percentile) : String.valueOf(percentile);
+	}
+}
@@ -0,0 +1,267 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging to the standard output.
+ *
+ * <p>A log call only checks the level and copies its arguments into a
+ * preallocated slot of a ring buffer, together with the time of the call.
+ * The message is formatted and written by a background thread. The
+ * ring is a bounded lock-free queue with many producers and one consumer:
+ * a producer claims a slot by incrementing the tail with compare-and-set
+ * and publishes it by advancing the sequence number of the slot. When the
+ * ring is full, messages are dropped and counted instead of blocking the
+ * caller.
+ *
+ * <p>The format is a string where each <code>{}</code> is replaced with
+ * the next argument. An {@link InetAddress} is written as its host address.
+ * The arguments must not be modified after the call.
+ *
+ * <p>The initial level is read from the <code>log.level</code> system
+ * property and defaults to {@link Level#INFO}, also when the property is
+ * not the name of a level. The remaining messages are
+ * written when the virtual machine shuts down.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.2 (20261018)
+ */
+public final class Log {
+	public static enum Level {
+		DEBUG, INFO, WARNING, ERROR, OFF
+	}
+
+	public static final int RING_SIZE = 8192;
+
+	private static final int MASK = RING_SIZE - 1;
+	private static final Slot[] ring = new Slot[RING_SIZE];
+	private static final AtomicLong tail = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static volatile Level level;
+	private static volatile boolean shuttingDown;
+	private static Thread writerThread;
+
+	static {
+		for (int i = 0; i < RING_SIZE; i++)
+			ring[i] = new Slot(i);
+		String property = System.getProperty("log.level");
+		level = Level.INFO;
+		boolean invalidProperty = false;
+		if (property != null) {
+			try {
+				level = Level.valueOf(property.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				invalidProperty = true;
+			}
+		}
+
+		writerThread = new Thread("Log writer") {
+			public void run() {
+				writeLoop(System.out);
+			}
+		};
+		writerThread.setDaemon(true);
+		writerThread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				shuttingDown = true;
+				LockSupport.unpark(writerThread);
+				try {
+					writerThread.join(1000);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+
+		if (invalidProperty)
+			log(Level.WARNING, null, "Log", "Invalid log.level {}, using {}", property, level);
+	}
+
+	private Log() {
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	/**
+	 * Checks whether messages of the given level are logged. Use it to avoid
+	 * computing expensive arguments.
+	 *
+	 * @param messageLevel the level of a message
+	 * @return true if the messages are logged
+	 */
+	public static boolean isEnabled(Level messageLevel) {
+		return messageLevel.ordinal() >= level.ordinal();
+	}
+
+	/**
+	 * Returns the amount of messages dropped because the ring was full.
+	 *
+	 * @return amount of dropped messages
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	public static void log(Level messageLevel, String context, String tag, String format) {
+		log(messageLevel, context, tag, format, null, null, null, 0);
+	}
+
+	public static void log(Level messageLevel, String context, String tag, String format, Object argument) {
+		log(messageLevel, context, tag, format, argument, null, null, 1);
+	}
+
+	public static void log(Level messageLevel, String context, String tag, String format, Object argument1, Object argument2) {
+		log(messageLevel, context, tag, format, argument1, argument2, null, 2);
+	}
+
+	/**
+	 * Logs a message.
+	 *
+	 * @param messageLevel the level of the message
+	 * @param context the session or other context of the message, or <code>null</code>
+	 * @param tag a short name of the subsystem
+	 * @param format the message with a <code>{}</code> for each argument
+	 * @param argument1 the first argument
+	 * @param argument2 the second argument
+	 * @param argument3 the third argument
+	 */
+	public static void log(Level messageLevel, String context, String tag, String format, Object argument1, Object argument2, Object argument3) {
+		log(messageLevel, context, tag, format, argument1, argument2, argument3, 3);
+	}
+
+	private static void log(Level messageLevel, String context, String tag, String format,
+	                        Object argument1, Object argument2, Object argument3, int arguments) {
+		if (messageLevel.ordinal() < level.ordinal())
+			return;
+
+		long position;
+		Slot slot;
+		while (true) {
+			position = tail.get();
+			slot = ring[(int)(position & MASK)];
+			long sequence = slot.sequence;
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+
+		slot.time = System.currentTimeMillis();
+		slot.level = messageLevel;
+		slot.context = context;
+		slot.tag = tag;
+		slot.format = format;
+		slot.argument1 = argument1;
+		slot.argument2 = argument2;
+		slot.argument3 = argument3;
+		slot.arguments = arguments;
+		slot.sequence = position + 1;
+	}
+
+	private static void writeLoop(PrintStream out) {
+		StringBuilder builder = new StringBuilder(256);
+		long head = 0;
+		long reportedDropped = 0;
+		while (true) {
+			boolean wrote = false;
+			for (Slot slot = ring[(int)(head & MASK)]; slot.sequence == head + 1; slot = ring[(int)(head & MASK)]) {
+				builder.setLength(0);
+				format(builder, slot.time / 1000, slot);
+				out.println(builder);
+				slot.context = null;
+				slot.format = null;
+				slot.argument1 = null;
+				slot.argument2 = null;
+				slot.argument3 = null;
+				slot.sequence = head + RING_SIZE;
+				head++;
+				wrote = true;
+			}
+
+			long droppedNow = dropped.get();
+			if (droppedNow != reportedDropped) {
+				out.println(System.currentTimeMillis() / 1000 + "  \t\t\t\t  Log  Dropped " + (droppedNow - reportedDropped) + " messages");
+				reportedDropped = droppedNow;
+				wrote = true;
+			}
+
+			if (wrote)
+				out.flush();
+			else if (shuttingDown)
+				break;
+			else
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+		}
+	}
+
+	private static void format(StringBuilder builder, long seconds, Slot slot) {
+		builder.append(seconds).append("  ")
+		       .append(slot.context != null ? slot.context : "\t\t\t\t").append("  ")
+		       .append(slot.tag).append("  ");
+
+		String format = slot.format;
+		int argument = 0;
+		int start = 0;
+		for (int index = format.indexOf("{}"); index != -1 && argument < slot.arguments; index = format.indexOf("{}", start)) {
+			builder.append(format, start, index);
+			Object value = argument == 0 ? slot.argument1 : argument == 1 ? slot.argument2 : slot.argument3;
+			if (value instanceof InetAddress)
+				builder.append(((InetAddress)value).getHostAddress());
+			else
+				builder.append(value);
+			argument++;
+			start = index + 2;
+		}
+		builder.append(format, start, format.length());
+	}
+
+	private static class Slot {
+		volatile long sequence;
+		long time;
+		Level level;
+		String context;
+		String tag;
+		String format;
+		Object argument1;
+		Object argument2;
+		Object argument3;
+		int arguments;
+
+		Slot(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+}
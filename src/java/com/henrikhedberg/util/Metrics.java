@@ -0,0 +1,269 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A registry of runtime metrics that can be written in the Prometheus text
+ * exposition format.
+ *
+ * <p>Counters, gauges and distributions are updated through
+ * {@link LongAdder}s, which spread concurrent updates over striped cells,
+ * so updating a metric from many threads does not contend on one cache
+ * line. The values are summed only when the metrics are written. Values
+ * that are already counted elsewhere can be registered as {@link Source}s,
+ * which are sampled when the metrics are written.
+ *
+ * <p>A metric is identified by its name and labels, given as name-value
+ * pairs. Metrics with the same name form a family, which must have one type
+ * and help text.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class Metrics {
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private LinkedHashMap<String, Family> families = new LinkedHashMap<>();
+
+	public Counter counter(String name, String help, String... labels) {
+		Counter counter = new Counter();
+		register(name, help, "counter", labels, counter);
+
+		return counter;
+	}
+
+	public Gauge gauge(String name, String help, String... labels) {
+		Gauge gauge = new Gauge();
+		register(name, help, "gauge", labels, gauge);
+
+		return gauge;
+	}
+
+	/**
+	 * Registers a distribution, which is written as a Prometheus histogram.
+	 *
+	 * @param name the name of the metric
+	 * @param help the help text of the metric
+	 * @param bounds the ascending upper bounds of the buckets
+	 * @param labels the labels as name-value pairs
+	 * @return the distribution
+	 */
+	public Distribution distribution(String name, String help, long[] bounds, String... labels) {
+		Distribution distribution = new Distribution(bounds);
+		register(name, help, "histogram", labels, distribution);
+
+		return distribution;
+	}
+
+	/**
+	 * Registers a value that is sampled from the given source whenever
+	 * the metrics are written.
+	 *
+	 * @param name the name of the metric
+	 * @param help the help text of the metric
+	 * @param counter true if the value is a counter, false if it is a gauge
+	 * @param source the source of the value
+	 * @param labels the labels as name-value pairs
+	 */
+	public void sampled(String name, String help, boolean counter, Source source, String... labels) {
+		register(name, help, counter ? "counter" : "gauge", labels, new Sampled(source));
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format.
+	 *
+	 * @param out the builder to append to
+	 */
+	public synchronized void write(StringBuilder out) {
+		for (Family family : families.values()) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (int i = 0; i < family.metrics.size(); i++)
+				family.metrics.get(i).write(out, family.name, family.labels.get(i));
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		write(out);
+
+		return out.toString();
+	}
+
+	private synchronized void register(String name, String help, String type, String[] labels, Metric metric) {
+		if (labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be name-value pairs.");
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(name, help, type);
+			families.put(name, family);
+		} else if (!family.type.equals(type))
+			throw new IllegalArgumentException("Metric " + name + " is already a " + family.type + ".");
+
+		String formattedLabels = formatLabels(labels);
+		if (family.labels.contains(formattedLabels))
+			throw new IllegalArgumentException("Metric " + name + "{" + formattedLabels + "} is already registered.");
+		family.labels.add(formattedLabels);
+		family.metrics.add(metric);
+	}
+
+	private static String formatLabels(String[] labels) {
+		StringBuilder formatted = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0)
+				formatted.append(',');
+			formatted.append(labels[i]).append("=\"")
+			         .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+
+		return formatted.toString();
+	}
+
+	private static void writeSample(StringBuilder out, String name, String labels, long value) {
+		out.append(name);
+		if (!labels.isEmpty())
+			out.append('{').append(labels).append('}');
+		out.append(' ').append(value).append('\n');
+	}
+
+	public static interface Source {
+		public long sample();
+	}
+
+	static abstract class Metric {
+		abstract void write(StringBuilder out, String name, String labels);
+	}
+
+	public static class Counter extends Metric {
+		private LongAdder value = new LongAdder();
+
+		public void increment() {
+			value.increment();
+		}
+
+		public void add(long amount) {
+			value.add(amount);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+
+		void write(StringBuilder out, String name, String labels) {
+			writeSample(out, name, labels, value.sum());
+		}
+	}
+
+	public static class Gauge extends Metric {
+		private LongAdder value = new LongAdder();
+
+		public void increment() {
+			value.increment();
+		}
+
+		public void decrement() {
+			value.decrement();
+		}
+
+		public void add(long amount) {
+			value.add(amount);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+
+		void write(StringBuilder out, String name, String labels) {
+			writeSample(out, name, labels, value.sum());
+		}
+	}
+
+	/**
+	 * Counts values into buckets with fixed upper bounds. The bounds are
+	 * searched linearly, so a distribution should have at most a few dozen
+	 * of them.
+	 */
+	public static class Distribution extends Metric {
+		private long[] bounds;
+		private LongAdder[] counts;
+		private LongAdder sum = new LongAdder();
+
+		Distribution(long[] bounds) {
+			for (int i = 1; i < bounds.length; i++)
+				if (bounds[i] <= bounds[i - 1])
+					throw new IllegalArgumentException("Bucket bounds must be ascending.");
+			this.bounds = bounds.clone();
+			counts = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+
+		public void record(long value) {
+			int index = 0;
+			while (index < bounds.length && value > bounds[index])
+				index++;
+			counts[index].increment();
+			sum.add(value);
+		}
+
+		void write(StringBuilder out, String name, String labels) {
+			String separator = labels.isEmpty() ? "" : ",";
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulative += counts[i].sum();
+				String bound = i < bounds.length ? String.valueOf(bounds[i]) : "+Inf";
+				writeSample(out, name + "_bucket", labels + separator + "le=\"" + bound + "\"", cumulative);
+			}
+			writeSample(out, name + "_sum", labels, sum.sum());
+			writeSample(out, name + "_count", labels, cumulative);
+		}
+	}
+
+	private static class Sampled extends Metric {
+		private Source source;
+
+		Sampled(Source source) {
+			this.source = source;
+		}
+
+		void write(StringBuilder out, String name, String labels) {
+			writeSample(out, name, labels, source.sample());
+		}
+	}
+
+	private static class Family {
+		String name;
+		String help;
+		String type;
+		ArrayList<String> labels = new ArrayList<>();
+		ArrayList<Metric> metrics = new ArrayList<>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link Metrics} in the Prometheus text exposition format in an
+ * <code>HttpContext</code> of the <code>com.sun.net.httpserver</code>
+ * package. Only GET and HEAD requests are accepted.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.1 (20261018)
+ */
+public class MetricsHttpHandler implements HttpHandler {
+	private Metrics metrics;
+
+	public MetricsHttpHandler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts a separate HTTP server that serves the metrics in the given
+	 * path, for the servers without an HTTP server of their own.
+	 *
+	 * @param metrics the metrics to serve
+	 * @param port the port to listen to
+	 * @param path the path of the metrics
+	 * @return the started HTTP server
+	 * @throws IOException if the server could not be bound
+	 */
+	public static HttpServer serve(Metrics metrics, int port, String path) throws IOException {
+		HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), 16);
+		httpServer.createContext(path, new MetricsHttpHandler(metrics));
+		httpServer.start();
+
+		return httpServer;
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = metrics.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+			if (method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream outputStream = exchange.getResponseBody()) {
+				outputStream.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
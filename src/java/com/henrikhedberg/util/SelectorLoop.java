@@ -22,16 +22,29 @@ package com.henrikhedberg.util;
 
 import java.nio.channels.*;
 import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.io.IOException;
 
 /**
  * A loop around the {@link Selector}. Handlers for accepting, connecting, reading and writing
  * may be registered for {@link SelectableChannel}s. 
+ *
+ * <p>The loop is also an {@link Executor}: other threads may pass tasks to be run
+ * in the thread of the loop. Tasks may also be scheduled to run after a delay
+ * with {@link #schedule(Runnable, long)}; the loop waits in the selector until
+ * the next of them is due.
  */
-public class SelectorLoop implements Runnable {
+public class SelectorLoop implements Runnable, Executor {
 	private Selector selector;
 	private boolean running = true;
 	private IOException exception = null;
+	private BufferPool bufferPool = new BufferPool(16 * 1024, 256);
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+	private long scheduledSequence;
+	private volatile Thread thread;
 	
 	/**
 	 * Constructs a new SelectorLoop.
@@ -40,6 +53,48 @@ public class SelectorLoop implements Runnable {
 		selector = Selector.open();
 	}
 	
+	/**
+	 * Returns the {@link BufferPool} shared by the handlers of this loop.
+	 * The pool must be used only in the thread running the loop.
+	 *
+	 * @return buffer pool
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Runs the given task in the thread of the loop. May be called from
+	 * any thread.
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the given task in the thread of the loop after the given delay.
+	 * Tasks with the same deadline run in the order they were scheduled.
+	 * Must be called in the thread of the loop.
+	 *
+	 * @param task the task to run
+	 * @param delay the delay in milliseconds
+	 */
+	public void schedule(Runnable task, long delay) {
+		scheduledTasks.add(new ScheduledTask(task, System.nanoTime() + delay * 1000000, scheduledSequence++));
+	}
+
+	/**
+	 * Returns whether the calling thread is the one running the loop.
+	 *
+	 * @return true if called in the thread of the loop
+	 */
+	public boolean isLoopThread() {
+		return Thread.currentThread() == thread;
+	}
+
 	public void registerAcceptableHandler(SelectableChannel channel, AcceptableHandler handler) throws ClosedChannelException {
 		HandlerData handlerData = getHandlerData(channel, handler != null, SelectionKey.OP_ACCEPT);
 		handlerData.acceptableHandler = handler;
@@ -82,9 +137,10 @@ public class SelectorLoop implements Runnable {
 		if (exception != null)
 			return;
 
+		thread = Thread.currentThread();
 		try {
 			while (running) {
-				if (selector.select() > 0) {
+				if (select() > 0) {
 					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 					while(iterator.hasNext()) {
 						SelectionKey selectionKey = iterator.next();
@@ -100,9 +156,16 @@ public class SelectorLoop implements Runnable {
 						iterator.remove();
 					}
 				}
+				for (Runnable task = tasks.poll(); task != null; task = tasks.poll())
+					task.run();
+				long now = System.nanoTime();
+				while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline - now <= 0)
+					scheduledTasks.poll().task.run();
 			}
 		} catch (IOException e) {
 			exception = null;
+		} finally {
+			thread = null;
 		}
 	}
 
@@ -114,6 +177,21 @@ public class SelectorLoop implements Runnable {
 		selector.wakeup();
 	}
 
+	/*
+	 * Waits in the selector until a channel is ready, a task is passed or
+	 * the next scheduled task is due.
+	 */
+	private int select() throws IOException {
+		ScheduledTask next = scheduledTasks.peek();
+		if (next == null)
+			return selector.select();
+
+		long remaining = next.deadline - System.nanoTime();
+		if (remaining <= 0)
+			return selector.selectNow();
+		return selector.select((remaining + 999999) / 1000000);
+	}
+
 	private HandlerData getHandlerData(SelectableChannel channel, boolean setInterest, int interest) throws ClosedChannelException{
 		HandlerData handlerData;
 		int interestOps = 0;
@@ -151,6 +229,25 @@ public class SelectorLoop implements Runnable {
 		public void handleWritable(SelectableChannel channel);
 	}
 
+	private static class ScheduledTask implements Comparable<ScheduledTask> {
+		Runnable task;
+		long deadline;
+		long sequence;
+
+		ScheduledTask(Runnable task, long deadline, long sequence) {
+			this.task = task;
+			this.deadline = deadline;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(ScheduledTask other) {
+			long difference = deadline - other.deadline;
+			if (difference == 0)
+				difference = sequence - other.sequence;
+			return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+		}
+	}
+
 	private static class HandlerData {
 		public AcceptableHandler acceptableHandler;
 		public ConnectableHandler connectableHandler;
@@ -0,0 +1,81 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Executor} that runs its tasks one at a time in the order they
+ * were given, in the threads of another executor.
+ *
+ * <p>Several serial executors may share one pool of threads: the tasks of
+ * each run in order and never in parallel with each other, while the tasks
+ * of different serial executors run in parallel. A task sees the effects
+ * of the tasks run before it, even if they ran in another thread. The
+ * executor holds no thread while it has no tasks.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class SerialExecutor implements Executor {
+	private Executor executor;
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Constructs a new executor that runs its tasks in the given one.
+	 *
+	 * @param executor the executor running the tasks
+	 */
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs the given task after the tasks given before it. May be called
+	 * from any thread. A task that throws an exception does not prevent
+	 * the following tasks from running.
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (pending.getAndIncrement() == 0)
+			executor.execute(drainTask);
+	}
+
+	/*
+	 * Runs the tasks until there are none left. A task given meanwhile is
+	 * run by this same drain.
+	 */
+	private Runnable drainTask = new Runnable() {
+		public void run() {
+			do {
+				try {
+					tasks.poll().run();
+				} catch (RuntimeException e) {
+					Log.log(Log.Level.ERROR, null, "SerialExecutor", "Task failed: {}", e);
+				}
+			} while (pending.decrementAndGet() > 0);
+		}
+	};
+}
@@ -0,0 +1,132 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * A lock-free alternative to {@link BufferInputStream} for exactly one
+ * producer thread and one consumer thread.
+ *
+ * <p>The consumer thread uses the standard {@link InputStream} interface.
+ * The producer thread fills the stream from an other {@link InputStream}
+ * with {@link #readFrom(InputStream)} and marks the end of file with
+ * {@link #end()}. The bytes are kept in a bounded {@link SpscByteRing}: a
+ * byte costs no monitor, and a waiting thread spins before it parks.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class SpscBufferInputStream extends InputStream {
+	private SpscByteRing ring;
+
+	/**
+	 * Constructs a new {@link SpscBufferInputStream}.
+	 *
+	 * @param capacity the capacity of the ring, rounded up to a power of two
+	 */
+	public SpscBufferInputStream(int capacity) {
+		ring = new SpscByteRing(capacity);
+	}
+
+	/**
+	 * Returns the amount of bytes in the ring currently.
+	 *
+	 * @return amount of bytes in the buffer
+	 */
+	@Override
+	public int available() throws IOException {
+		if (ring.isClosed())
+			throw new IOException("Stream is closed.");
+		return ring.available();
+	}
+
+	/**
+	 * Closes the stream. A producer waiting for space gets an exception.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (ring.isClosed())
+			throw new IOException("Stream is closed.");
+		ring.close();
+	}
+
+	/**
+	 * Marks that the end of file (EOF) has been reached. Producer only.
+	 */
+	public void end() {
+		ring.end();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int value = ring.poll();
+		if (value != -1)
+			return value;
+		if (!waitReadable())
+			return -1;
+		return ring.poll();
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		int got = ring.poll(b, offset, length);
+		if (got > 0)
+			return got;
+		if (!waitReadable())
+			return -1;
+		return ring.poll(b, offset, length);
+	}
+
+	/**
+	 * Reads bytes from the given {@link InputStream} into the ring until
+	 * the end of the given stream, waiting for space when the ring is full.
+	 * Producer only.
+	 *
+	 * @param input a stream to read the bytes into the ring
+	 * @return the amount of bytes read
+	 */
+	public int readFrom(InputStream input) throws IOException {
+		int result = 0;
+		while (true) {
+			int got = ring.offerFrom(input);
+			if (got == -1)
+				break;
+			if (got == 0 && !ring.awaitWritable())
+				throw new IOException("Stream is closed.");
+			result += got;
+		}
+
+		return result;
+	}
+
+	private boolean waitReadable() throws IOException {
+		if (ring.isClosed())
+			throw new IOException("Stream is closed.");
+		boolean readable = ring.awaitReadable();
+		if (ring.isClosed())
+			throw new IOException("Stream is closed.");
+		return readable;
+	}
+}
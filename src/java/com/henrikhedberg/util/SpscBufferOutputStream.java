@@ -0,0 +1,120 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+/**
+ * A lock-free alternative to {@link BufferOutputStream} for exactly one
+ * producer thread and one consumer thread.
+ *
+ * <p>The producer thread uses the standard {@link OutputStream} interface
+ * and waits when the ring is full. The consumer thread takes the bytes into
+ * an other {@link OutputStream} with {@link #writeTo(OutputStream)}, which
+ * does not block. The bytes are kept in a bounded {@link SpscByteRing}.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class SpscBufferOutputStream extends OutputStream {
+	private SpscByteRing ring;
+
+	/**
+	 * Constructs a new {@link SpscBufferOutputStream}.
+	 *
+	 * @param capacity the capacity of the ring, rounded up to a power of two
+	 */
+	public SpscBufferOutputStream(int capacity) {
+		ring = new SpscByteRing(capacity);
+	}
+
+	/**
+	 * Returns the amount of bytes in the ring currently.
+	 *
+	 * @return amount of bytes in the buffer
+	 */
+	public int available() {
+		return ring.available();
+	}
+
+	/**
+	 * Closes the stream. The consumer gets the remaining bytes and then
+	 * the end of file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (ring.isEnded())
+			throw new IOException("Stream is closed.");
+		ring.end();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		while (!ring.offer(b))
+			waitWritable();
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int length) throws IOException {
+		checkOpen();
+		while (length > 0) {
+			int count = ring.offer(b, offset, length);
+			if (count == 0)
+				waitWritable();
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Writes the bytes from the ring into the given {@link OutputStream}
+	 * without waiting. Consumer only.
+	 *
+	 * @param output a stream to write the bytes from the ring
+	 * @return the amount of bytes written, or -1 if the stream is closed and empty
+	 */
+	public int writeTo(OutputStream output) throws IOException {
+		boolean ended = ring.isEnded();
+		int written = ring.pollTo(output);
+		if (written == 0 && ended)
+			return -1;
+		return written;
+	}
+
+	/**
+	 * Stops consuming. A producer waiting for space gets an exception.
+	 */
+	public void cancel() {
+		ring.close();
+	}
+
+	private void checkOpen() throws IOException {
+		if (ring.isEnded() || ring.isClosed())
+			throw new IOException("Stream is closed.");
+	}
+
+	private void waitWritable() throws IOException {
+		if (!ring.awaitWritable())
+			throw new IOException("Stream is closed.");
+	}
+}
@@ -0,0 +1,337 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free ring of bytes between exactly one producer thread and
+ * exactly one consumer thread.
+ *
+ * <p>The producer owns the tail index and the consumer owns the head index.
+ * Each side publishes its index with a single volatile write and caches the
+ * index of the other side, so that it reads the other's volatile field only
+ * when the cached value says the ring is full or empty. The offer and poll
+ * methods never block and copy as many bytes as fit with at most two array
+ * copies.
+ *
+ * <p>A side that has to wait first spins a while, then yields and finally
+ * parks itself. Before parking, it registers itself and checks the ring
+ * once more. The other side takes a registered waiter away atomically when
+ * it publishes, so that each park costs at most one unpark.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class SpscByteRing {
+	private static final int SPIN_TRIES = 256;
+	private static final int YIELD_TRIES = 16;
+
+	private final byte[] buffer;
+	private final int mask;
+
+	/* Written by the consumer */
+	private volatile long head;
+	private volatile boolean closed;
+	private final AtomicReference<Thread> waitingConsumer = new AtomicReference<>();
+	private long cachedTail;
+
+	/* Written by the producer */
+	private volatile long tail;
+	private volatile boolean ended;
+	private final AtomicReference<Thread> waitingProducer = new AtomicReference<>();
+	private long cachedHead;
+
+	/**
+	 * Constructs a new ring.
+	 *
+	 * @param capacity the capacity in bytes, rounded up to a power of two
+	 */
+	public SpscByteRing(int capacity) {
+		int length = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		buffer = new byte[length];
+		mask = length - 1;
+	}
+
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Returns the amount of bytes in the ring. May be called from any thread.
+	 *
+	 * @return amount of readable bytes
+	 */
+	public int available() {
+		return (int)(tail - head);
+	}
+
+	/**
+	 * Returns whether the producer has ended the stream.
+	 *
+	 * @return true after {@link #end()}
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * Returns whether the consumer has closed the ring.
+	 *
+	 * @return true after {@link #close()}
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Copies bytes into the ring without blocking. Producer only.
+	 *
+	 * @param b the bytes to copy
+	 * @param offset the offset of the first byte
+	 * @param length the amount of bytes
+	 * @return the amount of bytes copied, 0 if the ring is full
+	 */
+	public int offer(byte[] b, int offset, int length) {
+		long position = tail;
+		int free = buffer.length - (int)(position - cachedHead);
+		if (free < length) {
+			cachedHead = head;
+			free = buffer.length - (int)(position - cachedHead);
+		}
+		int count = Math.min(free, length);
+		if (count == 0)
+			return 0;
+
+		int index = (int)position & mask;
+		int first = Math.min(count, buffer.length - index);
+		System.arraycopy(b, offset, buffer, index, first);
+		System.arraycopy(b, offset + first, buffer, 0, count - first);
+		tail = position + count;
+		wake(waitingConsumer);
+
+		return count;
+	}
+
+	/**
+	 * Puts one byte into the ring without blocking. Producer only.
+	 *
+	 * @param b the byte
+	 * @return false if the ring is full
+	 */
+	public boolean offer(int b) {
+		long position = tail;
+		if (position - cachedHead == buffer.length) {
+			cachedHead = head;
+			if (position - cachedHead == buffer.length)
+				return false;
+		}
+		buffer[(int)position & mask] = (byte)b;
+		tail = position + 1;
+		wake(waitingConsumer);
+
+		return true;
+	}
+
+	/**
+	 * Reads bytes from the given stream directly into the free space of the
+	 * ring. Calls the stream at most once. Producer only.
+	 *
+	 * @param input the stream to read from
+	 * @return the amount of bytes read, 0 if the ring is full or -1 at the end of the stream
+	 * @throws IOException if the given stream throws an exception
+	 */
+	public int offerFrom(InputStream input) throws IOException {
+		long position = tail;
+		if (position - cachedHead == buffer.length) {
+			cachedHead = head;
+			if (position - cachedHead == buffer.length)
+				return 0;
+		}
+		int index = (int)position & mask;
+		int free = buffer.length - (int)(position - cachedHead);
+		int got = input.read(buffer, index, Math.min(free, buffer.length - index));
+		if (got > 0) {
+			tail = position + got;
+			wake(waitingConsumer);
+		}
+
+		return got;
+	}
+
+	/**
+	 * Marks the end of the stream. Producer only.
+	 */
+	public void end() {
+		ended = true;
+		wake(waitingConsumer);
+	}
+
+	/**
+	 * Copies bytes from the ring without blocking. Consumer only.
+	 *
+	 * @param b the array to copy into
+	 * @param offset the offset of the first byte
+	 * @param length the maximum amount of bytes
+	 * @return the amount of bytes copied, 0 if the ring is empty
+	 */
+	public int poll(byte[] b, int offset, int length) {
+		long position = head;
+		int readable = (int)(cachedTail - position);
+		if (readable < length) {
+			cachedTail = tail;
+			readable = (int)(cachedTail - position);
+		}
+		int count = Math.min(readable, length);
+		if (count == 0)
+			return 0;
+
+		int index = (int)position & mask;
+		int first = Math.min(count, buffer.length - index);
+		System.arraycopy(buffer, index, b, offset, first);
+		System.arraycopy(buffer, 0, b, offset + first, count - first);
+		head = position + count;
+		wake(waitingProducer);
+
+		return count;
+	}
+
+	/**
+	 * Takes one byte from the ring without blocking. Consumer only.
+	 *
+	 * @return the byte or -1 if the ring is empty
+	 */
+	public int poll() {
+		long position = head;
+		if (position == cachedTail) {
+			cachedTail = tail;
+			if (position == cachedTail)
+				return -1;
+		}
+		int value = buffer[(int)position & mask] & 0xff;
+		head = position + 1;
+		wake(waitingProducer);
+
+		return value;
+	}
+
+	/**
+	 * Writes all bytes in the ring into the given stream. Consumer only.
+	 *
+	 * @param output the stream to write to
+	 * @return the amount of bytes written
+	 * @throws IOException if the given stream throws an exception
+	 */
+	public int pollTo(OutputStream output) throws IOException {
+		long position = head;
+		cachedTail = tail;
+		int count = (int)(cachedTail - position);
+		if (count == 0)
+			return 0;
+
+		int index = (int)position & mask;
+		int first = Math.min(count, buffer.length - index);
+		output.write(buffer, index, first);
+		if (count > first)
+			output.write(buffer, 0, count - first);
+		head = position + count;
+		wake(waitingProducer);
+
+		return count;
+	}
+
+	/**
+	 * Closes the ring from the consumer side. A waiting producer is woken up.
+	 */
+	public void close() {
+		closed = true;
+		wake(waitingProducer);
+	}
+
+	/**
+	 * Waits until there are bytes to read. Consumer only.
+	 *
+	 * @return true if there are bytes, false if the stream has ended or the ring is closed
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public boolean awaitReadable() throws InterruptedIOException {
+		for (int tries = 0; ; tries++) {
+			if (tail != head)
+				return true;
+			if (ended || closed)
+				return tail != head;
+			if (tries < SPIN_TRIES) {
+				Thread.onSpinWait();
+				continue;
+			}
+			if (tries < SPIN_TRIES + YIELD_TRIES) {
+				Thread.yield();
+				continue;
+			}
+			waitingConsumer.set(Thread.currentThread());
+			if (tail == head && !ended && !closed)
+				LockSupport.park(this);
+			waitingConsumer.set(null);
+			if (Thread.interrupted())
+				throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Waits until there is space to write. Producer only.
+	 *
+	 * @return true if there is space, false if the ring is closed
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public boolean awaitWritable() throws InterruptedIOException {
+		for (int tries = 0; ; tries++) {
+			if (closed)
+				return false;
+			if (tail - head < buffer.length)
+				return true;
+			if (tries < SPIN_TRIES) {
+				Thread.onSpinWait();
+				continue;
+			}
+			if (tries < SPIN_TRIES + YIELD_TRIES) {
+				Thread.yield();
+				continue;
+			}
+			waitingProducer.set(Thread.currentThread());
+			if (tail - head == buffer.length && !closed)
+				LockSupport.park(this);
+			waitingProducer.set(null);
+			if (Thread.interrupted())
+				throw new InterruptedIOException();
+		}
+	}
+
+	private static void wake(AtomicReference<Thread> waiting) {
+		Thread thread = waiting.get();
+		if (thread != null && waiting.compareAndSet(thread, null))
+			LockSupport.unpark(thread);
+	}
+}
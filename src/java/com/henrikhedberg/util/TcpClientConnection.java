@@ -0,0 +1,187 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.util.LinkedList;
+import java.io.IOException;
+
+/**
+ * An outgoing TCP connection in a {@link SelectorLoop}, the client-side
+ * counterpart of {@link TcpServerConnection}.
+ *
+ * <p>The connection is established without blocking. The {@link Handler}
+ * is told when the connection has been established, when data is available
+ * and when an operation has failed. All methods must be called in the
+ * thread of the loop.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class TcpClientConnection {
+	private SelectorLoop selectorLoop;
+	private SocketChannel socketChannel;
+	private Handler handler;
+	private LinkedList<ByteBuffer> writeBuffers = new LinkedList<>();
+	private SelectorLoop.WritableHandler writableHandler;
+	private boolean closing;
+
+	/**
+	 * Starts connecting to the given address.
+	 *
+	 * @param selectorLoop the loop to run the connection in
+	 * @param address the address to connect to
+	 * @param handler the handler of the connection
+	 */
+	public TcpClientConnection(SelectorLoop selectorLoop, SocketAddress address, Handler handler) throws IOException {
+		this.selectorLoop = selectorLoop;
+		this.handler = handler;
+
+		socketChannel = SocketChannel.open();
+		socketChannel.configureBlocking(false);
+		socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		if (socketChannel.connect(address)) {
+			selectorLoop.execute(new Runnable() {
+				public void run() {
+					connected();
+				}
+			});
+		} else {
+			selectorLoop.registerConnectableHandler(socketChannel, new SelectorLoop.ConnectableHandler() {
+				public void handleConnectable(SelectableChannel channel) {
+					try {
+						socketChannel.finishConnect();
+						selectorLoop.registerConnectableHandler(socketChannel, null);
+					} catch (IOException e) {
+						failed(e);
+						return;
+					}
+					connected();
+				}
+			});
+		}
+	}
+
+	public void close() throws IOException {
+		/* A failed connect has already closed the channel. */
+		if (!socketChannel.isOpen())
+			return;
+		selectorLoop.registerReadableHandler(socketChannel, null);
+		socketChannel.close();
+	}
+
+	/**
+	 * Closes the connection as soon as all pending writes have been
+	 * written. No more data is read.
+	 */
+	public void closeAfterWriting() throws IOException {
+		if (writeBuffers.size() == 0)
+			close();
+		else {
+			closing = true;
+			selectorLoop.registerReadableHandler(socketChannel, null);
+		}
+	}
+
+	public boolean isOpen() {
+		return socketChannel.isOpen();
+	}
+
+	public SelectorLoop getSelectorLoop() {
+		return selectorLoop;
+	}
+
+	public int read(ByteBuffer buffer) throws IOException {
+		return socketChannel.read(buffer);
+	}
+
+	/**
+	 * Writes the given buffer, or queues it if the socket cannot take all
+	 * of it. The buffer must not be modified until it has been written.
+	 *
+	 * @param buffer the buffer to write
+	 * @return true if the buffer was written, false if it was queued
+	 */
+	public boolean write(ByteBuffer buffer) throws IOException {
+		if (writeBuffers.size() == 0) {
+			socketChannel.write(buffer);
+			if (!buffer.hasRemaining())
+				return true;
+
+			if (writableHandler == null)
+				writableHandler = new WritableHandler();
+			selectorLoop.registerWritableHandler(socketChannel, writableHandler);
+		}
+
+		writeBuffers.add(buffer);
+
+		return false;
+	}
+
+	private void connected() {
+		try {
+			selectorLoop.registerReadableHandler(socketChannel, new SelectorLoop.ReadableHandler() {
+				public void handleReadable(SelectableChannel channel) {
+					handler.handleData(TcpClientConnection.this);
+				}
+			});
+		} catch (IOException e) {
+			failed(e);
+			return;
+		}
+		handler.handleConnected(this);
+	}
+
+	private void failed(IOException exception) {
+		try {
+			close();
+		} catch (IOException e) {
+		}
+		handler.handleIOException(this, exception);
+	}
+
+	public static interface Handler {
+		public void handleConnected(TcpClientConnection connection);
+		public void handleData(TcpClientConnection connection);
+		public void handleIOException(TcpClientConnection connection, IOException exception);
+	}
+
+	private class WritableHandler implements SelectorLoop.WritableHandler {
+		public void handleWritable(SelectableChannel channel) {
+			try {
+				ByteBuffer buffer = writeBuffers.element();
+				socketChannel.write(buffer);
+				if (!buffer.hasRemaining()) {
+					writeBuffers.remove();
+					if (writeBuffers.size() == 0) {
+						selectorLoop.registerWritableHandler(socketChannel, null);
+						if (closing)
+							close();
+					}
+				}
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+}
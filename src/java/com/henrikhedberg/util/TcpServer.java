@@ -30,22 +30,69 @@ import java.io.IOException;
  * A simple base class for single-threaded TCP servers. Subclasses must implement the
  * {@link #acceptConnection(TcpServerConnection)} method.
  *
+ * <p>A server either runs its own {@link SelectorLoop} or shares one with other
+ * servers, in which case all of them are served by the same thread.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20160312)
+ * @version 1.2 (20261018)
  */
-public abstract class TcpServer extends SelectorLoop {
+public abstract class TcpServer implements Runnable {
+	private SelectorLoop selectorLoop;
 	private ServerSocketChannel serverSocketChannel;
 	
 	public TcpServer(SocketAddress address) throws IOException {
+		this(new SelectorLoop(), address);
+	}
+
+	public TcpServer(SelectorLoop selectorLoop, SocketAddress address) throws IOException {
+		this.selectorLoop = selectorLoop;
 		serverSocketChannel = ServerSocketChannel.open();
 		serverSocketChannel.bind(address).configureBlocking(false);
-		registerAcceptableHandler(serverSocketChannel, new SelectorLoop.AcceptableHandler() {
+		selectorLoop.registerAcceptableHandler(serverSocketChannel, new SelectorLoop.AcceptableHandler() {
 			public void handleAcceptable(SelectableChannel channel) {
 				handleAccept();
 			}
 		});
 	}
 
+	public SelectorLoop getSelectorLoop() {
+		return selectorLoop;
+	}
+
+	/**
+	 * Returns the address the server is bound to, which tells the actual
+	 * port when the server was bound to the port 0.
+	 *
+	 * @return the local address of the server
+	 */
+	public SocketAddress getLocalAddress() throws IOException {
+		return serverSocketChannel.getLocalAddress();
+	}
+
+	/**
+	 * Stops accepting connections and closes the server socket. The accepted
+	 * connections are not affected. Must be called in the thread of the loop
+	 * or when the loop is not running.
+	 */
+	public void close() throws IOException {
+		selectorLoop.registerAcceptableHandler(serverSocketChannel, null);
+		serverSocketChannel.close();
+	}
+
+	/**
+	 * Runs the underlying {@link SelectorLoop}.
+	 */
+	public void run() {
+		selectorLoop.run();
+	}
+
+	/**
+	 * Stops the underlying {@link SelectorLoop}.
+	 */
+	public void stop() {
+		selectorLoop.stop();
+	}
+
 	protected abstract void acceptConnection(TcpServerConnection connection);
 
 	private void handleAccept() {
@@ -23,44 +23,111 @@ package com.henrikhedberg.util;
 import java.nio.*;
 import java.nio.channels.*;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.util.LinkedList;
 import java.io.IOException;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
 
 /**
  * An established TCP connection in {@link TcpServer}.
  *
+ * <p>Every write to the socket is recorded as a JDK Flight Recorder event
+ * <code>com.henrikhedberg.util.SocketWrite</code> when it takes longer
+ * than the threshold of the event.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20160312)
+ * @version 1.3 (20261018)
  */
 public class TcpServerConnection {
 	private TcpServer tcpServer;
 	private SocketChannel socketChannel;
 	private Handler handler;
 	private LinkedList<ByteBuffer> writeBuffers = new LinkedList<>();
+	private SelectorLoop.ReadableHandler readableHandler;
 	private SelectorLoop.WritableHandler writableHandler;
+	private boolean closing;
+	private int queuedBytes;
 	
 	TcpServerConnection(TcpServer tcpServer, SocketChannel socketChannel) throws IOException {
 		this.tcpServer = tcpServer;
 		this.socketChannel = socketChannel;
 
 		socketChannel.configureBlocking(false);
-		tcpServer.registerReadableHandler(socketChannel, new SelectorLoop.ReadableHandler() {
+		/* Small messages must not wait for the delayed ACK of the peer. */
+		socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		readableHandler = new SelectorLoop.ReadableHandler() {
 			public void handleReadable(SelectableChannel channel) {
 				if (handler != null)
 					handler.handleData(TcpServerConnection.this);
 			}
-		});
+		};
+		tcpServer.getSelectorLoop().registerReadableHandler(socketChannel, readableHandler);
 	}
 	
 	public void close() throws IOException {
-		tcpServer.registerReadableHandler(socketChannel, null);
+		if (!socketChannel.isOpen())
+			return;
+
+		tcpServer.getSelectorLoop().registerReadableHandler(socketChannel, null);
 		socketChannel.close();
 	}
+
+	/**
+	 * Closes the connection as soon as all pending writes have been
+	 * written. No more data is read.
+	 */
+	public void closeAfterWriting() throws IOException {
+		if (writeBuffers.size() == 0)
+			close();
+		else {
+			closing = true;
+			tcpServer.getSelectorLoop().registerReadableHandler(socketChannel, null);
+		}
+	}
+
+	/**
+	 * Stops or resumes reading. While reading is stopped, the incoming data
+	 * stays in the socket buffers and TCP flow control slows down the peer.
+	 * Reading is not resumed after the connection has been closed. Must be
+	 * called in the thread of the loop.
+	 *
+	 * @param reading whether the {@link Handler} is called for incoming data
+	 */
+	public void setReading(boolean reading) throws IOException {
+		if (closing || !socketChannel.isOpen())
+			return;
+
+		tcpServer.getSelectorLoop().registerReadableHandler(socketChannel, reading ? readableHandler : null);
+	}
+
+	public boolean isOpen() {
+		return socketChannel.isOpen();
+	}
+
+	public TcpServer getTcpServer() {
+		return tcpServer;
+	}
 	
 	public SocketAddress getRemoteAddress() throws IOException {
 		return socketChannel.getRemoteAddress();
 	}
 	
+	/**
+	 * Returns the amount of bytes queued for writing.
+	 *
+	 * @return queued bytes
+	 */
+	public int getQueuedBytes() {
+		return queuedBytes;
+	}
+
 	public void setHandler(Handler handler) {
 		this.handler = handler;
 	}
@@ -71,20 +138,69 @@ public class TcpServerConnection {
 	
 	public boolean write(ByteBuffer buffer) throws IOException {
 		if (writeBuffers.size() == 0) {
-			socketChannel.write(buffer);
+			SocketWrite event = new SocketWrite();
+			event.begin();
+			int length = buffer.remaining();
+			written(event, length, socketChannel.write(buffer));
 			if (!buffer.hasRemaining())
 				return true;
 
 			if (writableHandler == null)
 				writableHandler = new WritableHandler();
-			tcpServer.registerWritableHandler(socketChannel, writableHandler);
+			tcpServer.getSelectorLoop().registerWritableHandler(socketChannel, writableHandler);
 		}
 		
 		writeBuffers.add(buffer);
+		queuedBytes += buffer.remaining();
 
 		return false;
 	}
 
+	/**
+	 * Writes the given buffers with one gathering write, so that a header
+	 * and a body in separate buffers need not be copied together. The
+	 * buffers that could not be written at once are queued in order.
+	 *
+	 * @param buffers the buffers to write
+	 * @return true if all buffers were written, false if some were queued
+	 */
+	public boolean write(ByteBuffer[] buffers) throws IOException {
+		int index = 0;
+		if (writeBuffers.size() == 0) {
+			SocketWrite event = new SocketWrite();
+			event.begin();
+			long length = 0;
+			for (ByteBuffer buffer : buffers)
+				length += buffer.remaining();
+			written(event, length, socketChannel.write(buffers));
+			while (index < buffers.length && !buffers[index].hasRemaining())
+				index++;
+			if (index == buffers.length)
+				return true;
+
+			if (writableHandler == null)
+				writableHandler = new WritableHandler();
+			tcpServer.getSelectorLoop().registerWritableHandler(socketChannel, writableHandler);
+		}
+
+		for (; index < buffers.length; index++) {
+			writeBuffers.add(buffers[index]);
+			queuedBytes += buffers[index].remaining();
+		}
+
+		return false;
+	}
+
+	private void written(SocketWrite event, long length, long written) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.length = length;
+			event.written = written;
+			event.queued = queuedBytes;
+			event.commit();
+		}
+	}
+
 	public static interface Handler {
 		public void handleData(TcpServerConnection connection);
 		public void handleIOException(IOException exception);
@@ -94,11 +210,19 @@ public class TcpServerConnection {
 		public void handleWritable(SelectableChannel channel) {
 			try {
 				ByteBuffer buffer = writeBuffers.element();
-				socketChannel.write(buffer);
+				SocketWrite event = new SocketWrite();
+				event.begin();
+				int length = buffer.remaining();
+				int written = socketChannel.write(buffer);
+				queuedBytes -= written;
+				written(event, length, written);
 				if (!buffer.hasRemaining()) {
 					writeBuffers.remove();
-					if (writeBuffers.size() == 0)
-						tcpServer.registerWritableHandler(socketChannel, null);
+					if (writeBuffers.size() == 0) {
+						tcpServer.getSelectorLoop().registerWritableHandler(socketChannel, null);
+						if (closing)
+							close();
+					}
 				}
 			} catch (IOException e) {
 				if (handler != null)
@@ -106,4 +230,26 @@ public class TcpServerConnection {
 			}
 		}
 	}
+
+	@Name("com.henrikhedberg.util.SocketWrite")
+	@Label("Socket Write")
+	@Description("A write to the socket of a TCP server connection.")
+	@Category("OHAP")
+	@StackTrace(false)
+	@Threshold("20 us")
+	static class SocketWrite extends Event {
+		@Label("Length")
+		@Description("The bytes offered to the socket.")
+		@DataAmount
+		long length;
+
+		@Label("Written")
+		@DataAmount
+		long written;
+
+		@Label("Queued")
+		@Description("The bytes left queued for writing after the write.")
+		@DataAmount
+		long queued;
+	}
 }
@@ -0,0 +1,167 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+/**
+ * A hashed timer wheel for large amounts of coarse timeouts.
+ *
+ * <p>The wheel is an array of slots, each holding an intrusive list of
+ * {@link Timeout}s whose deadlines fall into the same tick modulo the size
+ * of the wheel. Scheduling is a constant time operation and does not
+ * allocate. {@link #advance(long)} visits only the slots of the elapsed
+ * ticks. A timeout whose deadline is still in the future, because it lies
+ * more than one rotation ahead, is put back into its slot.
+ *
+ * <p>The deadlines are not updated on activity. Instead, the owner of a
+ * timeout records the time of the last activity itself and reschedules the
+ * timeout from {@link Timeout#expired(long)} if the activity happened after
+ * the timeout was scheduled (lazy reinsertion).
+ *
+ * <p>The wheel is thread-safe. The timeouts are expired in the thread
+ * calling {@link #advance(long)} without holding the lock of the wheel.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class TimerWheel {
+	private Timeout[] slots;
+	private int mask;
+	private long tickDuration;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * Constructs a new wheel.
+	 *
+	 * @param tickDuration the duration of one tick in milliseconds
+	 * @param wheelSize the amount of slots, rounded up to a power of two
+	 * @param now the current time in milliseconds
+	 */
+	public TimerWheel(long tickDuration, int wheelSize, long now) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("Tick duration must be positive.");
+		int length = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+		slots = new Timeout[Math.max(length, 1)];
+		mask = slots.length - 1;
+		this.tickDuration = tickDuration;
+		currentTick = now / tickDuration;
+	}
+
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * Returns the amount of scheduled timeouts.
+	 *
+	 * @return amount of timeouts in the wheel
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules the timeout to expire at the given deadline. A timeout must
+	 * not be scheduled again before it has expired.
+	 *
+	 * @param timeout the timeout to schedule
+	 * @param deadline the time in milliseconds
+	 */
+	public synchronized void schedule(Timeout timeout, long deadline) {
+		timeout.deadline = deadline;
+		insert(timeout);
+		size++;
+	}
+
+	/**
+	 * Expires all timeouts whose deadline is not after the given time.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	public void advance(long now) {
+		Timeout expired = null;
+		synchronized (this) {
+			long nowTick = now / tickDuration;
+			Timeout pending = null;
+			long ticks = Math.min(nowTick - currentTick + 1, slots.length);
+			for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+				int index = (int)(tick & mask);
+				Timeout timeout = slots[index];
+				slots[index] = null;
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.deadline <= now) {
+						timeout.next = expired;
+						expired = timeout;
+						size--;
+					} else {
+						timeout.next = pending;
+						pending = timeout;
+					}
+					timeout = next;
+				}
+			}
+			currentTick = Math.max(currentTick, nowTick);
+			while (pending != null) {
+				Timeout next = pending.next;
+				insert(pending);
+				pending = next;
+			}
+		}
+
+		while (expired != null) {
+			Timeout next = expired.next;
+			expired.next = null;
+			expired.expired(now);
+			expired = next;
+		}
+	}
+
+	private void insert(Timeout timeout) {
+		long tick = Math.max(timeout.deadline / tickDuration, currentTick);
+		int index = (int)(tick & mask);
+		timeout.next = slots[index];
+		slots[index] = timeout;
+	}
+
+	/**
+	 * A timeout in a {@link TimerWheel}.
+	 *
+	 * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+	 * @version 1.0 (20261018)
+	 */
+	public static abstract class Timeout {
+		private long deadline;
+		private Timeout next;
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * Called when the deadline has passed. The timeout may be
+		 * scheduled again.
+		 *
+		 * @param now the time given to {@link TimerWheel#advance(long)}
+		 */
+		protected abstract void expired(long now);
+	}
+}